@@ -0,0 +1,227 @@
+package org.oxcart.pget;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.oxcart.streams.BandwidthLimiter;
+import org.oxcart.streams.HttpConnectionPool;
+import org.oxcart.streams.Metrics;
+
+/**
+ * <p>
+ * Downloads all the files listed in a batch manifest, sharing one ExecutorService and one {@link HttpConnectionPool}
+ * between them so that the number of threads and connections is limited across the whole batch rather than per file,
+ * and connections to the same host are reused from one file to the next. Files can also share a
+ * {@link BandwidthLimiter}, each getting a share of the bandwidth by its weight (-W), and are recorded in the same
+ * {@link Metrics}.
+ * </p>
+ *
+ * <p>
+ * Each line of the manifest holds the pget options and urls for one file, for example
+ * <code>-o app.jar -c CRC32C:1a2b3c4d -P 10 http://mirror1/app.jar http://mirror2/app.jar</code>. Every entry needs an
+ * outfile. Arguments are separated by whitespace, and like in a shell, an argument that contains whitespace can be put
+ * in double or single quotes, e.g. <code>-o "My Documents/app.jar"</code>. Within double quotes and outside quotes a
+ * backslash escapes the next character; within single quotes everything is taken as is. Blank lines and lines
+ * starting with # are skipped. At most a given number of files are downloaded at once,
+ * starting with those of the highest priority (-P) and otherwise in the order they are listed.
+ * </p>
+ *
+ * <p>
+ * Each file waits for its own download on a thread of a separate pool, never on a thread of the shared
+ * ExecutorService. The url probes and fetches that a file waits for therefore can't be held up by files waiting for
+ * threads of the shared ExecutorService.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+class Batch {
+    private static final String ENCODING = "UTF-8";
+
+    private final ExecutorService executorService;
+    private final HttpConnectionPool connectionPool;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final Metrics metrics;
+    private final int numberOfFiles;
+
+    /**
+     * @param executorService
+     *            the ExecutorService shared by the downloads of all files
+     * @param connectionPool
+     *            the connections shared by the downloads of all files
+     * @param bandwidthLimiter
+     *            the bandwidth shared by the downloads of all files, or null for no overall limit
+     * @param metrics
+     *            the metrics to record the downloads of all files in, or null for none
+     * @param numberOfFiles
+     *            how many files to download at once
+     */
+    public Batch(ExecutorService executorService, HttpConnectionPool connectionPool,
+            BandwidthLimiter bandwidthLimiter, Metrics metrics, int numberOfFiles) {
+        this.executorService = executorService;
+        this.connectionPool = connectionPool;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.metrics = metrics;
+        this.numberOfFiles = numberOfFiles;
+    }
+
+    /**
+     * Download all files listed in the given manifest, printing the exit status of each as it finishes.
+     *
+     * @param manifest
+     * @return 0 if all files were downloaded and valid, 1 if the manifest can't be used, otherwise the highest exit
+     *         status of any of the files
+     */
+    public int fetch(File manifest) {
+        List<Entry> entries;
+        try {
+            entries = read(manifest);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            return 1;
+        }
+        // Stable, so entries of the same priority stay in the order they were listed
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.priority > b.priority ? -1 : a.priority < b.priority ? 1 : 0;
+            }
+        });
+        ExecutorService filesExecutorService = Executors.newFixedThreadPool(numberOfFiles);
+        try {
+            CompletionService<Entry> downloads = new ExecutorCompletionService<Entry>(filesExecutorService);
+            for (final Entry entry : entries) {
+                downloads.submit(new Callable<Entry>() {
+                    @Override
+                    public Entry call() throws Exception {
+                        entry.status = entry.pget.fetch(executorService, connectionPool, bandwidthLimiter, metrics);
+                        return entry;
+                    }
+                });
+            }
+            int status = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = downloads.take().get();
+                System.err.println(String.format("%1$s: %2$s", entry.pget.getName(), entry.status));
+                status = Math.max(status, entry.status);
+            }
+            return status;
+        } catch (ExecutionException ee) {
+            // PGet.fetch() doesn't throw
+            throw new IllegalStateException(ee.getCause());
+        } catch (InterruptedException ie) {
+            filesExecutorService.shutdownNow();
+            System.err.println("Interrupted while downloading batch");
+            return 3;
+        } finally {
+            filesExecutorService.shutdown();
+        }
+    }
+
+    private List<Entry> read(File manifest) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), ENCODING));
+        try {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    entries.add(new Entry(new PGet(tokenize(line))));
+                } catch (RuntimeException re) {
+                    throw new IOException(String.format("Invalid entry on line %1$s of %2$s: %3$s", lineNumber,
+                                                        manifest, re.getMessage()), re);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Split a line of the manifest into arguments, see the class description for how quotes and backslashes work.
+     *
+     * @param line
+     * @return
+     * @throws IllegalArgumentException
+     *             if a quote or escape isn't finished by the end of the line
+     */
+    static String[] tokenize(String line) {
+        List<String> arguments = new ArrayList<String>();
+        StringBuilder argument = new StringBuilder();
+        // Whether there is an argument, which may be empty if it's only quotes
+        boolean inArgument = false;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote == '\'') {
+                if (c == '\'') {
+                    quote = 0;
+                } else {
+                    argument.append(c);
+                }
+            } else if (c == '\\') {
+                if (++i == line.length()) {
+                    throw new IllegalArgumentException("Line ends with an unfinished escape");
+                }
+                argument.append(line.charAt(i));
+                inArgument = true;
+            } else if (quote == '"') {
+                if (c == '"') {
+                    quote = 0;
+                } else {
+                    argument.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inArgument = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArgument) {
+                    arguments.add(argument.toString());
+                    argument.setLength(0);
+                    inArgument = false;
+                }
+            } else {
+                argument.append(c);
+                inArgument = true;
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException(String.format("Line ends within %1$s quotes", quote));
+        }
+        if (inArgument) {
+            arguments.add(argument.toString());
+        }
+        return arguments.toArray(new String[arguments.size()]);
+    }
+
+    private static class Entry {
+        private final PGet pget;
+        private final int priority;
+        private volatile int status;
+
+        private Entry(PGet pget) {
+            pget.checkBatchEntry();
+            this.pget = pget;
+            this.priority = pget.getPriority();
+        }
+    }
+}
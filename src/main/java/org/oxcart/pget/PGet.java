@@ -1,11 +1,17 @@
 package org.oxcart.pget;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.channels.WritableByteChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -18,10 +24,24 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.oxcart.streams.BandwidthLimiter;
 import org.oxcart.streams.ChecksummingInputStream;
+import org.oxcart.streams.Digests;
+import org.oxcart.streams.DownloadCache;
+import org.oxcart.streams.HttpConnectionPool;
 import org.oxcart.streams.IProgressRecorder;
+import org.oxcart.streams.IProgressReporter;
+import org.oxcart.streams.IValidatable;
+import org.oxcart.streams.MemoryBudget;
+import org.oxcart.streams.Metrics;
+import org.oxcart.streams.ParallelHttpGetFile;
 import org.oxcart.streams.ParallelHttpGetInputStream;
+import org.oxcart.streams.ParallelHttpGetOptions;
+import org.oxcart.streams.PieceManifest;
 import org.oxcart.streams.ValidatingInputStream;
+import org.oxcart.streams.VirtualThreads;
 
 /**
  * <p>
@@ -44,10 +64,22 @@ import org.oxcart.streams.ValidatingInputStream;
  */
 public class PGet {
     private static final String SHA_256 = "SHA-256";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final long KB = 1024;
+    private static final long MB = 1024 * 1024;
+    private static final int DEFAULT_BATCH_THREADS = 16;
+    private static final int DEFAULT_BATCH_FILES = 4;
+    private static final long DEFAULT_CACHE_LIMIT_MB = 10 * 1024;
+    private static final long METRICS_INTERVAL_MILLIS = 1000;
+    private static final String JMX_NAME = "pget";
 
     private Options options;
     private CommandLine commandLine;
     private AtomicBoolean finished = new AtomicBoolean(false);
+    // Set when downloading as part of a batch
+    private String name;
+    // Parsed from the checksum options when first needed
+    private Map<String, byte[]> expectedChecksums;
 
     public PGet(String... args) {
         options = new Options();
@@ -55,8 +87,56 @@ public class PGet {
         options.addOption("o", "outfile", true,
                           "(Optional) Name of file to which to output downloaded file.  If not specified, data goes to stdout.");
         options.addOption("t", "threads", true,
-                          "(Optional) Number of concurrent threads to use for download.  Defaults to the number of urls.");
-        options.addOption("c", "checksum", true, "(Optional) SHA-256 checksum to use to validate result (hex encoded)");
+                          "(Optional) Number of concurrent threads to use for download.  Defaults to the number of urls times the number of connections per url.");
+        options.addOption("n", "connections", true,
+                          "(Optional) Number of concurrent connections to make to each url.  Defaults to the number of threads divided by the number of urls, or 1.");
+        options.addOption("m", "memory", true,
+                          "(Optional) Megabytes of memory to use for buffering downloaded data before spilling to disk.  Defaults to "
+                                  + ParallelHttpGetInputStream.DEFAULT_MEMORY_BUDGET / MB + ".");
+        options.addOption("v", "virtual-threads", false,
+                          "(Optional) Run each fetch on a virtual thread of its own (Java 21 and up), with the number of threads (-t) limiting how many run at once.");
+        options.addOption("x", "nio", true,
+                          "(Optional) Fetch http urls with non-blocking I/O driven by the given number of threads, instead of a thread per connection.  Allows for many more connections.");
+        options.addOption("l", "pipeline", true,
+                          "(Optional) With -x, send up to the given number of range requests on each connection without waiting for the responses, so that fewer connections are needed.  Defaults to 1.");
+        options.addOption("S", "streaming", false,
+                          "(Optional) Only fetch a window of chunks ahead of what has been written to stdout, nearest first, adapting it to how fast the data is consumed.  Gets data flowing sooner and more steadily, and keeps memory use bounded.  Ignored with an outfile.");
+        options.addOption("r", "resume", false,
+                          "(Optional) Resume an interrupted download into the outfile, fetching only the parts that are missing.");
+        options.addOption("c", "checksum", true,
+                          "(Optional) Checksum to use to validate result (hex encoded), optionally prefixed with its algorithm as in CRC32C:1a2b3c4d.  May be given more than once.");
+        options.addOption("a", "algorithm", true,
+                          "(Optional) Algorithm of checksums given without one, such as SHA-256, MD5, CRC32 or CRC32C.  Defaults to "
+                                  + SHA_256 + ".");
+        options.addOption("d", "digest", true,
+                          "(Optional) Algorithm with which to calculate a checksum of the result to print, in the same pass as any checksums being validated.  May be given more than once.");
+        options.addOption("p", "pieces", true,
+                          "(Optional) Piece manifest file against which to verify each piece as it arrives.  Pieces that fail are fetched again from a different url.");
+        options.addOption("s", "save-pieces", true,
+                          "(Optional) Write a piece manifest for the downloaded outfile to the given file, once the download has been validated.");
+        options.addOption("b", "batch", true,
+                          "(Optional) Download all files listed in the given manifest instead of the urls, sharing the threads (-t, defaults to "
+                                  + DEFAULT_BATCH_THREADS
+                                  + ") between them.  Each line holds the options and urls for one file, quoted like in a shell, and needs an outfile.");
+        options.addOption("f", "files", true,
+                          "(Optional) Number of files of a batch to download at once.  Defaults to "
+                                  + DEFAULT_BATCH_FILES + ".");
+        options.addOption("k", "cache", true,
+                          "(Optional) Directory of downloads cached by checksum.  A download whose first checksum (-c) is in the cache is copied from it, and a valid download is added to it.  pget processes sharing the cache download the same content only once.");
+        options.addOption("L", "cache-limit", true,
+                          "(Optional) Megabytes that the cache may hold before the least recently used downloads are removed from it.  Defaults to "
+                                  + DEFAULT_CACHE_LIMIT_MB + ".");
+        options.addOption("w", "bandwidth", true,
+                          "(Optional) Kilobytes per second to limit the download to.  For a batch, the limit for all files together, which they share by weight (-W); a file in a batch can also have a limit of its own.");
+        options.addOption("W", "weight", true,
+                          "(Optional) Weight of a file in a batch manifest when sharing the bandwidth (-w) with the other files.  Defaults to 1.");
+        options.addOption("P", "priority", true,
+                          "(Optional) Priority of a file in a batch manifest.  Files with a higher priority are downloaded first.  Defaults to 0.");
+        options.addOption("M", "metrics", true,
+                          "(Optional) File to which to write metrics of the download (or batch) in the Prometheus text format, once a second and when done.");
+        options.addOption("j", "jmx", false,
+                          "(Optional) Register metrics of the download (or batch) as JMX MBeans under "
+                                  + Metrics.DOMAIN + ".");
         try {
             commandLine = new GnuParser().parse(options, args);
         } catch (ParseException pe) {
@@ -69,126 +149,672 @@ public class PGet {
      * Fetch the download per the specified command-line options.
      */
     public int fetch() {
-        String[] urls = commandLine.getArgs();
         if (commandLine.hasOption("help")) {
             printUsage();
             return 0;
+        }
+        Metrics metrics = newMetrics();
+        Thread metricsWriter = null;
+        if (commandLine.hasOption("metrics")) {
+            metricsWriter = writeMetrics(metrics);
+        }
+        try {
+            return fetch(metrics);
+        } finally {
+            if (metrics != null) {
+                stopMetrics(metrics, metricsWriter);
+            }
+        }
+    }
+
+    /**
+     * Fetch the download, or the batch, per the specified command-line options.
+     * 
+     * @param metrics
+     *            metrics to record the download (or batch) in, or null for none
+     * @return
+     */
+    private int fetch(Metrics metrics) {
+        String[] urls = commandLine.getArgs();
+        if (commandLine.hasOption("batch")) {
+            int numberOfThreads = Integer.parseInt(commandLine.getOptionValue("threads",
+                                                                              String.valueOf(DEFAULT_BATCH_THREADS)));
+            int numberOfFiles = Integer.parseInt(commandLine.getOptionValue("files",
+                                                                            String.valueOf(DEFAULT_BATCH_FILES)));
+            ExecutorService executorService = newExecutorService(numberOfThreads);
+            // Each thread uses at most one connection at a time
+            HttpConnectionPool connectionPool = new HttpConnectionPool(numberOfThreads, numberOfThreads,
+                                                                       HttpConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS);
+            BandwidthLimiter bandwidthLimiter = null;
+            if (commandLine.hasOption("bandwidth")) {
+                bandwidthLimiter = new BandwidthLimiter(Long.parseLong(commandLine.getOptionValue("bandwidth")) * KB);
+            }
+            try {
+                Batch batch = new Batch(executorService, connectionPool, bandwidthLimiter, metrics, numberOfFiles);
+                return batch.fetch(new File(commandLine.getOptionValue("batch")));
+            } finally {
+                try {
+                    executorService.shutdown();
+                } finally {
+                    connectionPool.shutdown();
+                }
+            }
         } else if (urls.length == 0) {
-            System.err.println("Please supply at least 1 url");
+            System.err.println(prefix() + "Please supply at least 1 url");
             printUsage();
             return 1;
         } else {
-            boolean valid = true;
-            int numberOfThreads = urls.length;
-            if (commandLine.hasOption("threads")) {
-                numberOfThreads = Integer.parseInt(commandLine.getOptionValue("threads"));
-            }
-            ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+            ExecutorService executorService = newExecutorService(getNumberOfThreads());
             try {
-                valid = doFetch(executorService, urls);
-            } catch (Exception e) {
-                System.err.println(e.getMessage());
-                e.printStackTrace(System.err);
-                return 3;
+                return fetch(executorService, null, null, metrics);
             } finally {
                 executorService.shutdown();
             }
-            return valid ? 0 : 2;
         }
     }
 
+    /**
+     * Fetch the download per the specified command-line options on the given ExecutorService.
+     * 
+     * @param executorService
+     * @param connectionPool
+     *            shared pool of connections to use, or null for one of the download's own
+     * @param bandwidthLimiter
+     *            limiter to take a share of, or null if the download is only limited by its own options
+     * @param metrics
+     *            metrics to record the download in, or null for none
+     * @return
+     */
+    int fetch(ExecutorService executorService, HttpConnectionPool connectionPool, BandwidthLimiter bandwidthLimiter,
+            Metrics metrics) {
+        String[] urls = commandLine.getArgs();
+        boolean valid = true;
+        int numberOfThreads = getNumberOfThreads();
+        int connectionsPerUrl = 0;
+        if (commandLine.hasOption("connections")) {
+            connectionsPerUrl = Integer.parseInt(commandLine.getOptionValue("connections"));
+        }
+        if (connectionsPerUrl == 0) {
+            connectionsPerUrl = Math.max(1, numberOfThreads / urls.length);
+        }
+        ParallelHttpGetOptions fetchOptions = new ParallelHttpGetOptions();
+        fetchOptions.setConnectionsPerMirror(connectionsPerUrl);
+        fetchOptions.setResume(commandLine.hasOption("resume"));
+        fetchOptions.setConnectionPool(connectionPool);
+        fetchOptions.setMetrics(metrics);
+        BandwidthLimiter.Share bandwidthShare = null;
+        if (bandwidthLimiter != null || commandLine.hasOption("bandwidth")) {
+            double weight = Double.parseDouble(commandLine.getOptionValue("weight", "1"));
+            bandwidthShare = (bandwidthLimiter != null ? bandwidthLimiter : new BandwidthLimiter(0)).newShare(weight);
+            if (commandLine.hasOption("bandwidth")) {
+                bandwidthShare.setBytesPerSecond(Long.parseLong(commandLine.getOptionValue("bandwidth")) * KB);
+            }
+            fetchOptions.setBandwidthShare(bandwidthShare);
+        }
+        fetchOptions.setStreaming(commandLine.hasOption("streaming"));
+        if (commandLine.hasOption("nio")) {
+            fetchOptions.setNonBlocking(true);
+            fetchOptions.setSelectorThreads(Integer.parseInt(commandLine.getOptionValue("nio")));
+        }
+        if (commandLine.hasOption("pipeline")) {
+            fetchOptions.setPipelineDepth(Integer.parseInt(commandLine.getOptionValue("pipeline")));
+        }
+        try {
+            if (commandLine.hasOption("pieces")) {
+                fetchOptions.setPieceManifest(PieceManifest.read(new File(commandLine.getOptionValue("pieces"))));
+            }
+            valid = doFetch(executorService, fetchOptions, urls);
+        } catch (Exception e) {
+            System.err.println(prefix() + e.getMessage());
+            e.printStackTrace(System.err);
+            return 3;
+        } finally {
+            if (bandwidthShare != null) {
+                bandwidthShare.close();
+            }
+        }
+        return valid ? 0 : 2;
+    }
+
+    /**
+     * Returns the number of threads to download with, which is also what the number of connections per url is
+     * derived from if it isn't given.
+     * 
+     * @return
+     */
+    private int getNumberOfThreads() {
+        String[] urls = commandLine.getArgs();
+        int connectionsPerUrl = 0;
+        if (commandLine.hasOption("connections")) {
+            connectionsPerUrl = Integer.parseInt(commandLine.getOptionValue("connections"));
+        }
+        int numberOfThreads = urls.length * Math.max(1, connectionsPerUrl);
+        if (commandLine.hasOption("nio")) {
+            // Threads are only needed for looking up the urls, and for any that aren't http
+            numberOfThreads = urls.length;
+        }
+        if (commandLine.hasOption("threads")) {
+            numberOfThreads = Integer.parseInt(commandLine.getOptionValue("threads"));
+        }
+        return numberOfThreads;
+    }
+
+    /**
+     * Check that these options can be downloaded as an entry of a batch, which from then on prefixes its messages
+     * with the outfile and doesn't report progress.
+     * 
+     * @throws IllegalArgumentException
+     *             if there are no urls or no outfile
+     */
+    void checkBatchEntry() {
+        if (commandLine.getArgs().length == 0) {
+            throw new IllegalArgumentException("Please supply at least 1 url");
+        }
+        if (!commandLine.hasOption("outfile")) {
+            throw new IllegalArgumentException("Please supply an outfile");
+        }
+        if (commandLine.hasOption("batch")) {
+            throw new IllegalArgumentException("Batches can't be nested");
+        }
+        name = commandLine.getOptionValue("outfile");
+    }
+
+    /**
+     * Returns the outfile of a batch entry, or null if this isn't one.
+     * 
+     * @return
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the priority of a batch entry, higher meaning sooner.
+     * 
+     * @return
+     */
+    int getPriority() {
+        return Integer.parseInt(commandLine.getOptionValue("priority", "0"));
+    }
+
+    /**
+     * Create the ExecutorService on which to fetch, running up to the given number of tasks at once.
+     * 
+     * @param numberOfThreads
+     * @return
+     */
+    private ExecutorService newExecutorService(int numberOfThreads) {
+        if (commandLine.hasOption("virtual-threads")) {
+            if (VirtualThreads.isAvailable()) {
+                return VirtualThreads.newExecutor(numberOfThreads);
+            }
+            System.err.println(prefix() + "WARNING: Virtual threads not supported by this JVM, using platform threads instead");
+        }
+        return Executors.newFixedThreadPool(numberOfThreads);
+    }
+
     /**
      * Perform the I/O activity for the download.
      * 
      * @param executorService
+     * @param fetchOptions
+     * @param urls
+     * @return
+     * @throws IOException
+     */
+    private boolean doFetch(ExecutorService executorService, ParallelHttpGetOptions fetchOptions, String[] urls)
+            throws IOException {
+        DownloadCache.Entry cacheEntry = lockCacheEntry();
+        try {
+            if (commandLine.hasOption("outfile")) {
+                return doFetchToFile(executorService, fetchOptions, urls, cacheEntry);
+            } else {
+                return doFetchToStandardOut(executorService, fetchOptions, urls, cacheEntry);
+            }
+        } finally {
+            if (cacheEntry != null) {
+                cacheEntry.release();
+            }
+        }
+    }
+
+    /**
+     * Lock the cache entry for the first checksum, if there's a cache. The lock is held for the whole download, so that
+     * other pget processes fetching the same content wait for this one to add it to the cache.
+     * 
+     * @return the locked entry, or null if there's no cache or nothing to identify the content by
+     * @throws IOException
+     */
+    private DownloadCache.Entry lockCacheEntry() throws IOException {
+        if (!commandLine.hasOption("cache")) {
+            return null;
+        }
+        Map<String, byte[]> checksums = expectedChecksums();
+        if (checksums.isEmpty()) {
+            System.err.println(prefix() + "WARNING: Downloads can only be cached by checksum, not using cache");
+            return null;
+        }
+        long limit = Long.parseLong(commandLine.getOptionValue("cache-limit", String.valueOf(DEFAULT_CACHE_LIMIT_MB)));
+        DownloadCache cache = new DownloadCache(new File(commandLine.getOptionValue("cache")), limit * MB);
+        Map.Entry<String, byte[]> first = checksums.entrySet().iterator().next();
+        return cache.lock(first.getKey(), first.getValue());
+    }
+
+    /**
+     * Copy the download into a file from the cache, or else fetch it straight into the file, then checksum the file if
+     * necessary. A valid download is added to the cache.
+     * 
+     * @param executorService
+     * @param fetchOptions
      * @param urls
+     * @param cacheEntry
+     *            the locked cache entry, or null if not caching
      * @return
      * @throws IOException
      */
-    private boolean doFetch(ExecutorService executorService, String[] urls) throws IOException {
+    private boolean doFetchToFile(ExecutorService executorService, ParallelHttpGetOptions fetchOptions,
+            String[] urls, DownloadCache.Entry cacheEntry) throws IOException {
+        File file = new File(commandLine.getOptionValue("outfile"));
+        boolean cached = cacheEntry != null && cacheEntry.exists();
         boolean valid = false;
-        ParallelHttpGetInputStream parallelStream = new ParallelHttpGetInputStream(executorService, urls);
-        ValidatingInputStream stream = parallelStream;
-        if (commandLine.hasOption("checksum")) {
-            // Add SHA-256 checksumming
+        if (cached) {
+            cacheEntry.copyTo(file);
+            valid = checkFile(file);
+            if (!valid) {
+                System.err.println(prefix() + "WARNING: Cached copy is corrupt, removing it from the cache");
+                cacheEntry.remove();
+                cached = false;
+            }
+        }
+        if (!cached) {
+            ParallelHttpGetFile download = new ParallelHttpGetFile(executorService, file, fetchOptions, urls);
             try {
-                stream = new ChecksummingInputStream(parallelStream, SHA_256,
-                                                     Hex.decodeHex(commandLine.getOptionValue("checksum")
-                                                                              .toCharArray()));
-            } catch (NoSuchAlgorithmException nsae) {
-                System.err.println("WARNING: SHA-256 checksum not supported on this system, skipping checksumming");
-            } catch (DecoderException de) {
-                System.err.println("WARNING: Invalid SHA-256 checksum (not Hex encoded?), skipping checksumming");
+                printWarnings(download.getMirrorFailures());
+                if (name == null) {
+                    trackProgress(download);
+                }
+                download.fetch();
+            } finally {
+                finished.set(true);
+            }
+            valid = checkValid(download);
+            valid = checkFile(file) && valid;
+            if (valid && cacheEntry != null) {
+                try {
+                    cacheEntry.put(file);
+                } catch (IOException ioe) {
+                    System.err.println(prefix() + "WARNING: Unable to add download to cache: " + ioe.getMessage());
+                }
             }
         }
+        if (valid && commandLine.hasOption("save-pieces")) {
+            savePieces(file, fetchOptions);
+        }
+        return valid;
+    }
+
+    /**
+     * Checksum the given file, if necessary.
+     * 
+     * @param file
+     * @return whether all checksums matched
+     * @throws IOException
+     */
+    private boolean checkFile(File file) throws IOException {
+        boolean valid = true;
+        if (commandLine.hasOption("checksum") || commandLine.hasOption("digest")) {
+            InputStream fileStream = new FileInputStream(file);
+            ChecksummingInputStream checksummingStream = null;
+            try {
+                checksummingStream = checksumming(fileStream);
+                if (checksummingStream != null) {
+                    IOUtils.copyLarge(checksummingStream, NullOutputStream.NULL_OUTPUT_STREAM,
+                                      new byte[COPY_BUFFER_SIZE]);
+                    valid = checkValid(checksummingStream);
+                    printDigests(checksummingStream);
+                }
+            } finally {
+                // Closing the checksumming stream also stops its digest thread, if any, and closes the file
+                if (checksummingStream != null) {
+                    checksummingStream.close();
+                } else {
+                    fileStream.close();
+                }
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Fetch the download, or read it from the cache, and write to stdout. A valid download is added to the cache.
+     * 
+     * @param executorService
+     * @param fetchOptions
+     * @param urls
+     * @param cacheEntry
+     *            the locked cache entry, or null if not caching
+     * @return
+     * @throws IOException
+     */
+    private boolean doFetchToStandardOut(ExecutorService executorService, ParallelHttpGetOptions fetchOptions,
+            String[] urls, DownloadCache.Entry cacheEntry) throws IOException {
+        if (commandLine.hasOption("save-pieces")) {
+            System.err.println(prefix() + "WARNING: Piece manifests can only be saved for an outfile, not saving piece manifest");
+        }
+        if (cacheEntry != null && cacheEntry.exists()) {
+            // There are checksums, or there would be no cache entry
+            ChecksummingInputStream cachedStream = checksumming(cacheEntry.open());
+            try {
+                IOUtils.copyLarge(cachedStream, System.out, new byte[COPY_BUFFER_SIZE]);
+                boolean valid = checkValid(cachedStream);
+                printDigests(cachedStream);
+                if (!valid) {
+                    System.err.println(prefix() + "WARNING: Cached copy is corrupt, removing it from the cache");
+                    cacheEntry.remove();
+                }
+                return valid;
+            } finally {
+                cachedStream.close();
+            }
+        }
+        long memoryBudget = ParallelHttpGetInputStream.DEFAULT_MEMORY_BUDGET;
+        if (commandLine.hasOption("memory")) {
+            memoryBudget = Long.parseLong(commandLine.getOptionValue("memory")) * MB;
+        }
+        fetchOptions.setMemoryBudget(new MemoryBudget(memoryBudget));
+        ParallelHttpGetInputStream parallelStream = new ParallelHttpGetInputStream(executorService, fetchOptions,
+                                                                                   urls);
+        InputStream source = parallelStream;
+        File cacheFile = null;
+        if (cacheEntry != null) {
+            // Keep a copy to add to the cache once it's been validated
+            cacheFile = cacheEntry.createTempFile();
+            source = new TeeInputStream(parallelStream, new FileOutputStream(cacheFile), true);
+        }
+        ChecksummingInputStream checksummingStream = checksumming(source);
+        ValidatingInputStream stream = checksummingStream != null ? checksummingStream : parallelStream;
         try {
+            printWarnings(parallelStream.getMirrorFailures());
             trackProgress(parallelStream);
-            if (commandLine.hasOption("outfile")) {
-                doFetchToFile(stream);
+            if (checksummingStream == null) {
+                // Nothing needs to see the data, so write it to standard out straight from where it's buffered
+                WritableByteChannel out = new FileOutputStream(FileDescriptor.out).getChannel();
+                while (parallelStream.readTo(out) != -1) {
+                    // Keep going
+                }
             } else {
-                doFetchToStandardOut(stream);
+                // Write to standard out
+                IOUtils.copyLarge(stream, System.out, new byte[COPY_BUFFER_SIZE]);
             }
-            valid = stream.isValid();
-            if (!valid) {
-                for (String errorMessage : stream.getValidationErrors()) {
-                    System.err.println("WARNING: " + errorMessage);
+            boolean valid = checkValid(stream);
+            if (checksummingStream != null) {
+                printDigests(checksummingStream);
+            }
+            if (valid && cacheFile != null) {
+                // Closes the copy
+                checksummingStream.close();
+                try {
+                    cacheEntry.commit(cacheFile);
+                    cacheFile = null;
+                } catch (IOException ioe) {
+                    System.err.println(prefix() + "WARNING: Unable to add download to cache: " + ioe.getMessage());
                 }
             }
+            return valid;
         } finally {
             try {
                 finished.set(true);
             } finally {
-                stream.close();
+                try {
+                    stream.close();
+                } finally {
+                    if (cacheFile != null) {
+                        cacheFile.delete();
+                    }
+                }
             }
         }
-        return valid;
     }
 
     /**
-     * Fetch the download into a file.
+     * Wrap the given stream with checksumming for all of the checksums and digests that were supplied, calculated in a
+     * single pass. The checksums are calculated on a thread of their own so that they don't hold up writing the data.
      * 
      * @param stream
-     * @throws IOException
+     * @return the checksumming stream, or null if there's nothing to check
      */
-    private void doFetchToFile(ValidatingInputStream stream) throws IOException {
-        // Write to out file
-        File file = new File(commandLine.getOptionValue("outfile"));
-        if (file.exists()) {
-            file.delete();
+    private ChecksummingInputStream checksumming(InputStream stream) {
+        Map<String, byte[]> expectedChecksums = new LinkedHashMap<String, byte[]>(expectedChecksums());
+        String[] digests = commandLine.getOptionValues("digest");
+        if (digests != null) {
+            for (String algorithm : digests) {
+                if (!expectedChecksums.containsKey(algorithm) && supported(algorithm)) {
+                    expectedChecksums.put(algorithm, null);
+                }
+            }
+        }
+        if (expectedChecksums.isEmpty()) {
+            return null;
         }
-        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file));
         try {
-            IOUtils.copy(stream, out);
-        } finally {
-            out.close();
+            // Pipelining only pays off if the digest thread has a core of its own, otherwise it's slower than inline
+            boolean pipelined = Runtime.getRuntime().availableProcessors() > 1;
+            return new ChecksummingInputStream(stream, expectedChecksums, pipelined);
+        } catch (NoSuchAlgorithmException nsae) {
+            // Already checked
+            throw new IllegalStateException(nsae);
         }
     }
 
     /**
-     * Fetch the download and write to stdout.
+     * Returns the checksums given with --checksum, by algorithm, leaving out (with a warning) any that can't be used.
+     * 
+     * @return
+     */
+    private Map<String, byte[]> expectedChecksums() {
+        if (expectedChecksums == null) {
+            expectedChecksums = new LinkedHashMap<String, byte[]>();
+            String defaultAlgorithm = commandLine.getOptionValue("algorithm", SHA_256);
+            String[] checksums = commandLine.getOptionValues("checksum");
+            if (checksums != null) {
+                for (String checksum : checksums) {
+                    int separator = checksum.indexOf(':');
+                    String algorithm = separator == -1 ? defaultAlgorithm : checksum.substring(0, separator);
+                    if (supported(algorithm)) {
+                        try {
+                            expectedChecksums.put(algorithm, Hex.decodeHex(checksum.substring(separator + 1)
+                                                                                   .toCharArray()));
+                        } catch (DecoderException de) {
+                            System.err.println(prefix() + "WARNING: Invalid " + algorithm
+                                    + " checksum (not Hex encoded?), skipping checksumming");
+                        }
+                    }
+                }
+            }
+        }
+        return expectedChecksums;
+    }
+
+    private boolean supported(String algorithm) {
+        try {
+            Digests.getInstance(algorithm);
+            return true;
+        } catch (NoSuchAlgorithmException nsae) {
+            System.err.println(prefix() + "WARNING: " + algorithm
+                    + " checksum not supported on this system, skipping checksumming");
+            return false;
+        }
+    }
+
+    /**
+     * Print the checksums that were asked for with --digest.
      * 
      * @param stream
+     */
+    private void printDigests(ChecksummingInputStream stream) {
+        String[] digests = commandLine.getOptionValues("digest");
+        Map<String, byte[]> checksums = stream.getChecksums();
+        if (digests != null && checksums != null) {
+            for (String algorithm : digests) {
+                byte[] checksum = checksums.get(algorithm);
+                if (checksum != null) {
+                    System.err.println(prefix() + algorithm + ": " + Hex.encodeHexString(checksum));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a piece manifest for the downloaded file, using the same pieces as the manifest it was verified against, if
+     * any.
+     * 
+     * @param file
+     * @param fetchOptions
      * @throws IOException
      */
-    private void doFetchToStandardOut(ValidatingInputStream stream) throws IOException {
-        // Write to standard out
-        IOUtils.copy(stream, System.out);
+    private void savePieces(File file, ParallelHttpGetOptions fetchOptions) throws IOException {
+        PieceManifest verifiedAgainst = fetchOptions.getPieceManifest();
+        String algorithm = verifiedAgainst != null ? verifiedAgainst.getAlgorithm() : PieceManifest.DEFAULT_ALGORITHM;
+        long pieceSize = verifiedAgainst != null ? verifiedAgainst.getPieceSize() : PieceManifest.DEFAULT_PIECE_SIZE;
+        try {
+            PieceManifest manifest = PieceManifest.compute(file, algorithm, pieceSize);
+            manifest.write(new File(commandLine.getOptionValue("save-pieces")));
+        } catch (NoSuchAlgorithmException nsae) {
+            System.err.println(prefix() + "WARNING: " + algorithm
+                    + " not supported on this system, not saving piece manifest");
+        }
+    }
+
+    private void printWarnings(List<String> warnings) {
+        for (String warning : warnings) {
+            System.err.println(prefix() + "WARNING: " + warning);
+        }
+    }
+
+    /**
+     * Returns what to start messages about this download with, to tell them apart from those of others in the same
+     * batch.
+     * 
+     * @return
+     */
+    private String prefix() {
+        return name != null ? name + ": " : "";
+    }
+
+    /**
+     * Check whether the given result is valid, printing any validation errors.
+     * 
+     * @param validatable
+     * @return
+     */
+    private boolean checkValid(IValidatable validatable) {
+        boolean valid = validatable.isValid();
+        if (!valid) {
+            printWarnings(validatable.getValidationErrors());
+        }
+        return valid;
+    }
+
+    /**
+     * Create the metrics to record the download (or batch) in, registering them with JMX if asked to.
+     * 
+     * @return the metrics, or null if they're neither written to a file nor registered with JMX
+     */
+    private Metrics newMetrics() {
+        if (!commandLine.hasOption("metrics") && !commandLine.hasOption("jmx")) {
+            return null;
+        }
+        Metrics metrics = new Metrics();
+        if (commandLine.hasOption("jmx")) {
+            try {
+                metrics.register(JMX_NAME);
+            } catch (IOException ioe) {
+                System.err.println(prefix() + "WARNING: " + ioe.getMessage());
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Asynchronously write the metrics to the metrics file once a second, until interrupted.
+     * 
+     * @param metrics
+     * @return the thread writing the metrics
+     */
+    private Thread writeMetrics(final Metrics metrics) {
+        final File file = new File(commandLine.getOptionValue("metrics"));
+        Thread writer = new Thread("pget-metrics-writer") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(METRICS_INTERVAL_MILLIS);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                    writeMetrics(metrics, file);
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * Stop writing the metrics, write them one last time and unregister them from JMX.
+     * 
+     * @param metrics
+     * @param metricsWriter
+     *            the thread writing the metrics, or null if they're not written to a file
+     */
+    private void stopMetrics(Metrics metrics, Thread metricsWriter) {
+        metrics.unregister();
+        if (metricsWriter != null) {
+            metricsWriter.interrupt();
+            try {
+                metricsWriter.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            writeMetrics(metrics, new File(commandLine.getOptionValue("metrics")));
+        }
+    }
+
+    private void writeMetrics(Metrics metrics, File file) {
+        try {
+            metrics.writeText(file);
+        } catch (IOException ioe) {
+            System.err.println(prefix() + "WARNING: Unable to write metrics: " + ioe.getMessage());
+        }
     }
 
     /**
      * Asynchronously track the progress of the download.
      * 
-     * @param stream
+     * @param reporter
      */
-    private void trackProgress(final ParallelHttpGetInputStream stream) {
+    private void trackProgress(final IProgressReporter reporter) {
         new Thread() {
             @Override
             public void run() {
                 IProgressRecorder recorder = new IProgressRecorder() {
                     @Override
                     public void record(String name, String category, double total, double progress) {
-                        System.err.println(String.format("%1$s (%2$s) %3$.0f %%", name, category, 100 * progress
-                                / total));
+                        if (IProgressReporter.THROUGHPUT.equals(category)) {
+                            System.err.println(String.format("%1$s (%2$s) %3$.2f MB/s", name, category, progress
+                                    / MB));
+                        } else if (IProgressReporter.TIME_TO_FIRST_BYTE.equals(category)) {
+                            System.err.println(String.format("%1$s (%2$s) %3$.0f ms", name, category, progress));
+                        } else if (IProgressReporter.RETRIES.equals(category)
+                                || IProgressReporter.FAILED_FETCHES.equals(category)
+                                || IProgressReporter.BAD_PIECES.equals(category)) {
+                            System.err.println(String.format("%1$s (%2$s) %3$.0f of %4$.0f", name, category,
+                                                             progress, total));
+                        } else {
+                            System.err.println(String.format("%1$s (%2$s) %3$.0f %%", name, category, 100 * progress
+                                    / total));
+                        }
                     }
                 };
                 while (!finished.get()) {
@@ -199,7 +825,7 @@ public class PGet {
                         break;
                     }
                     System.err.println("\n\n");
-                    stream.reportProgress(recorder);
+                    reporter.reportProgress(recorder);
                 }
             }
         }.start();
@@ -0,0 +1,560 @@
+package org.oxcart.streams;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * A limit on the bandwidth used by one or more downloads, shared out fairly between them. Each download gets a
+ * {@link Share} with a weight (see {@link ParallelHttpGetOptions#setBandwidthShare(Share)}), and its mirrors get shares
+ * of that share. While the link is contended, every share gets bandwidth in proportion to its weight, and bandwidth
+ * that a share doesn't use goes to the others. The overall limit is enforced with a token bucket, and any share can
+ * have a limit of its own as well. All limits and weights can be changed while downloads are running.
+ * </p>
+ *
+ * <p>
+ * Data is accounted for before it is read, with {@link Share#acquireUpTo(int)}, which waits until the share's turn has
+ * come and then grants as much of a read as fits within the limits right now, so that the limits are a ceiling on how
+ * fast data arrives rather than an average. {@link Share#acquire(int)} instead accounts for data that has already been
+ * read, which can put the share into debt. Bandwidth is taken in turn by start-time fair queueing: each request
+ * is tagged with the virtual time at which its share is due, which advances by the size of the request divided by the
+ * share's weight, and the waiting request with the earliest tag goes first.
+ * </p>
+ *
+ * <p>
+ * Within a download, bandwidth is split between the mirrors that have used any in the last second, so that a mirror
+ * that has been given up on doesn't hold back the others.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class BandwidthLimiter {
+    /**
+     * Longest a request waits before checking again whether it can go, so that changes to the limits take effect
+     * promptly.
+     */
+    private static final long MAX_WAIT_MILLIS = 100;
+    /**
+     * How long a share counts as using bandwidth after it last did.
+     */
+    private static final long ACTIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * How much unused bandwidth can be saved up, in seconds' worth.
+     */
+    private static final double BURST_SECONDS = 0.1;
+
+    private final TokenBucket bucket;
+    // Not a monitor, so that a virtual thread waiting for bandwidth can let go of its carrier thread
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // The following are guarded by lock
+    private final List<Request> waiting = new ArrayList<Request>();
+    private double virtualTime = 0;
+    private long requests = 0;
+    private int limitedShares = 0;
+
+    /**
+     * @param bytesPerSecond
+     *            the overall limit, or 0 for no limit
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bucket = new TokenBucket(bytesPerSecond, System.nanoTime());
+    }
+
+    public long getBytesPerSecond() {
+        lock.lock();
+        try {
+            return bucket.bytesPerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Change the overall limit.
+     *
+     * @param bytesPerSecond
+     *            the new limit, or 0 for no limit
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        lock.lock();
+        try {
+            bucket.setBytesPerSecond(bytesPerSecond, System.nanoTime());
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Create a share of the bandwidth, for example for a download.
+     *
+     * @param weight
+     *            how much bandwidth the share gets relative to the others
+     * @return
+     */
+    public Share newShare(double weight) {
+        return new Share(null, weight);
+    }
+
+    /**
+     * A share of the bandwidth, which can be split further into shares of its own. All methods can be called from any
+     * thread.
+     */
+    public class Share {
+        private final Share parent;
+        // The following are guarded by the BandwidthLimiter's lock
+        private final List<Share> children = new ArrayList<Share>();
+        private final TokenBucket bucket = new TokenBucket(0, System.nanoTime());
+        private double weight;
+        private double finishTag = 0;
+        private long lastUsed;
+        private boolean closed = false;
+
+        private Share(Share parent, double weight) {
+            checkWeight(weight);
+            this.parent = parent;
+            this.weight = weight;
+            this.lastUsed = System.nanoTime() - ACTIVE_NANOS;
+        }
+
+        /**
+         * Create a share of this share, for example for a mirror of a download.
+         *
+         * @param weight
+         *            how much bandwidth the new share gets relative to the other shares of this share
+         * @return
+         */
+        public Share newShare(double weight) {
+            lock.lock();
+            try {
+                Share child = new Share(this, weight);
+                children.add(child);
+                return child;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public double getWeight() {
+            lock.lock();
+            try {
+                return weight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void setWeight(double weight) {
+            checkWeight(weight);
+            lock.lock();
+            try {
+                this.weight = weight;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long getBytesPerSecond() {
+            lock.lock();
+            try {
+                return bucket.bytesPerSecond;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Limit this share (including any shares of it) on top of the overall limit.
+         *
+         * @param bytesPerSecond
+         *            the limit, or 0 for no limit of its own
+         */
+        public void setBytesPerSecond(long bytesPerSecond) {
+            lock.lock();
+            try {
+                if (!closed) {
+                    limitedShares += (bytesPerSecond > 0 ? 1 : 0) - (bucket.bytesPerSecond > 0 ? 1 : 0);
+                }
+                bucket.setBytesPerSecond(bytesPerSecond, System.nanoTime());
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Account for the given number of bytes having been read, waiting until the share's turn has come and they fit
+         * within the limits.
+         *
+         * @param bytes
+         * @throws InterruptedIOException
+         *             if interrupted while waiting
+         */
+        public void acquire(int bytes) throws InterruptedIOException {
+            lock.lock();
+            try {
+                if (closed || isUnlimited()) {
+                    return;
+                }
+                long now = System.nanoTime();
+                Request request = new Request(this, startTag(), requests++);
+                finishTag = request.startTag + bytes / effectiveWeight(now);
+                now = awaitTurn(request, now);
+                take(request.startTag, bytes, now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait until the share's turn has come and there is bandwidth left, then take as much of it as is left, up to
+         * the given number of bytes. For callers that account for data before reading it, which can then read no more
+         * than they were granted and {@link #giveBack(int)} whatever they didn't read.
+         *
+         * @param maxBytes
+         * @return the number of bytes granted, at least 1
+         * @throws InterruptedIOException
+         *             if interrupted while waiting
+         */
+        public int acquireUpTo(int maxBytes) throws InterruptedIOException {
+            lock.lock();
+            try {
+                if (closed || isUnlimited()) {
+                    return maxBytes;
+                }
+                long now = System.nanoTime();
+                Request request = new Request(this, startTag(), requests++);
+                // Tagged as if it were granted everything, until we know how much it gets
+                double tentativeFinishTag = request.startTag + maxBytes / effectiveWeight(now);
+                finishTag = tentativeFinishTag;
+                now = awaitTurn(request, now);
+                if (closed || isUnlimited()) {
+                    return maxBytes;
+                }
+                int bytes = Math.min(maxBytes, availableBytes());
+                if (finishTag == tentativeFinishTag) {
+                    finishTag = request.startTag + bytes / effectiveWeight(now);
+                }
+                take(request.startTag, bytes, now);
+                return bytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Return bandwidth granted by {@link #acquireUpTo(int)} that wasn't used after all.
+         *
+         * @param bytes
+         */
+        public void giveBack(int bytes) {
+            lock.lock();
+            try {
+                BandwidthLimiter.this.bucket.giveBack(bytes);
+                for (Share share = this; share != null; share = share.parent) {
+                    share.bucket.giveBack(bytes);
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Whether {@link #acquire(int)} would go ahead right now. For callers that can't wait, which can check this
+         * before reading, read no more than {@link #getAvailableBytes()} and then account for what they read with
+         * {@link #consume(int)}.
+         *
+         * @return
+         */
+        public boolean isReady() {
+            lock.lock();
+            try {
+                if (closed || isUnlimited()) {
+                    return true;
+                }
+                long now = System.nanoTime();
+                return canGo(new Request(this, startTag(), requests), now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Returns how many bytes the share could take right now without going over any of its limits, or
+         * Integer.MAX_VALUE if it isn't limited.
+         *
+         * @return
+         */
+        public int getAvailableBytes() {
+            lock.lock();
+            try {
+                if (closed || isUnlimited()) {
+                    return Integer.MAX_VALUE;
+                }
+                long now = System.nanoTime();
+                BandwidthLimiter.this.bucket.refill(now);
+                for (Share share = this; share != null; share = share.parent) {
+                    share.bucket.refill(now);
+                }
+                return Math.max(0, availableBytes());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Account for the given number of bytes having been read, without waiting. The share then has to wait its turn
+         * (see {@link #isReady()}) until the limits have caught up.
+         *
+         * @param bytes
+         */
+        public void consume(int bytes) {
+            lock.lock();
+            try {
+                if (closed || isUnlimited()) {
+                    return;
+                }
+                long now = System.nanoTime();
+                double startTag = startTag();
+                finishTag = startTag + bytes / effectiveWeight(now);
+                take(startTag, bytes, now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Stop using this share and any shares of it.
+         */
+        public void close() {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (bucket.bytesPerSecond > 0) {
+                    limitedShares -= 1;
+                }
+                for (Share child : new ArrayList<Share>(children)) {
+                    child.close();
+                }
+                if (parent != null) {
+                    parent.children.remove(this);
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private double startTag() {
+            return Math.max(virtualTime, finishTag);
+        }
+
+        /**
+         * Wait until the given request can go ahead, or until the share is closed or the limits are lifted. Must be
+         * called while holding lock.
+         *
+         * @return the time at which the request went ahead
+         */
+        private long awaitTurn(Request request, long now) throws InterruptedIOException {
+            waiting.add(request);
+            try {
+                // Closing the share or lifting the limits lets waiting requests go
+                while (!closed && !isUnlimited() && !canGo(request, now)) {
+                    long waitNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), nanosUntilTokens());
+                    changed.await(Math.min(MAX_WAIT_MILLIS, TimeUnit.NANOSECONDS.toMillis(waitNanos)),
+                                  TimeUnit.MILLISECONDS);
+                    now = System.nanoTime();
+                }
+                return now;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            } finally {
+                waiting.remove(request);
+                changed.signalAll();
+            }
+        }
+
+        /**
+         * Returns the bytes left in the most depleted of the buckets that this share takes from, rounded up, as of
+         * their last refill.
+         */
+        private int availableBytes() {
+            double tokens = BandwidthLimiter.this.bucket.available();
+            for (Share share = this; share != null; share = share.parent) {
+                tokens = Math.min(tokens, share.bucket.available());
+            }
+            return (int) Math.min(Integer.MAX_VALUE, Math.ceil(tokens));
+        }
+
+        /**
+         * Returns the weight of this share relative to all others, with the weight of a share of a share being split
+         * between its siblings that are in use.
+         */
+        private double effectiveWeight(long now) {
+            if (parent == null) {
+                return weight;
+            }
+            double siblingWeights = 0;
+            for (Share sibling : parent.children) {
+                if (sibling == this || now - sibling.lastUsed < ACTIVE_NANOS) {
+                    siblingWeights += sibling.weight;
+                }
+            }
+            return parent.effectiveWeight(now) * weight / siblingWeights;
+        }
+
+        /**
+         * Whether this share and all the shares it's a share of have bandwidth left.
+         */
+        private boolean hasTokens(long now) {
+            for (Share share = this; share != null; share = share.parent) {
+                share.bucket.refill(now);
+                if (!share.bucket.hasTokens()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long nanosUntilTokens() {
+            long nanos = BandwidthLimiter.this.bucket.nanosUntilTokens();
+            for (Share share = this; share != null; share = share.parent) {
+                nanos = Math.max(nanos, share.bucket.nanosUntilTokens());
+            }
+            return nanos;
+        }
+
+        private void take(double startTag, int bytes, long now) {
+            virtualTime = Math.max(virtualTime, startTag);
+            BandwidthLimiter.this.bucket.take(bytes);
+            for (Share share = this; share != null; share = share.parent) {
+                share.bucket.take(bytes);
+                share.lastUsed = now;
+            }
+        }
+    }
+
+    private boolean isUnlimited() {
+        return bucket.bytesPerSecond == 0 && limitedShares == 0;
+    }
+
+    /**
+     * Whether the given request can go ahead: there's bandwidth left for its share, and no other request that could go
+     * ahead is due before it.
+     */
+    private boolean canGo(Request request, long now) {
+        bucket.refill(now);
+        if (!bucket.hasTokens() || !request.share.hasTokens(now)) {
+            return false;
+        }
+        for (Request other : waiting) {
+            if (other != request && other.isBefore(request) && other.share.hasTokens(now)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkWeight(double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("Weight must be positive");
+        }
+    }
+
+    /**
+     * A request for bandwidth that's waiting for its turn.
+     */
+    private static class Request {
+        private final Share share;
+        private final double startTag;
+        private final long sequence;
+
+        private Request(Share share, double startTag, long sequence) {
+            this.share = share;
+            this.startTag = startTag;
+            this.sequence = sequence;
+        }
+
+        private boolean isBefore(Request other) {
+            return startTag < other.startTag || (startTag == other.startTag && sequence < other.sequence);
+        }
+    }
+
+    /**
+     * Bytes that may be transferred right now, filled at a steady rate. Taking more than there are is allowed and
+     * leaves a debt that has to be filled before anything else can be taken.
+     */
+    private static class TokenBucket {
+        private long bytesPerSecond;
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(long bytesPerSecond, long now) {
+            this.lastRefill = now;
+            setBytesPerSecond(bytesPerSecond, now);
+        }
+
+        private void setBytesPerSecond(long bytesPerSecond, long now) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Bandwidth limit must not be negative");
+            }
+            refill(now);
+            boolean wasUnlimited = this.bytesPerSecond == 0;
+            this.bytesPerSecond = bytesPerSecond;
+            if (wasUnlimited || tokens > capacity()) {
+                tokens = capacity();
+            }
+        }
+
+        private double capacity() {
+            return bytesPerSecond * BURST_SECONDS;
+        }
+
+        private void refill(long now) {
+            if (bytesPerSecond > 0) {
+                tokens = Math.min(capacity(), tokens + bytesPerSecond * (now - lastRefill) / 1e9);
+            }
+            lastRefill = now;
+        }
+
+        private boolean hasTokens() {
+            return bytesPerSecond == 0 || tokens > 0;
+        }
+
+        private long nanosUntilTokens() {
+            return hasTokens() ? 0 : (long) (-tokens * 1e9 / bytesPerSecond) + 1;
+        }
+
+        private void take(int bytes) {
+            if (bytesPerSecond > 0) {
+                tokens -= bytes;
+            }
+        }
+
+        private void giveBack(int bytes) {
+            if (bytesPerSecond > 0) {
+                tokens = Math.min(capacity(), tokens + bytes);
+            }
+        }
+
+        /**
+         * Returns the bytes that may be taken without going into debt, infinite without a limit.
+         */
+        private double available() {
+            return bytesPerSecond == 0 ? Double.POSITIVE_INFINITY : tokens;
+        }
+    }
+}
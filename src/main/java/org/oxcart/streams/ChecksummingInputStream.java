@@ -4,21 +4,34 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.codec.binary.Hex;
 
 /**
- * An IValidatingInputStream that wraps another input stream and validates against a provided checksum.
+ * An IValidatingInputStream that wraps another input stream and validates against a provided checksum. Several
+ * checksums with different algorithms (see {@link Digests}) can be calculated in the same pass over the data, each of
+ * them either validated or just made available through {@link #getChecksums()}. Checksums are either calculated inline
+ * as data is read, or in a pipeline on a dedicated thread (see {@link DigestPipeline}), which lets the reader get on
+ * with the data while it is being hashed.
  * 
  * @author ox.to.a.cart /at/ gmail.com
  * 
  */
 public class ChecksummingInputStream extends ValidatingInputStream {
+    private static final int SKIP_BUFFER_SIZE = 64 * 1024;
+
     private InputStream originalStream;
-    private MessageDigest digester;
-    private byte[] expectedChecksum;
+    private List<String> algorithms = new ArrayList<String>();
+    private List<MessageDigest> digesters = new ArrayList<MessageDigest>();
+    private List<byte[]> expectedChecksums = new ArrayList<byte[]>();
+    private DigestPipeline pipeline;
+    private Map<String, byte[]> checksums;
 
     /**
      * Construct a ChecksummingInputStream that wraps the given originalStream and calculates a message digest using the
@@ -30,36 +43,167 @@ public class ChecksummingInputStream extends ValidatingInputStream {
      */
     public ChecksummingInputStream(InputStream originalStream, String digestAlgorithm, byte[] expectedChecksum)
             throws NoSuchAlgorithmException {
+        this(originalStream, digestAlgorithm, expectedChecksum, false);
+    }
+
+    /**
+     * Construct a ChecksummingInputStream that wraps the given originalStream and calculates a message digest using the
+     * specified algorithm, on a dedicated thread if pipelined. A pipelined stream only waits for the digest to catch
+     * up when validating, or when the reader gets too far ahead of it.
+     * 
+     * @param originalStream
+     * @param digestAlgorithm
+     * @param expectedChecksum
+     * @param pipelined
+     * @throws NoSuchAlgorithmException
+     */
+    public ChecksummingInputStream(InputStream originalStream, String digestAlgorithm, byte[] expectedChecksum,
+            boolean pipelined) throws NoSuchAlgorithmException {
+        this(originalStream, Collections.singletonMap(digestAlgorithm, expectedChecksum), pipelined);
+    }
+
+    /**
+     * Construct a ChecksummingInputStream that wraps the given originalStream and calculates a message digest for each
+     * of the given algorithms in a single pass, on a dedicated thread if pipelined.
+     * 
+     * @param originalStream
+     * @param expectedChecksums
+     *            the expected checksum by algorithm, null for checksums that are only calculated and not validated
+     * @param pipelined
+     * @throws NoSuchAlgorithmException
+     */
+    public ChecksummingInputStream(InputStream originalStream, Map<String, byte[]> expectedChecksums, boolean pipelined)
+            throws NoSuchAlgorithmException {
         this.originalStream = originalStream;
-        this.digester = MessageDigest.getInstance(digestAlgorithm);
-        this.expectedChecksum = expectedChecksum;
+        for (Map.Entry<String, byte[]> entry : expectedChecksums.entrySet()) {
+            algorithms.add(entry.getKey());
+            digesters.add(Digests.getInstance(entry.getKey()));
+            this.expectedChecksums.add(entry.getValue());
+        }
+        if (pipelined) {
+            this.pipeline = new DigestPipeline(digesters);
+        }
     }
 
     @Override
     public int read() throws IOException {
         int next = originalStream.read();
         if (next != -1) {
-            digester.update((byte) next);
+            if (pipeline != null) {
+                pipeline.update((byte) next);
+            } else {
+                for (MessageDigest digester : digesters) {
+                    digester.update((byte) next);
+                }
+            }
         }
         return next;
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = originalStream.read(b, off, len);
+        if (read > 0) {
+            if (pipeline != null) {
+                pipeline.update(b, off, read);
+            } else {
+                for (MessageDigest digester : digesters) {
+                    digester.update(b, off, read);
+                }
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Skipped bytes still have to be part of the checksum, so this reads through them.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        byte[] skipBuffer = new byte[(int) Math.min(n, SKIP_BUFFER_SIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(skipBuffer, 0, (int) Math.min(n - skipped, skipBuffer.length));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return originalStream.available();
+    }
+
     @Override
     public void close() throws IOException {
         try {
             super.close();
         } finally {
-            originalStream.close();
+            try {
+                if (pipeline != null) {
+                    pipeline.close();
+                }
+            } finally {
+                originalStream.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the checksum calculated with each algorithm, in the order they were given. Only call this once all data
+     * has been read, after which no more data is included in the checksums.
+     * 
+     * @return the checksums by algorithm, or null if they couldn't be calculated because the stream was closed before
+     *         the pipeline caught up
+     */
+    public Map<String, byte[]> getChecksums() {
+        if (checksums == null) {
+            List<byte[]> digests = new ArrayList<byte[]>();
+            if (pipeline != null) {
+                try {
+                    digests = pipeline.digest();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    digests = null;
+                }
+                if (digests == null) {
+                    return null;
+                }
+            } else {
+                for (MessageDigest digester : digesters) {
+                    digests.add(digester.digest());
+                }
+            }
+            Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+            for (int i = 0; i < algorithms.size(); i++) {
+                result.put(algorithms.get(i), digests.get(i));
+            }
+            checksums = Collections.unmodifiableMap(result);
         }
+        return checksums;
     }
 
     @Override
     protected void collectValidationErrors(List<String> validationErrors) {
-        byte[] actualChecksum = digester.digest();
-        if (!Arrays.equals(expectedChecksum, actualChecksum)) {
-            validationErrors.add(String.format("Checksum failure.\n\nExpected: %1$s\nActual:   %2$s",
-                                               Hex.encodeHexString(expectedChecksum),
-                                               Hex.encodeHexString(actualChecksum)));
+        Map<String, byte[]> actualChecksums = getChecksums();
+        if (actualChecksums == null) {
+            validationErrors.add("Checksum could not be calculated, the stream was closed or interrupted before it was validated");
+            return;
+        }
+        for (int i = 0; i < algorithms.size(); i++) {
+            byte[] expectedChecksum = expectedChecksums.get(i);
+            byte[] actualChecksum = actualChecksums.get(algorithms.get(i));
+            if (expectedChecksum != null && !Arrays.equals(expectedChecksum, actualChecksum)) {
+                validationErrors.add(String.format("%1$s checksum failure.\n\nExpected: %2$s\nActual:   %3$s",
+                                                   algorithms.get(i), Hex.encodeHexString(expectedChecksum),
+                                                   Hex.encodeHexString(actualChecksum)));
+            }
         }
     }
 
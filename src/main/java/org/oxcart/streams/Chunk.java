@@ -0,0 +1,321 @@
+package org.oxcart.streams;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A contiguous range of the content that is fetched with a single range request and written to an
+ * {@link IChunkSink}. The same chunk may be fetched by more than one request at a time when hedging, in which case
+ * whichever request is furthest ahead supplies the next bytes and the data the others receive for bytes already
+ * written is dropped.
+ *
+ * <p>
+ * If the chunk is expected to have a particular hash (see {@link PieceManifest}), its data is hashed as it is written
+ * and checked before the chunk is finished. Data that fails the check is thrown away and the chunk starts over with a
+ * new attempt, after which writes belonging to earlier attempts are ignored.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+class Chunk {
+    private final int index;
+    private final long start;
+    private final long end;
+    private final IChunkSink sink;
+    private final AtomicLong received = new AtomicLong(0);
+    private volatile boolean done = false;
+    private volatile boolean restored = false;
+    // Start of the current low speed window and how much had been received by then
+    private long windowStart;
+    private long windowReceived;
+    // Guarded by lock, which is held while writing to the sink. It isn't a monitor, so that a virtual thread blocked on
+    // the sink can let go of its carrier thread.
+    private final Lock lock = new ReentrantLock();
+    private MessageDigest digest;
+    private byte[] expectedHash;
+    private int attempt = 0;
+    private final Set<MirrorStats> contributors = new HashSet<MirrorStats>();
+    private final Set<MirrorStats> excluded = new HashSet<MirrorStats>();
+
+    /**
+     * @param index
+     *            position of this chunk among all chunks of the content
+     * @param start
+     *            start of range (inclusive)
+     * @param end
+     *            end of range (exclusive)
+     * @param sink
+     */
+    Chunk(int index, long start, long end, IChunkSink sink) {
+        this.index = index;
+        this.start = start;
+        this.end = end;
+        this.sink = sink;
+    }
+
+    /**
+     * Make this chunk check its data against the given hash before finishing.
+     *
+     * @param digest
+     *            digest to hash the data with
+     * @param expectedHash
+     */
+    void expectHash(MessageDigest digest, byte[] expectedHash) {
+        lock.lock();
+        try {
+            this.digest = digest;
+            this.expectedHash = expectedHash;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write data received at the given position within the overall content. Any part of the data that was already
+     * received by another request for this chunk is dropped, as is all of it if it belongs to an earlier attempt.
+     *
+     * @param attempt
+     *            the attempt (see {@link #getAttempt()}) for which the data was requested
+     * @param source
+     *            stats of the mirror that supplied the data
+     * @param position
+     *            must not be past the end of the data received so far
+     * @return the number of bytes that were new
+     * @throws IOException
+     *             if the data would run past the end of the chunk or the sink couldn't take it
+     */
+    int write(int attempt, MirrorStats source, long position, byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            if (attempt != this.attempt) {
+                return 0;
+            }
+            if (position + len > end) {
+                throw new IOException(String.format("Received more data than requested for range %1$s-%2$s",
+                                                    start, end - 1));
+            }
+            long next = start + received.get();
+            if (position > next) {
+                throw new IOException(String.format("Received data at %1$s before data at %2$s", position, next));
+            }
+            int alreadyReceived = (int) Math.min(len, next - position);
+            int newBytes = len - alreadyReceived;
+            if (newBytes > 0 && !done) {
+                sink.write(next, b, off + alreadyReceived, newBytes);
+                if (digest != null) {
+                    digest.update(b, off + alreadyReceived, newBytes);
+                }
+                contributors.add(source);
+                received.addAndGet(newBytes);
+                return newBytes;
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mark the chunk as done and tell the sink. Does nothing if the chunk is already done.
+     *
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        lock.lock();
+        try {
+            if (!done) {
+                done = true;
+                sink.finish();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finish a complete chunk if its data matches the expected hash, if any. Otherwise the data is thrown away and the
+     * chunk starts over with a new attempt, never again to be fetched from the mirrors that supplied the bad data. Does
+     * nothing if the chunk is already done or not complete (anymore).
+     *
+     * @return the mirrors that supplied data that failed the check, empty if there was nothing wrong
+     * @throws IOException
+     */
+    Set<MirrorStats> verifyAndFinish() throws IOException {
+        lock.lock();
+        try {
+            if (done || !isComplete()) {
+                return Collections.emptySet();
+            }
+            if (digest != null && !Arrays.equals(digest.digest(), expectedHash)) {
+                Set<MirrorStats> culprits = new HashSet<MirrorStats>(contributors);
+                excluded.addAll(culprits);
+                contributors.clear();
+                attempt += 1;
+                received.set(0);
+                sink.reset();
+                return culprits;
+            }
+            finish();
+            return Collections.emptySet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether the sink would rather not take any more data right now, see {@link IChunkSink#isBackedUp()}.
+     *
+     * @return
+     */
+    boolean isBackedUp() {
+        return sink.isBackedUp();
+    }
+
+    /**
+     * Whether a reader is waiting for this chunk, see {@link IChunkSink#isNeededNow()}.
+     *
+     * @return
+     */
+    boolean isNeededNow() {
+        return sink.isNeededNow();
+    }
+
+    /**
+     * Mark this chunk as done without fetching it, because its data is already in place from an earlier download.
+     */
+    void restore() {
+        received.set(getLength());
+        restored = true;
+        done = true;
+    }
+
+    void fail(IOException ioe) {
+        lock.lock();
+        try {
+            if (!done) {
+                done = true;
+                sink.fail(ioe);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start a new low speed window, as of the given time.
+     *
+     * @param now
+     *            in nanoseconds
+     */
+    void resetLowSpeedWindow(long now) {
+        lock.lock();
+        try {
+            windowStart = now;
+            windowReceived = received.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check whether this chunk has stalled, meaning that since the current low speed window started it has received
+     * less than lowSpeedLimit bytes/sec over a whole window. A new window starts whenever a whole window's worth of data
+     * has been received.
+     *
+     * @param now
+     *            in nanoseconds
+     * @param lowSpeedLimit
+     *            in bytes/sec
+     * @param windowNanos
+     * @return
+     */
+    boolean isStalled(long now, long lowSpeedLimit, long windowNanos) {
+        lock.lock();
+        try {
+            if (done) {
+                return false;
+            }
+            long receivedInWindow = received.get() - windowReceived;
+            if (receivedInWindow >= lowSpeedLimit * (windowNanos / 1e9)) {
+                resetLowSpeedWindow(now);
+                return false;
+            }
+            return now - windowStart >= windowNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    long getLength() {
+        return end - start;
+    }
+
+    long getReceived() {
+        return received.get();
+    }
+
+    long getRemaining() {
+        return getLength() - received.get();
+    }
+
+    /**
+     * Returns the current attempt at fetching this chunk, which goes up every time its data fails verification.
+     *
+     * @return
+     */
+    int getAttempt() {
+        lock.lock();
+        try {
+            return attempt;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the given mirror supplied data for this chunk that failed verification.
+     *
+     * @param mirror
+     * @return
+     */
+    boolean isExcluded(MirrorStats mirror) {
+        lock.lock();
+        try {
+            return excluded.contains(mirror);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isComplete() {
+        return received.get() == getLength();
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    boolean isRestored() {
+        return restored;
+    }
+}
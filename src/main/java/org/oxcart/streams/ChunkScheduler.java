@@ -0,0 +1,946 @@
+package org.oxcart.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.conn.ConnectionReleaseTrigger;
+
+/**
+ * <p>
+ * Fetches a list of {@link Chunk}s from a set of {@link Resource}s. Each resource gets a worker per connection that
+ * keeps taking the next chunk from a shared queue until the queue is empty, so faster mirrors automatically end up
+ * fetching more of the content. Chunks are handed out in order, which keeps data flowing to readers that consume the
+ * content sequentially. Towards the end of the queue, a mirror leaves chunks to faster mirrors if, going by their
+ * {@link MirrorStats}, they would finish all remaining chunks before it could finish one.
+ * </p>
+ *
+ * <p>
+ * If fetching a chunk fails, whatever was received so far is kept and the rest of the chunk goes back to the front of
+ * the queue, so that the next mirror to take it resumes from the exact byte where the failed fetch stopped. A mirror
+ * whose fetch failed backs off before taking another chunk, and is given up on once it has failed more than
+ * {@link ParallelHttpGetOptions#getMaxRetries()} times in a row. The download only fails once every mirror has been
+ * given up on.
+ * </p>
+ *
+ * <p>
+ * With {@link ParallelHttpGetOptions#isHedging()}, a mirror that would otherwise sit idle duplicates the fetch of a
+ * chunk that has stalled, or of a chunk near the end of the download that it expects to finish sooner than the mirror
+ * fetching it. Whichever fetch completes the chunk first wins and the other one is cancelled.
+ * </p>
+ *
+ * <p>
+ * With a {@link ParallelHttpGetOptions#getPieceManifest()}, each chunk is verified once complete. A chunk that fails
+ * goes back to the front of the queue to be fetched from scratch by a mirror that didn't supply any of the bad data,
+ * and a mirror is given up on once {@link ParallelHttpGetOptions#getMaxBadPieces()} of its pieces have failed.
+ * </p>
+ *
+ * <p>
+ * With {@link ParallelHttpGetOptions#isNonBlocking()}, the workers for http mirrors don't hold a thread. They make
+ * their requests through a {@link NioHttpEngine} and are driven by its callbacks, pausing any chunk that is backed up.
+ * </p>
+ *
+ * <p>
+ * Given a {@link ReadWindow}, chunks are only taken from the queue once they are within the window ahead of the
+ * reader, and workers are woken up when the reader moves on to the next chunk.
+ * </p>
+ *
+ * <p>
+ * The queue is guarded by a {@link ReentrantLock} rather than a monitor, since a virtual thread that waits for the
+ * queue to change while holding a monitor can't let go of its carrier thread (see {@link VirtualThreads}).
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+class ChunkScheduler {
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    /**
+     * How long a worker that has nothing to fetch right now waits before reconsidering, in case nothing else wakes it
+     * up.
+     */
+    private static final long IDLE_RECHECK_MILLIS = 250;
+
+    private final List<Resource> resources;
+    private final List<Chunk> chunks;
+    private final ParallelHttpGetOptions options;
+    private final Lock lock = new ReentrantLock();
+    private final Condition queueChanged = lock.newCondition();
+    // Guarded by lock
+    private final LinkedList<Chunk> pendingChunks;
+    private final List<MirrorStats> allStats = new ArrayList<MirrorStats>();
+    private final AtomicReference<IOException> failure = new AtomicReference<IOException>(null);
+    private final CountDownLatch aborted = new CountDownLatch(1);
+    // Guarded by lock
+    private final Map<Chunk, List<Fetch>> fetchesInFlight = new LinkedHashMap<Chunk, List<Fetch>>();
+    // Guarded by lock, the number of workers that haven't stopped yet
+    private int liveWorkers = 0;
+    // Guarded by lock, non-blocking workers waiting for something to fetch or backing off
+    private final Set<AsyncWorker> idleAsyncWorkers = new LinkedHashSet<AsyncWorker>();
+    private CountDownLatch workersFinished;
+    private NioHttpEngine engine;
+    private ReadWindow window;
+    // Each mirror's share of the download's bandwidth share, if it has one
+    private final Map<Resource, BandwidthLimiter.Share> bandwidthShares =
+            new LinkedHashMap<Resource, BandwidthLimiter.Share>();
+
+    ChunkScheduler(List<Resource> resources, List<Chunk> chunks, ParallelHttpGetOptions options) {
+        this.resources = resources;
+        this.chunks = chunks;
+        this.options = options;
+        this.pendingChunks = new LinkedList<Chunk>(chunks);
+        for (Resource resource : resources) {
+            allStats.add(resource.getStats());
+        }
+    }
+
+    /**
+     * Split content of the given length into chunks per the given options.
+     *
+     * @param contentLength
+     * @param options
+     * @return the start of each chunk followed by the content length, i.e. chunk i spans boundaries[i] (inclusive) to
+     *         boundaries[i + 1] (exclusive)
+     * @throws IOException
+     *             if the content doesn't match the options' piece manifest
+     */
+    static long[] planChunkBoundaries(long contentLength, ParallelHttpGetOptions options) throws IOException {
+        PieceManifest manifest = options.getPieceManifest();
+        if (manifest != null && manifest.getContentLength() != contentLength) {
+            throw new IOException(String.format("Piece manifest is for content of length %1$s, but content length is %2$s",
+                                                manifest.getContentLength(), contentLength));
+        }
+        long chunkSize = options.chunkSizeFor(contentLength);
+        int numberOfChunks = (int) ((contentLength + chunkSize - 1) / chunkSize);
+        long[] boundaries = new long[numberOfChunks + 1];
+        for (int i = 0; i < numberOfChunks; i++) {
+            boundaries[i] = i * chunkSize;
+        }
+        boundaries[numberOfChunks] = contentLength;
+        return boundaries;
+    }
+
+    /**
+     * Make each of the given chunks check its data against its piece hash from the options' piece manifest, if there
+     * is one. The chunks must have been planned with {@link #planChunkBoundaries(long, ParallelHttpGetOptions)}.
+     *
+     * @param chunks
+     * @param options
+     */
+    static void expectPieceHashes(List<Chunk> chunks, ParallelHttpGetOptions options) {
+        PieceManifest manifest = options.getPieceManifest();
+        if (manifest != null) {
+            for (Chunk chunk : chunks) {
+                chunk.expectHash(manifest.newDigest(), manifest.getPieceHash(chunk.getIndex()));
+            }
+        }
+    }
+
+    /**
+     * Start {@link ParallelHttpGetOptions#getConnectionsPerMirror()} workers per resource, on the given
+     * ExecutorService or, for resources that can be fetched with non-blocking I/O if that's enabled, on a
+     * {@link NioHttpEngine} that lasts until all workers have stopped.
+     *
+     * @param executorService
+     * @throws IOException
+     *             if the NioHttpEngine couldn't be started
+     */
+    void start(ExecutorService executorService) throws IOException {
+        int connectionsPerMirror = options.getConnectionsPerMirror();
+        if (options.isNonBlocking()) {
+            for (Resource resource : resources) {
+                if (engine == null && NioHttpEngine.supports(resource.getUrl())) {
+                    engine = new NioHttpEngine(options.getSelectorThreads(), options.getPipelineDepth());
+                }
+            }
+        }
+        if (options.getBandwidthShare() != null) {
+            for (Resource resource : resources) {
+                bandwidthShares.put(resource, options.getBandwidthShare().newShare(1));
+            }
+        }
+        workersFinished = new CountDownLatch(resources.size() * connectionsPerMirror);
+        lock.lock();
+        try {
+            liveWorkers = resources.size() * connectionsPerMirror;
+        } finally {
+            lock.unlock();
+        }
+        // Start the first connection to every mirror before the second to any, in case there aren't enough threads
+        for (int i = 0; i < connectionsPerMirror; i++) {
+            for (Resource resource : resources) {
+                if (engine != null && NioHttpEngine.supports(resource.getUrl())) {
+                    new AsyncWorker(resource).continueAfter(0);
+                } else {
+                    executorService.submit(new Worker(resource));
+                }
+            }
+        }
+    }
+
+    /**
+     * Only fetch chunks within the given window ahead of the reader. Must be called before {@link #start}.
+     *
+     * @param window
+     */
+    void setWindow(ReadWindow window) {
+        this.window = window;
+    }
+
+    /**
+     * Let workers waiting for the reader to make room in the window know that it has moved on to the next chunk.
+     */
+    void readerMoved() {
+        queueChanged();
+    }
+
+    /**
+     * Wait for all workers to finish.
+     *
+     * @throws IOException
+     *             if fetching any of the chunks failed
+     */
+    void await() throws IOException {
+        try {
+            workersFinished.await();
+        } catch (InterruptedException ie) {
+            IOException ioe = new IOException("Interrupted while waiting for chunks to finish: " + ie.getMessage(), ie);
+            abort(ioe);
+            throw ioe;
+        }
+        IOException ioe = failure.get();
+        if (ioe != null) {
+            throw ioe;
+        }
+    }
+
+    /**
+     * Stop all workers, cancelling their fetches, and fail every chunk that isn't done yet.
+     *
+     * @param ioe
+     *            the reason for stopping
+     */
+    void abort(IOException ioe) {
+        if (failure.compareAndSet(null, ioe)) {
+            for (Chunk chunk : chunks) {
+                if (!chunk.isDone()) {
+                    chunk.fail(ioe);
+                }
+            }
+            aborted.countDown();
+            List<Fetch> fetches = new ArrayList<Fetch>();
+            lock.lock();
+            try {
+                for (List<Fetch> fetchesOfChunk : fetchesInFlight.values()) {
+                    fetches.addAll(fetchesOfChunk);
+                }
+                wakeWorkers();
+            } finally {
+                lock.unlock();
+            }
+            for (Fetch fetch : fetches) {
+                fetch.cancel();
+            }
+        }
+    }
+
+    List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * Pick the next chunk for the given resource to fetch. A stalled chunk is hedged first, then the next chunk is taken
+     * from the queue unless it should be left to faster mirrors, and if the queue is empty a straggler may be hedged.
+     * Chunks that failed verification with data from this resource are skipped. Otherwise waits, since chunks that are
+     * still being fetched might yet come back to the queue.
+     *
+     * @param resource
+     * @return the fetch to perform, or null if there are no more chunks that this resource can fetch
+     * @throws InterruptedException
+     */
+    private Fetch nextFetch(Resource resource) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!isFinishedFor(resource)) {
+                Fetch fetch = pollFetch(resource);
+                if (fetch != null) {
+                    return fetch;
+                }
+                queueChanged.await(IDLE_RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pick the next chunk for the given resource to fetch like {@link #nextFetch(Resource)}, but without waiting. Must
+     * be called while holding lock.
+     *
+     * @param resource
+     * @return the fetch to perform, or null if there's nothing for this resource to fetch right now
+     */
+    private Fetch pollFetch(Resource resource) {
+        Chunk chunk = options.isHedging() ? chunkToHedge(resource) : null;
+        if (chunk == null) {
+            Chunk next = nextPendingChunk(resource);
+            if (next != null && (window == null || window.allows(next.getIndex(), allStats, System.nanoTime()))
+                    && !MirrorStats.shouldLeaveToFasterMirrors(resource.getStats(), allStats, next.getLength(),
+                                                               pendingChunks.size())) {
+                pendingChunks.remove(next);
+                chunk = next;
+            }
+        }
+        return chunk == null ? null : startFetch(chunk, resource);
+    }
+
+    /**
+     * Must be called while holding lock.
+     *
+     * @param resource
+     * @return true if the download was aborted, or if there's nothing left that this resource could fetch and no
+     *         fetches that might still put chunks back in the queue
+     */
+    private boolean isFinishedFor(Resource resource) {
+        return failure.get() != null || (nextPendingChunk(resource) == null && fetchesInFlight.isEmpty());
+    }
+
+    /**
+     * Must be called while holding lock.
+     *
+     * @param resource
+     * @return the first chunk in the queue that the given resource may fetch, or null if there is none
+     */
+    private Chunk nextPendingChunk(Resource resource) {
+        for (Chunk chunk : pendingChunks) {
+            if (!chunk.isExcluded(resource.getStats())) {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a chunk that the given resource should fetch in parallel with the one resource already fetching it. Must be
+     * called while holding lock.
+     *
+     * @param resource
+     * @return a stalled chunk, or if the queue is empty the chunk that the resource would speed up the most, or null if
+     *         nothing is worth hedging
+     */
+    private Chunk chunkToHedge(Resource resource) {
+        long now = System.nanoTime();
+        long lowSpeedWindowNanos = TimeUnit.MILLISECONDS.toNanos(options.getLowSpeedTimeMillis());
+        Chunk bestChunk = null;
+        double bestSecondsSaved = 0;
+        for (Map.Entry<Chunk, List<Fetch>> entry : fetchesInFlight.entrySet()) {
+            Chunk chunk = entry.getKey();
+            List<Fetch> fetches = entry.getValue();
+            if (fetches.size() != 1 || fetches.get(0).resource == resource || chunk.isComplete()
+                    || chunk.isExcluded(resource.getStats())) {
+                continue;
+            }
+            if (chunk.isBackedUp()) {
+                // Waiting for the reader to make room doesn't count as stalling
+                chunk.resetLowSpeedWindow(now);
+                continue;
+            }
+            if (fetches.get(0).isQueued()) {
+                // Nor does waiting for the responses ahead of it on a pipelined connection
+                chunk.resetLowSpeedWindow(now);
+            } else if (chunk.isStalled(now, options.getLowSpeedLimit(), lowSpeedWindowNanos)) {
+                return chunk;
+            }
+            if (pendingChunks.isEmpty()) {
+                double theirThroughput = fetches.get(0).resource.getStats().getThroughputPerConnection();
+                double theirSeconds = theirThroughput > 0 ? chunk.getRemaining() / theirThroughput
+                        : Double.POSITIVE_INFINITY;
+                double mySeconds = resource.getStats().estimateSeconds(chunk.getRemaining());
+                // NaN if neither speed is known, which never counts as saving time
+                double secondsSaved = theirSeconds - mySeconds;
+                if (secondsSaved > bestSecondsSaved) {
+                    bestChunk = chunk;
+                    bestSecondsSaved = secondsSaved;
+                }
+            }
+        }
+        return bestChunk;
+    }
+
+    /**
+     * Must be called while holding lock.
+     */
+    private Fetch startFetch(Chunk chunk, Resource resource) {
+        List<Fetch> fetches = fetchesInFlight.get(chunk);
+        if (fetches == null) {
+            fetches = new ArrayList<Fetch>();
+            fetchesInFlight.put(chunk, fetches);
+            chunk.resetLowSpeedWindow(System.nanoTime());
+        }
+        Fetch fetch = new Fetch(chunk, resource);
+        fetches.add(fetch);
+        return fetch;
+    }
+
+    /**
+     * Wrap up a fetch started with {@link #nextFetch(Resource)}. If it completed its chunk, any other fetch of the chunk
+     * is cancelled and the chunk is verified and finished. Otherwise, if it was the last fetch of the chunk's current
+     * attempt, the chunk goes back to the front of the queue if the fetch failed, or is finished as is if the fetch
+     * reached the end of its response early.
+     *
+     * @param fetch
+     * @param fetched
+     *            false if the fetch stopped because of an error that isn't worth retrying
+     * @param fetchFailure
+     *            the error that interrupted the fetch, if any
+     * @throws IOException
+     */
+    private void endFetch(Fetch fetch, boolean fetched, IOException fetchFailure) throws IOException {
+        Chunk chunk = fetch.chunk;
+        List<Fetch> losers = new ArrayList<Fetch>();
+        boolean complete = false;
+        boolean finishShort = false;
+        lock.lock();
+        try {
+            List<Fetch> fetches = fetchesInFlight.get(chunk);
+            fetches.remove(fetch);
+            boolean lastFetch = fetches.isEmpty();
+            if (lastFetch) {
+                fetchesInFlight.remove(chunk);
+            }
+            if (chunk.isComplete()) {
+                losers.addAll(fetches);
+                complete = true;
+            } else if (lastFetch && fetched && failure.get() == null && fetch.attempt == chunk.getAttempt()) {
+                if (fetchFailure != null) {
+                    pendingChunks.addFirst(chunk);
+                } else {
+                    finishShort = true;
+                }
+            }
+            wakeWorkers();
+        } finally {
+            lock.unlock();
+        }
+        for (Fetch loser : losers) {
+            loser.cancel();
+        }
+        if (complete) {
+            Set<MirrorStats> culprits = chunk.verifyAndFinish();
+            if (!culprits.isEmpty()) {
+                pieceFailed(chunk, culprits);
+            }
+        } else if (finishShort) {
+            chunk.finish();
+        }
+    }
+
+    /**
+     * Charge a chunk that failed verification to the mirrors that supplied its data, and put it back at the front of
+     * the queue unless every mirror has supplied bad data for it, in which case the download fails.
+     *
+     * @param chunk
+     * @param culprits
+     */
+    private void pieceFailed(Chunk chunk, Set<MirrorStats> culprits) {
+        for (MirrorStats culprit : culprits) {
+            culprit.pieceFailedVerification();
+        }
+        boolean mirrorsLeft = false;
+        lock.lock();
+        try {
+            for (MirrorStats stats : allStats) {
+                mirrorsLeft = mirrorsLeft || !chunk.isExcluded(stats);
+            }
+            if (mirrorsLeft) {
+                pendingChunks.addFirst(chunk);
+            }
+            wakeWorkers();
+        } finally {
+            lock.unlock();
+        }
+        if (!mirrorsLeft) {
+            abort(new IOException(String.format("Chunk %1$s failed verification with data from every mirror",
+                                                chunk.getIndex())));
+        }
+    }
+
+    /**
+     * Account for a worker stopping, failing the download if it was the last one left and there are still chunks to
+     * fetch.
+     *
+     * @param resource
+     * @param reason
+     *            why the worker gave up on its mirror, or null if it ran out of chunks it could fetch
+     */
+    private void stopWorker(Resource resource, IOException reason) {
+        boolean lastWorker;
+        Chunk stranded;
+        lock.lock();
+        try {
+            liveWorkers -= 1;
+            lastWorker = liveWorkers == 0;
+            stranded = pendingChunks.peek();
+        } finally {
+            lock.unlock();
+        }
+        if (lastWorker) {
+            if (engine != null) {
+                engine.shutdown();
+            }
+            for (BandwidthLimiter.Share share : bandwidthShares.values()) {
+                share.close();
+            }
+            if (reason != null) {
+                abort(reason);
+            } else if (stranded != null) {
+                abort(new IOException(String.format("No mirror left that could fetch chunk %1$s",
+                                                    stranded.getIndex())));
+            }
+        }
+    }
+
+    /**
+     * Wait before fetching again, returning early if the download is aborted in the meantime.
+     *
+     * @param millis
+     * @throws InterruptedException
+     */
+    private void backOff(long millis) throws InterruptedException {
+        aborted.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wake up workers waiting in {@link #nextFetch(Resource)} so that they reconsider.
+     */
+    private void queueChanged() {
+        lock.lock();
+        try {
+            wakeWorkers();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wake up all workers waiting for the queue to change, including idle non-blocking workers that aren't backing off
+     * (unless the download was aborted, in which case they all need to stop). Must be called while holding lock.
+     */
+    private void wakeWorkers() {
+        queueChanged.signalAll();
+        long now = System.nanoTime();
+        for (AsyncWorker worker : idleAsyncWorkers) {
+            if (failure.get() != null || !worker.isBackingOff(now)) {
+                engine.execute(worker);
+            }
+        }
+    }
+
+    /**
+     * Check whether the given resource should be given up on after a fetch from it ended, given that fetch's failure
+     * if any. A failure counts towards the resource's failures in a row.
+     *
+     * @param resource
+     * @param fetchFailure
+     * @return the reason to give up on the resource, or null to carry on
+     */
+    private IOException reasonToGiveUp(Resource resource, IOException fetchFailure) {
+        int badPieces = resource.getStats().getBadPieces();
+        if (badPieces >= options.getMaxBadPieces()) {
+            return new IOException(String.format("Giving up after %1$s pieces from %2$s failed verification",
+                                                 badPieces, resource.getUrl()));
+        }
+        if (fetchFailure != null) {
+            int consecutiveFailures = resource.recordFetchFailed();
+            if (consecutiveFailures > options.getMaxRetries()) {
+                return new IOException(String.format("Giving up after %1$s failed fetches in a row from %2$s: %3$s",
+                                                     consecutiveFailures, resource.getUrl(),
+                                                     fetchFailure.getMessage()), fetchFailure);
+            }
+            resource.recordRetry();
+        }
+        return null;
+    }
+
+    /**
+     * A request for (the rest of) a chunk from a particular resource, which can be cancelled from another thread.
+     */
+    private static class Fetch {
+        private final Chunk chunk;
+        private final Resource resource;
+        private final int attempt;
+        private volatile InputStream rangeStream;
+        private volatile NioHttpEngine.Request request;
+        private volatile boolean cancelled = false;
+
+        private Fetch(Chunk chunk, Resource resource) {
+            this.chunk = chunk;
+            this.resource = resource;
+            this.attempt = chunk.getAttempt();
+        }
+
+        private void setRangeStream(InputStream rangeStream) {
+            this.rangeStream = rangeStream;
+            if (cancelled) {
+                abortConnection(rangeStream);
+            }
+        }
+
+        private void setRequest(NioHttpEngine.Request request) {
+            this.request = request;
+            if (cancelled) {
+                request.cancel();
+            }
+        }
+
+        /**
+         * Cancel the fetch by aborting its connection, which makes a read blocked on it fail right away.
+         */
+        private void cancel() {
+            cancelled = true;
+            InputStream stream = rangeStream;
+            if (stream != null) {
+                abortConnection(stream);
+            }
+            NioHttpEngine.Request currentRequest = request;
+            if (currentRequest != null) {
+                currentRequest.cancel();
+            }
+        }
+
+        private boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Whether the fetch's request is waiting for the responses ahead of it on a pipelined connection.
+         */
+        private boolean isQueued() {
+            NioHttpEngine.Request currentRequest = request;
+            return currentRequest != null && currentRequest.isQueued();
+        }
+
+        private static void abortConnection(InputStream stream) {
+            if (stream instanceof ConnectionReleaseTrigger) {
+                try {
+                    ((ConnectionReleaseTrigger) stream).abortConnection();
+                } catch (IOException ioe) {
+                    // The connection is going away either way
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches chunks over one connection to a single resource until there are none left or the resource has failed too
+     * often or served too many bad pieces.
+     */
+    private class Worker implements Runnable {
+        private final Resource resource;
+        private final BandwidthLimiter.Share bandwidthShare;
+        private final byte[] transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+
+        private Worker(Resource resource) {
+            this.resource = resource;
+            this.bandwidthShare = bandwidthShares.get(resource);
+        }
+
+        @Override
+        public void run() {
+            IOException giveUpReason = null;
+            try {
+                Fetch fetch;
+                while ((fetch = nextFetch(resource)) != null) {
+                    IOException fetchFailure = null;
+                    boolean fetched = false;
+                    try {
+                        fetchFailure = fetch(fetch);
+                        fetched = true;
+                    } finally {
+                        endFetch(fetch, fetched, fetchFailure);
+                    }
+                    giveUpReason = reasonToGiveUp(resource, fetchFailure);
+                    if (giveUpReason != null) {
+                        return;
+                    }
+                    if (fetchFailure != null) {
+                        backOff(options.retryBackoffMillisAfter(resource.getStats().getConsecutiveFailures()));
+                    }
+                }
+            } catch (IOException ioe) {
+                abort(ioe);
+            } catch (Exception e) {
+                abort(new IOException(e.getMessage(), e));
+            } finally {
+                try {
+                    stopWorker(resource, giveUpReason);
+                } finally {
+                    workersFinished.countDown();
+                    queueChanged();
+                }
+            }
+        }
+
+        /**
+         * Fetch the rest of a chunk, starting from whatever it has already received.
+         *
+         * @param fetch
+         * @return null if fetching finished, was cancelled or was aborted, otherwise the error that interrupted
+         *         fetching, after which the chunk can be retried
+         * @throws IOException
+         *             if the chunk couldn't take the data, in which case retrying won't help
+         */
+        private IOException fetch(Fetch fetch) throws IOException {
+            Chunk chunk = fetch.chunk;
+            long position = chunk.getStart() + chunk.getReceived();
+            if (position == chunk.getEnd()) {
+                return null;
+            }
+            InputStream rangeStream;
+            try {
+                rangeStream = resource.fetchRange(position, chunk.getEnd());
+            } catch (IOException ioe) {
+                return fetch.isCancelled() ? null : ioe;
+            }
+            fetch.setRangeStream(rangeStream);
+            boolean endOfStream = false;
+            try {
+                while (failure.get() == null && !fetch.isCancelled()) {
+                    int allowed = transferBuffer.length;
+                    if (bandwidthShare != null) {
+                        // Holding off reading makes TCP flow control hold back the server, and reading no more than
+                        // was granted keeps even the last read of a fetch within the limit
+                        try {
+                            allowed = bandwidthShare.acquireUpTo(transferBuffer.length);
+                        } catch (IOException ioe) {
+                            return fetch.isCancelled() ? null : ioe;
+                        }
+                    }
+                    int read = -1;
+                    try {
+                        read = rangeStream.read(transferBuffer, 0, allowed);
+                    } catch (IOException ioe) {
+                        return fetch.isCancelled() ? null : ioe;
+                    } finally {
+                        if (bandwidthShare != null && read < allowed) {
+                            bandwidthShare.giveBack(allowed - Math.max(read, 0));
+                        }
+                    }
+                    if (read == -1) {
+                        endOfStream = true;
+                        break;
+                    }
+                    chunk.write(fetch.attempt, resource.getStats(), position, transferBuffer, 0, read);
+                    position += read;
+                    resource.recordBytesFetched(read);
+                }
+            } finally {
+                try {
+                    resource.release(rangeStream, endOfStream);
+                } catch (IOException ioe) {
+                    // Whatever was received has already been written, so failing to release the connection doesn't
+                    // matter
+                }
+            }
+            if (endOfStream) {
+                resource.recordFetchSucceeded();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Fetches chunks from a single resource like a {@link Worker}, but without holding a thread. Requests are made
+     * through the {@link NioHttpEngine}, and the worker moves on to its next chunk from the engine's callbacks. While
+     * there is nothing for it to fetch, or while it backs off after a failure, it waits in idleAsyncWorkers to be run
+     * again by {@link ChunkScheduler#wakeWorkers()} or a timer.
+     */
+    private class AsyncWorker implements Runnable, IResponseHandler {
+        private final Resource resource;
+        private final BandwidthLimiter.Share bandwidthShare;
+        // Guarded by lock
+        private long backOffUntil;
+        // Only touched by one engine thread at a time, as the worker goes from one step to the next
+        private Fetch fetch;
+        private long position;
+        private IOException sinkFailure;
+
+        private AsyncWorker(Resource resource) {
+            this.resource = resource;
+            this.bandwidthShare = bandwidthShares.get(resource);
+        }
+
+        /**
+         * Fetch the next chunk once the given time has passed, or sooner if the download is aborted.
+         *
+         * @param delayMillis
+         */
+        private void continueAfter(long delayMillis) {
+            lock.lock();
+            try {
+                backOffUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+                idleAsyncWorkers.add(this);
+            } finally {
+                lock.unlock();
+            }
+            engine.schedule(this, delayMillis);
+        }
+
+        /**
+         * Must be called while holding lock.
+         */
+        private boolean isBackingOff(long now) {
+            return now - backOffUntil < 0;
+        }
+
+        /**
+         * Runs whenever the worker might have something to do, which is ignored unless it's idle and done backing off.
+         */
+        @Override
+        public void run() {
+            Fetch next = null;
+            boolean finished;
+            lock.lock();
+            try {
+                if (!idleAsyncWorkers.contains(this) || (failure.get() == null && isBackingOff(System.nanoTime()))) {
+                    return;
+                }
+                finished = isFinishedFor(resource);
+                if (!finished) {
+                    next = pollFetch(resource);
+                }
+                if (finished || next != null) {
+                    idleAsyncWorkers.remove(this);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (finished) {
+                stop(null);
+            } else if (next == null) {
+                // Reconsider in a while even if nothing wakes us up, in case a chunk stalls
+                engine.schedule(this, IDLE_RECHECK_MILLIS);
+            } else {
+                fetch(next);
+            }
+        }
+
+        /**
+         * Fetch the rest of a chunk, starting from whatever it has already received.
+         *
+         * @param next
+         */
+        private void fetch(Fetch next) {
+            fetch = next;
+            sinkFailure = null;
+            Chunk chunk = next.chunk;
+            position = chunk.getStart() + chunk.getReceived();
+            if (position == chunk.getEnd()) {
+                fetchEnded(null);
+            } else {
+                next.setRequest(resource.fetchRange(engine, position, chunk.getEnd(), this));
+            }
+        }
+
+        @Override
+        public void responseDue() {
+            // Resource measures the time to first byte from here
+        }
+
+        @Override
+        public void responseStarted(int statusCode) {
+            // Resource has already checked that it's the range we asked for
+        }
+
+        @Override
+        public boolean isReady() {
+            return !fetch.chunk.isBackedUp() && (bandwidthShare == null || bandwidthShare.isReady());
+        }
+
+        @Override
+        public boolean isNeededNow() {
+            return fetch.chunk.isNeededNow();
+        }
+
+        @Override
+        public int getReadLimit() {
+            return bandwidthShare == null ? Integer.MAX_VALUE : bandwidthShare.getAvailableBytes();
+        }
+
+        @Override
+        public void bodyReceived(byte[] b, int off, int len) throws IOException {
+            if (failure.get() != null || fetch.isCancelled()) {
+                throw new IOException("Fetch cancelled");
+            }
+            try {
+                fetch.chunk.write(fetch.attempt, resource.getStats(), position, b, off, len);
+            } catch (IOException ioe) {
+                sinkFailure = ioe;
+                throw ioe;
+            }
+            position += len;
+            resource.recordBytesFetched(len);
+            if (bandwidthShare != null) {
+                bandwidthShare.consume(len);
+            }
+        }
+
+        @Override
+        public void responseFinished(IOException responseFailure) {
+            if (responseFailure == null) {
+                resource.recordFetchSucceeded();
+            }
+            fetchEnded(fetch.isCancelled() ? null : responseFailure);
+        }
+
+        private void fetchEnded(IOException fetchFailure) {
+            try {
+                // The chunk couldn't take the data, in which case retrying won't help
+                boolean fetched = sinkFailure == null;
+                endFetch(fetch, fetched, fetchFailure);
+                if (!fetched) {
+                    abort(sinkFailure);
+                    stop(null);
+                    return;
+                }
+                IOException giveUpReason = reasonToGiveUp(resource, fetchFailure);
+                if (giveUpReason != null) {
+                    stop(giveUpReason);
+                } else if (fetchFailure != null) {
+                    continueAfter(options.retryBackoffMillisAfter(resource.getStats().getConsecutiveFailures()));
+                } else {
+                    continueAfter(0);
+                }
+            } catch (IOException ioe) {
+                abort(ioe);
+                stop(null);
+            } catch (RuntimeException re) {
+                abort(new IOException(re.getMessage(), re));
+                stop(null);
+            }
+        }
+
+        private void stop(IOException reason) {
+            try {
+                stopWorker(resource, reason);
+            } finally {
+                workersFinished.countDown();
+                queueChanged();
+            }
+        }
+    }
+}
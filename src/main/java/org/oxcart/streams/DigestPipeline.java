@@ -0,0 +1,209 @@
+package org.oxcart.streams;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Computes one or more message digests on a dedicated thread, so that hashing overlaps with whatever the thread
+ * supplying the data does next (typically writing it somewhere). Data is copied into fixed-size blocks of a ring buffer
+ * that is shared by exactly one producer and the digest thread. The ring is lock-free: each side only advances its own
+ * counter, and a side that finds the ring full (or empty) spins briefly and then parks until the other side unparks it.
+ * </p>
+ *
+ * <p>
+ * Must only be used by a single producer thread.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+class DigestPipeline {
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    static final int DEFAULT_BLOCKS = 16;
+    private static final int SPINS_BEFORE_PARKING = 100;
+    // Upper bound on parking, just in case
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final List<MessageDigest> digesters;
+    private final byte[][] blocks;
+    private final int[] blockLengths;
+    // Number of blocks handed to the digest thread, only advanced by the producer
+    private final AtomicLong published = new AtomicLong(0);
+    // Number of blocks the digest thread is done with, only advanced by the digest thread
+    private final AtomicLong consumed = new AtomicLong(0);
+    private final CountDownLatch digested = new CountDownLatch(1);
+    private volatile boolean finished = false;
+    private volatile boolean closed = false;
+    private volatile List<byte[]> digests;
+    private final Thread digestThread;
+    private volatile boolean digestThreadParked = false;
+    private volatile Thread parkedProducer;
+    // Only accessed by the producer, the block currently being filled
+    private int fillLength = 0;
+
+    /**
+     * Start a pipeline with {@link #DEFAULT_BLOCKS} blocks of {@link #DEFAULT_BLOCK_SIZE} bytes.
+     *
+     * @param digesters
+     *            not to be used by anyone else until the digests are done
+     */
+    DigestPipeline(List<MessageDigest> digesters) {
+        this(digesters, DEFAULT_BLOCKS, DEFAULT_BLOCK_SIZE);
+    }
+
+    DigestPipeline(List<MessageDigest> digesters, int numberOfBlocks, int blockSize) {
+        this.digesters = digesters;
+        this.blocks = new byte[numberOfBlocks][blockSize];
+        this.blockLengths = new int[numberOfBlocks];
+        this.digestThread = new Thread("DigestPipeline") {
+            @Override
+            public void run() {
+                digestBlocks();
+            }
+        };
+        digestThread.setDaemon(true);
+        digestThread.start();
+    }
+
+    /**
+     * Queue data to be digested, waiting for the digest thread to make room if the ring is full.
+     *
+     * @param b
+     * @param off
+     * @param len
+     */
+    void update(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (fillLength == 0) {
+                awaitFreeBlock();
+            }
+            byte[] block = currentBlock();
+            int copy = Math.min(len, block.length - fillLength);
+            System.arraycopy(b, off, block, fillLength, copy);
+            fillLength += copy;
+            off += copy;
+            len -= copy;
+            if (fillLength == block.length) {
+                publish();
+            }
+        }
+    }
+
+    void update(byte b) {
+        if (fillLength == 0) {
+            awaitFreeBlock();
+        }
+        byte[] block = currentBlock();
+        block[fillLength++] = b;
+        if (fillLength == block.length) {
+            publish();
+        }
+    }
+
+    /**
+     * Signal that there is no more data and wait for the digest thread to get through everything queued. May be
+     * called more than once.
+     *
+     * @return the digests, in the order of the digesters, or null if the pipeline was closed first
+     * @throws InterruptedException
+     */
+    List<byte[]> digest() throws InterruptedException {
+        if (!finished) {
+            if (fillLength > 0) {
+                publish();
+            }
+            finished = true;
+            LockSupport.unpark(digestThread);
+        }
+        digested.await();
+        return digests;
+    }
+
+    /**
+     * Stop the digest thread without waiting for it.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(digestThread);
+    }
+
+    private byte[] currentBlock() {
+        return blocks[(int) (published.get() % blocks.length)];
+    }
+
+    private void publish() {
+        blockLengths[(int) (published.get() % blocks.length)] = fillLength;
+        fillLength = 0;
+        // Publishing the block makes its data and length visible to the digest thread
+        published.incrementAndGet();
+        if (digestThreadParked) {
+            LockSupport.unpark(digestThread);
+        }
+    }
+
+    private void awaitFreeBlock() {
+        int spins = 0;
+        while (isFull() && !closed) {
+            if (spins < SPINS_BEFORE_PARKING) {
+                spins += 1;
+            } else {
+                // Announce that we're about to park before checking one last time, so the digest thread can't miss it
+                parkedProducer = Thread.currentThread();
+                if (isFull() && !closed) {
+                    LockSupport.parkNanos(MAX_PARK_NANOS);
+                }
+                parkedProducer = null;
+            }
+        }
+    }
+
+    private boolean isFull() {
+        return published.get() - consumed.get() == blocks.length;
+    }
+
+    private void digestBlocks() {
+        try {
+            int spins = 0;
+            while (!closed) {
+                long next = consumed.get();
+                if (next < published.get()) {
+                    int index = (int) (next % blocks.length);
+                    for (MessageDigest digester : digesters) {
+                        digester.update(blocks[index], 0, blockLengths[index]);
+                    }
+                    consumed.incrementAndGet();
+                    Thread producer = parkedProducer;
+                    if (producer != null) {
+                        LockSupport.unpark(producer);
+                    }
+                    spins = 0;
+                } else if (finished && next == published.get()) {
+                    List<byte[]> result = new ArrayList<byte[]>();
+                    for (MessageDigest digester : digesters) {
+                        result.add(digester.digest());
+                    }
+                    digests = Collections.unmodifiableList(result);
+                    return;
+                } else if (spins < SPINS_BEFORE_PARKING) {
+                    spins += 1;
+                } else {
+                    // Announce that we're about to park before checking one last time, so the producer can't miss it
+                    digestThreadParked = true;
+                    if (next == published.get() && !finished && !closed) {
+                        LockSupport.parkNanos(MAX_PARK_NANOS);
+                    }
+                    digestThreadParked = false;
+                }
+            }
+        } finally {
+            digested.countDown();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.oxcart.streams;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
+
+/**
+ * <p>
+ * Creates MessageDigests by algorithm name. Besides the algorithms of the installed security providers (SHA-256, MD5,
+ * ...), this supports fast non-cryptographic checksums for integrity checks of trusted transfers:
+ * </p>
+ *
+ * <ul>
+ * <li>{@link #CRC32}, always available</li>
+ * <li>{@link #CRC32C}, where the JVM provides java.util.zip.CRC32C (Java 9 and up), which is hardware accelerated on
+ * most CPUs</li>
+ * </ul>
+ *
+ * <p>
+ * Checksums are presented as 4 byte digests, big-endian.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class Digests {
+    public static final String CRC32 = "CRC32";
+    public static final String CRC32C = "CRC32C";
+    private static final String CRC32C_CLASS = "java.util.zip.CRC32C";
+
+    private Digests() {
+    }
+
+    /**
+     * Create a MessageDigest for the given algorithm.
+     *
+     * @param algorithm
+     * @return
+     * @throws NoSuchAlgorithmException
+     */
+    public static MessageDigest getInstance(String algorithm) throws NoSuchAlgorithmException {
+        if (CRC32.equalsIgnoreCase(algorithm)) {
+            return new ChecksumDigest(CRC32, new java.util.zip.CRC32());
+        } else if (CRC32C.equalsIgnoreCase(algorithm)) {
+            try {
+                // Looked up by name since it only exists in newer JVMs
+                Checksum checksum = (Checksum) Class.forName(CRC32C_CLASS).getDeclaredConstructor().newInstance();
+                return new ChecksumDigest(CRC32C, checksum);
+            } catch (Exception e) {
+                // Not found, or any of the reflective failures of looking it up and constructing it
+                throw new NoSuchAlgorithmException(String.format("%1$s requires a JVM that provides %2$s", CRC32C,
+                                                                 CRC32C_CLASS));
+            }
+        }
+        return MessageDigest.getInstance(algorithm);
+    }
+
+    /**
+     * Adapts a {@link Checksum} to the MessageDigest API.
+     */
+    private static class ChecksumDigest extends MessageDigest {
+        private final Checksum checksum;
+
+        private ChecksumDigest(String algorithm, Checksum checksum) {
+            super(algorithm);
+            this.checksum = checksum;
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            checksum.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            checksum.update(input, offset, len);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            long value = checksum.getValue();
+            checksum.reset();
+            return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return 4;
+        }
+
+        @Override
+        protected void engineReset() {
+            checksum.reset();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.oxcart.streams;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * <p>
+ * A directory of downloaded content, keyed by a checksum of the content. Since a checksum fully identifies the content,
+ * a download whose checksum is known can be served from the cache instead of being fetched again, and a download that
+ * has been validated against its checksum can be added to the cache for next time. Entries are stored as
+ * <code>&lt;directory&gt;/&lt;algorithm&gt;/&lt;hex checksum&gt;</code>.
+ * </p>
+ *
+ * <p>
+ * Each entry is locked with {@link #lock(String, byte[])} before it's used, both against other threads and (with a
+ * file lock) against other processes sharing the same directory. A process that finds an entry missing keeps the lock
+ * while it downloads and adds the content, so others fetching the same content wait for it and then find it in the
+ * cache rather than downloading it as well.
+ * </p>
+ *
+ * <p>
+ * Once the entries add up to more than the size limit, the least recently used ones are deleted. Using an entry updates
+ * its modification time, which is what recency is judged by.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class DownloadCache {
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // File locks are held by the whole process, so threads of the same process keep out of each other's way with these
+    private static final Set<File> LOCKED_IN_THIS_PROCESS = new HashSet<File>();
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * @param directory
+     *            where to keep the entries, created if need be
+     * @param maxSize
+     *            number of bytes that the entries may add up to before the least recently used are deleted
+     */
+    public DownloadCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Lock the entry for content with the given checksum, waiting for any other thread or process that has it locked.
+     * The entry may or may not exist yet. It must be released with {@link Entry#release()}.
+     *
+     * @param algorithm
+     * @param checksum
+     * @return
+     * @throws IOException
+     *             if the entry can't be locked
+     */
+    public Entry lock(String algorithm, byte[] checksum) throws IOException {
+        File algorithmDirectory = new File(directory, algorithm);
+        if (!algorithmDirectory.isDirectory() && !algorithmDirectory.mkdirs() && !algorithmDirectory.isDirectory()) {
+            throw new IOException(String.format("Unable to create cache directory %1$s", algorithmDirectory));
+        }
+        File file = new File(algorithmDirectory, Hex.encodeHexString(checksum));
+        File lockFile = new File(algorithmDirectory, file.getName() + LOCK_SUFFIX);
+        synchronized (LOCKED_IN_THIS_PROCESS) {
+            while (LOCKED_IN_THIS_PROCESS.contains(lockFile)) {
+                try {
+                    LOCKED_IN_THIS_PROCESS.wait();
+                } catch (InterruptedException ie) {
+                    throw new IOException("Interrupted while waiting for cache entry " + file, ie);
+                }
+            }
+            LOCKED_IN_THIS_PROCESS.add(lockFile);
+        }
+        RandomAccessFile lockAccess = null;
+        try {
+            lockAccess = new RandomAccessFile(lockFile, "rw");
+            FileLock lock = lockAccess.getChannel().lock();
+            return new Entry(file, lockFile, lockAccess, lock);
+        } catch (IOException ioe) {
+            if (lockAccess != null) {
+                lockAccess.close();
+            }
+            unlockInThisProcess(lockFile);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until they add up to no more than the size limit. Entries locked by this
+     * process are kept.
+     */
+    public void evict() {
+        List<File> files = new ArrayList<File>();
+        long size = 0;
+        File[] algorithmDirectories = directory.listFiles();
+        if (algorithmDirectories == null) {
+            return;
+        }
+        for (File algorithmDirectory : algorithmDirectories) {
+            File[] entryFiles = algorithmDirectory.listFiles();
+            if (entryFiles == null) {
+                continue;
+            }
+            for (File file : entryFiles) {
+                if (file.isFile() && !file.getName().endsWith(LOCK_SUFFIX) && !file.getName().endsWith(TEMP_SUFFIX)) {
+                    files.add(file);
+                    size += file.length();
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            if (size <= maxSize) {
+                break;
+            }
+            boolean locked;
+            synchronized (LOCKED_IN_THIS_PROCESS) {
+                locked = LOCKED_IN_THIS_PROCESS.contains(new File(file.getParentFile(), file.getName() + LOCK_SUFFIX));
+            }
+            long length = file.length();
+            if (!locked && file.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private static void unlockInThisProcess(File lockFile) {
+        synchronized (LOCKED_IN_THIS_PROCESS) {
+            LOCKED_IN_THIS_PROCESS.remove(lockFile);
+            LOCKED_IN_THIS_PROCESS.notifyAll();
+        }
+    }
+
+    /**
+     * A locked entry of the cache.
+     */
+    public class Entry {
+        private final File file;
+        private final File lockFile;
+        private final RandomAccessFile lockAccess;
+        private final FileLock lock;
+
+        private Entry(File file, File lockFile, RandomAccessFile lockAccess, FileLock lock) {
+            this.file = file;
+            this.lockFile = lockFile;
+            this.lockAccess = lockAccess;
+            this.lock = lock;
+        }
+
+        /**
+         * Whether the content is in the cache.
+         *
+         * @return
+         */
+        public boolean exists() {
+            return file.isFile();
+        }
+
+        /**
+         * Open the cached content for reading.
+         *
+         * @return
+         * @throws IOException
+         */
+        public InputStream open() throws IOException {
+            touch();
+            return new FileInputStream(file);
+        }
+
+        /**
+         * Copy the cached content to the given file, replacing what's there.
+         *
+         * @param target
+         * @throws IOException
+         */
+        public void copyTo(File target) throws IOException {
+            touch();
+            copy(file, target);
+        }
+
+        /**
+         * Create a file in the cache directory to write content to before {@link #commit(File)}ing it. Writing the
+         * content there first means that it can be moved into place without copying it again.
+         *
+         * @return
+         * @throws IOException
+         */
+        public File createTempFile() throws IOException {
+            return File.createTempFile(file.getName(), TEMP_SUFFIX, file.getParentFile());
+        }
+
+        /**
+         * Add the content of the given file, which has already been validated, to the cache.
+         *
+         * @param source
+         * @throws IOException
+         */
+        public void put(File source) throws IOException {
+            File tempFile = createTempFile();
+            try {
+                copy(source, tempFile);
+            } catch (IOException ioe) {
+                tempFile.delete();
+                throw ioe;
+            }
+            commit(tempFile);
+        }
+
+        /**
+         * Add the content of a file from {@link #createTempFile()}, which has already been validated, to the cache by
+         * moving the file into place.
+         *
+         * @param tempFile
+         * @throws IOException
+         */
+        public void commit(File tempFile) throws IOException {
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException(String.format("Unable to add %1$s to the cache", file));
+            }
+            evict();
+        }
+
+        /**
+         * Remove the content from the cache, for example because it turned out to be corrupt.
+         */
+        public void remove() {
+            file.delete();
+        }
+
+        /**
+         * Unlock the entry for other threads and processes.
+         *
+         * @throws IOException
+         */
+        public void release() throws IOException {
+            try {
+                lock.release();
+            } finally {
+                try {
+                    lockAccess.close();
+                } finally {
+                    unlockInThisProcess(lockFile);
+                }
+            }
+        }
+
+        private void touch() {
+            file.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Copy the source file to the target, leaving it to the channels to use zero-copy transfers where the platform
+     * has them.
+     *
+     * @param source
+     * @param target
+     * @throws IOException
+     */
+    private static void copy(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long size = inChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += inChannel.transferTo(position, size - position, outChannel);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.oxcart.streams;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A sidecar file next to a {@link ParallelHttpGetFile}'s output file recording which chunks have been completely
+ * written, so that an interrupted download can later be resumed by fetching only the missing chunks.
+ * </p>
+ *
+ * <p>
+ * The journal starts with a header holding the content length, the chunk size and the validator (ETag or
+ * Last-Modified) of each mirror, followed by a bitmap with one bit per chunk. Completing a chunk rewrites just the byte
+ * holding its bit. A journal is only reused if its header matches the resource being downloaded, since otherwise the
+ * partially written file may hold data from a different version of the resource.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+class DownloadJournal {
+    private static final int MAGIC = 0x50474a4c; // "PGJL"
+    private static final int VERSION = 1;
+
+    private final File journalFile;
+    private final RandomAccessFile out;
+    private final long bitmapOffset;
+    private final byte[] bitmap;
+
+    private DownloadJournal(File journalFile, long bitmapOffset, byte[] bitmap) throws IOException {
+        this.journalFile = journalFile;
+        this.bitmapOffset = bitmapOffset;
+        this.bitmap = bitmap;
+        this.out = new RandomAccessFile(journalFile, "rw");
+    }
+
+    /**
+     * Returns the journal file used for the given output file.
+     *
+     * @param file
+     * @return
+     */
+    static File journalFileFor(File file) {
+        return new File(file.getPath() + ".pget");
+    }
+
+    /**
+     * Open the journal for downloading the given resources into the given file. If resume is true and there is an
+     * existing journal that matches the resources and chunk size, it is reused along with the partially written file.
+     * Otherwise, any existing file is deleted and the journal is started afresh.
+     *
+     * @param file
+     *            the output file
+     * @param resources
+     * @param chunkSize
+     * @param numberOfChunks
+     * @param resume
+     * @return
+     * @throws IOException
+     */
+    static DownloadJournal open(File file, List<Resource> resources, long chunkSize, int numberOfChunks,
+            boolean resume) throws IOException {
+        File journalFile = journalFileFor(file);
+        long contentLength = resources.get(0).getContentLength();
+        byte[] header = header(contentLength, chunkSize, numberOfChunks, validatorsOf(resources));
+        byte[] bitmap = null;
+        if (resume && file.length() == contentLength) {
+            bitmap = readMatchingBitmap(journalFile, contentLength, chunkSize, numberOfChunks, resources);
+        }
+        if (bitmap == null) {
+            if (file.exists()) {
+                file.delete();
+            }
+            bitmap = new byte[(numberOfChunks + 7) / 8];
+        }
+        DownloadJournal journal = new DownloadJournal(journalFile, header.length, bitmap);
+        // Always write the header of this run, so that mirrors added on resume are validated next time too
+        journal.out.setLength(0);
+        journal.out.write(header);
+        journal.out.write(bitmap);
+        return journal;
+    }
+
+    /**
+     * Returns whether the chunk with the given index was completed by a previous run.
+     *
+     * @param index
+     * @return
+     */
+    synchronized boolean isComplete(int index) {
+        return (bitmap[index / 8] & (1 << (index % 8))) != 0;
+    }
+
+    /**
+     * Record that the chunk with the given index has been completely written. The chunk's data must already have been
+     * forced to disk.
+     *
+     * @param index
+     * @throws IOException
+     */
+    synchronized void markComplete(int index) throws IOException {
+        int byteIndex = index / 8;
+        bitmap[byteIndex] |= 1 << (index % 8);
+        out.seek(bitmapOffset + byteIndex);
+        out.write(bitmap[byteIndex]);
+    }
+
+    synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Close and delete the journal, once the download it tracks has completed.
+     *
+     * @throws IOException
+     */
+    synchronized void delete() throws IOException {
+        out.close();
+        journalFile.delete();
+    }
+
+    /**
+     * The validator identifying the version of each resource, keyed by url.
+     */
+    private static Map<String, String> validatorsOf(List<Resource> resources) {
+        Map<String, String> validators = new LinkedHashMap<String, String>();
+        for (Resource resource : resources) {
+            validators.put(resource.getUrl(), resource.getValidator());
+        }
+        return validators;
+    }
+
+    private static byte[] header(long contentLength, long chunkSize, int numberOfChunks,
+            Map<String, String> validators) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(contentLength);
+        data.writeLong(chunkSize);
+        data.writeInt(numberOfChunks);
+        data.writeInt(validators.size());
+        for (Map.Entry<String, String> validator : validators.entrySet()) {
+            data.writeUTF(validator.getKey());
+            data.writeUTF(validator.getValue() != null ? validator.getValue() : "");
+        }
+        data.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read the bitmap of an existing journal if its header matches the given download. Mirrors that the journal
+     * doesn't know about are ignored, but at least one mirror must have been seen before with the same, non-empty
+     * validator, and none may have changed.
+     *
+     * @return the bitmap, or null if there is no usable journal
+     */
+    private static byte[] readMatchingBitmap(File journalFile, long contentLength, long chunkSize,
+            int numberOfChunks, List<Resource> resources) throws IOException {
+        if (!journalFile.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != contentLength
+                    || in.readLong() != chunkSize || in.readInt() != numberOfChunks) {
+                return null;
+            }
+            Map<String, String> journalValidators = new LinkedHashMap<String, String>();
+            int numberOfValidators = in.readInt();
+            for (int i = 0; i < numberOfValidators; i++) {
+                journalValidators.put(in.readUTF(), in.readUTF());
+            }
+            boolean anyMatched = false;
+            for (Resource resource : resources) {
+                String journalValidator = journalValidators.get(resource.getUrl());
+                if (journalValidator == null) {
+                    continue;
+                }
+                if (resource.getValidator() == null || !journalValidator.equals(resource.getValidator())) {
+                    return null;
+                }
+                anyMatched = true;
+            }
+            if (!anyMatched) {
+                return null;
+            }
+            byte[] bitmap = new byte[(numberOfChunks + 7) / 8];
+            in.readFully(bitmap);
+            return bitmap;
+        } catch (EOFException eofe) {
+            // Truncated journal
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+}
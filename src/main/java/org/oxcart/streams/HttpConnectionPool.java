@@ -0,0 +1,163 @@
+package org.oxcart.streams;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+
+/**
+ * <p>
+ * The HttpClient, and with it the pool of connections, through which downloads make their HTTP requests. A single
+ * pool can be shared by many downloads (see {@link ParallelHttpGetOptions#setConnectionPool(HttpConnectionPool)}), in
+ * which case they collectively stay within its limits and keep-alive connections are reused from one download to the
+ * next. A download that isn't given a pool creates a private one, which it shuts down once it's done.
+ * </p>
+ *
+ * <p>
+ * Connections that have been idle for longer than the idle timeout are closed by a background thread, so that a
+ * long-lived pool doesn't hold on to connections that the server has probably given up on. Whoever created a shared
+ * pool is responsible for calling {@link #shutdown()} once all downloads using it are done.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class HttpConnectionPool {
+    /**
+     * Maximum number of connections to a single host, by default.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 16;
+    /**
+     * Maximum number of connections in total, by default.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    /**
+     * Connections that have been idle for this long are closed, by default.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+
+    private final HttpClient httpClient;
+    private final long idleTimeoutMillis;
+    private final Thread evictor;
+    private boolean shutdown = false;
+
+    /**
+     * Construct a pool with the default limits and idle timeout.
+     */
+    public HttpConnectionPool() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Construct a pool with the given limits. Requests beyond the limits wait for a connection to be released.
+     *
+     * @param maxConnectionsPerRoute
+     *            maximum number of connections to a single host
+     * @param maxConnections
+     *            maximum number of connections in total
+     * @param idleTimeoutMillis
+     *            how long connections may be idle before they're closed, or 0 to keep them until the pool is shut down
+     */
+    public HttpConnectionPool(int maxConnectionsPerRoute, int maxConnections, long idleTimeoutMillis) {
+        this(new DefaultHttpClient(newConnectionManager(maxConnectionsPerRoute, maxConnections)), idleTimeoutMillis);
+    }
+
+    /**
+     * Construct a pool around an HttpClient that has been set up elsewhere, for example with a proxy or custom SSL
+     * configuration. The HttpClient should use a connection manager that's safe to use from multiple threads, and is
+     * shut down along with this pool.
+     *
+     * @param httpClient
+     * @param idleTimeoutMillis
+     *            how long connections may be idle before they're closed, or 0 to keep them until the pool is shut down
+     */
+    public HttpConnectionPool(HttpClient httpClient, long idleTimeoutMillis) {
+        this.httpClient = httpClient;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        if (idleTimeoutMillis > 0) {
+            evictor = new IdleConnectionEvictor();
+            evictor.start();
+        } else {
+            evictor = null;
+        }
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Close connections that have expired or have been idle for longer than the idle timeout. This happens
+     * periodically anyway.
+     */
+    public void closeIdleConnections() {
+        ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+        connectionManager.closeExpiredConnections();
+        if (idleTimeoutMillis > 0) {
+            connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Close all connections. Requests that are still in progress fail, and the pool can't be used anymore.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+        }
+        if (evictor != null) {
+            evictor.interrupt();
+        }
+        httpClient.getConnectionManager().shutdown();
+    }
+
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    private static ClientConnectionManager newConnectionManager(int maxConnectionsPerRoute, int maxConnections) {
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(
+                      new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+        schemeRegistry.register(
+                      new Scheme("https", 443, SSLSocketFactory.getSocketFactory()));
+
+        PoolingClientConnectionManager cm = new PoolingClientConnectionManager(schemeRegistry);
+        cm.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        cm.setMaxTotal(maxConnections);
+        return cm;
+    }
+
+    /**
+     * Checks for idle connections twice per idle timeout, until the pool is shut down.
+     */
+    private class IdleConnectionEvictor extends Thread {
+        private IdleConnectionEvictor() {
+            super("pget-idle-connection-evictor");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isShutdown()) {
+                try {
+                    Thread.sleep(Math.max(1, idleTimeoutMillis / 2));
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                if (!isShutdown()) {
+                    closeIdleConnections();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.oxcart.streams;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A stream that can write its data straight to a channel instead of copying it into the caller's buffer first. Data
+ * that has been spilled to disk is handed to the channel with {@link java.nio.channels.FileChannel#transferTo}, which
+ * the operating system may carry out without the data ever entering the JVM.
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public interface IChannelSource {
+    /**
+     * Write the next piece of data to the given channel, like {@link java.io.InputStream#read(byte[])} but without a
+     * buffer. Blocks until some data is available.
+     *
+     * @param target
+     * @return the number of bytes written, or -1 if the end of the stream has been reached
+     * @throws IOException
+     */
+    long readTo(WritableByteChannel target) throws IOException;
+}
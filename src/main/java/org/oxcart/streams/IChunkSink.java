@@ -0,0 +1,59 @@
+package org.oxcart.streams;
+
+import java.io.IOException;
+
+/**
+ * Destination for the data of a {@link Chunk}. Data for any one chunk is written in order.
+ * 
+ * @author ox.to.a.cart /at/ gmail.com
+ * 
+ */
+interface IChunkSink {
+    /**
+     * Write data belonging at the given position within the overall content.
+     * 
+     * @param position
+     * @param b
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    void write(long position, byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Whether the sink would rather not take any more data right now. Transports that can hold off reading without
+     * tying up a thread pause while this is true, others just keep writing.
+     * 
+     * @return
+     */
+    boolean isBackedUp();
+
+    /**
+     * Whether a reader is waiting for this chunk right now, in which case its data mustn't have to wait behind that of
+     * chunks that are backed up.
+     * 
+     * @return
+     */
+    boolean isNeededNow();
+
+    /**
+     * Called once a chunk has received all of its data.
+     * 
+     * @throws IOException
+     */
+    void finish() throws IOException;
+
+    /**
+     * Called if the data written so far turned out to be bad, before the chunk is written again from its start.
+     * 
+     * @throws IOException
+     */
+    void reset() throws IOException;
+
+    /**
+     * Called if a chunk can't be completed.
+     * 
+     * @param ioe
+     */
+    void fail(IOException ioe);
+}
@@ -7,6 +7,36 @@ package org.oxcart.streams;
  * 
  */
 public interface IProgressReporter {
+    /**
+     * Category under which a mirror's estimated throughput is reported, in bytes/sec. The total is the combined
+     * throughput of all mirrors.
+     */
+    String THROUGHPUT = "Throughput";
+
+    /**
+     * Category under which a mirror's estimated time to first byte is reported, in milliseconds. The total is the
+     * longest time to first byte among all mirrors.
+     */
+    String TIME_TO_FIRST_BYTE = "Time to first byte";
+
+    /**
+     * Category under which the number of failed fetches in a row is reported for each mirror. The total is the retry
+     * budget, once that is used up the mirror is given up on.
+     */
+    String RETRIES = "Retries";
+
+    /**
+     * Category under which the number of failed fetches is reported for each mirror. The total is the number of fetches
+     * attempted from that mirror.
+     */
+    String FAILED_FETCHES = "Failed fetches";
+
+    /**
+     * Category under which the number of pieces that failed verification is reported for each mirror. The total is the
+     * number of bad pieces after which the mirror is given up on.
+     */
+    String BAD_PIECES = "Bad pieces";
+
     /**
      * Called to provide progress. This method needs to be thread-safe.
      * 
@@ -0,0 +1,71 @@
+package org.oxcart.streams;
+
+import java.io.IOException;
+
+/**
+ * Receives the response to a request made by a {@link NioHttpEngine}. All methods are called on the selector thread
+ * that owns the request's connection, so they must not block.
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+interface IResponseHandler {
+    /**
+     * Called if the request was pipelined behind others on its connection, once the responses to those are over and
+     * the server's answer to this one is due. The time spent waiting for them isn't the server being slow to answer.
+     */
+    void responseDue();
+
+    /**
+     * Called once the response headers have arrived.
+     *
+     * @param statusCode
+     * @throws IOException
+     *             to fail the request, e.g. because of an unexpected status code
+     */
+    void responseStarted(int statusCode) throws IOException;
+
+    /**
+     * Whether the handler can take more of the response right now. While it can't, nothing more is read from the
+     * connection, which makes TCP flow control hold back the server.
+     *
+     * @return
+     */
+    boolean isReady();
+
+    /**
+     * Whether someone is waiting for this response right now, so that it mustn't wait behind responses that are held
+     * off because their handlers aren't ready. Such a request isn't pipelined, and a connection with one queued behind
+     * its current response doesn't pause.
+     *
+     * @return
+     */
+    boolean isNeededNow();
+
+    /**
+     * Returns the most that may be read from the connection at once while the handler is ready, for example to stay
+     * within a bandwidth limit. The read may include the end of the response headers.
+     *
+     * @return
+     */
+    int getReadLimit();
+
+    /**
+     * Called with the next part of the response body. The data is only valid for the duration of the call.
+     *
+     * @param b
+     * @param off
+     * @param len
+     * @throws IOException
+     *             to fail the request
+     */
+    void bodyReceived(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Called exactly once, when the request is over.
+     *
+     * @param failure
+     *            null if the whole response body was received, otherwise why it wasn't
+     */
+    void responseFinished(IOException failure);
+}
@@ -0,0 +1,25 @@
+package org.oxcart.streams;
+
+import java.util.List;
+
+/**
+ * Interface for objects that can validate their results.
+ * 
+ * @author ox.to.a.cart /at/ gmail.com
+ * 
+ */
+public interface IValidatable {
+    /**
+     * Check if this object is valid.
+     * 
+     * @return
+     */
+    boolean isValid();
+
+    /**
+     * Get any validation errors (make sure to call isValid() first).
+     * 
+     * @return
+     */
+    List<String> getValidationErrors();
+}
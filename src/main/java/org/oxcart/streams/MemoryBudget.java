@@ -0,0 +1,73 @@
+package org.oxcart.streams;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A limit on the number of bytes that may be held in memory by one or more {@link ReadAheadInputStream}s. A single
+ * budget can be shared by many streams, in which case they collectively stay within the limit. Data that doesn't fit
+ * within the budget is spilled to disk.
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class MemoryBudget {
+    private final long limit;
+    private final AtomicLong reservedBytes = new AtomicLong(0);
+
+    /**
+     * Construct a budget allowing up to limit bytes to be held in memory.
+     *
+     * @param limit
+     */
+    public MemoryBudget(long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Memory budget must not be negative");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Try to reserve the given number of bytes.
+     *
+     * @param bytes
+     * @return true if the bytes were reserved, false if doing so would exceed the budget
+     */
+    public boolean tryReserve(long bytes) {
+        while (true) {
+            long reserved = reservedBytes.get();
+            if (reserved + bytes > limit) {
+                return false;
+            }
+            if (reservedBytes.compareAndSet(reserved, reserved + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release bytes previously reserved with {@link #tryReserve(long)}.
+     *
+     * @param bytes
+     */
+    public void release(long bytes) {
+        reservedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Whether the given number of bytes could be reserved right now.
+     *
+     * @param bytes
+     * @return
+     */
+    public boolean hasRoomFor(long bytes) {
+        return reservedBytes.get() + bytes <= limit;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+}
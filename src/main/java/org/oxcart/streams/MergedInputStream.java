@@ -2,19 +2,26 @@ package org.oxcart.streams;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Stack;
 
 /**
- * InputStream that merges multiple other InputStreams.
+ * InputStream that merges multiple other InputStreams. Merged streams that are {@link IChannelSource}s write their data
+ * straight to the channel given to {@link #readTo(WritableByteChannel)}, others are copied through a buffer.
  * 
  * @author ox.to.a.cart /at/ gmail.com
  * 
  */
-public class MergedInputStream extends InputStream {
+public class MergedInputStream extends InputStream implements IChannelSource {
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
     private Stack<InputStream> allStreams = new Stack<InputStream>();
     private Stack<InputStream> remainingStreams = new Stack<InputStream>();
     private InputStream currentStream;
-    private int bytesRead = 0;
+    private long bytesRead = 0;
+    private volatile int currentIndex = 0;
+    private byte[] transferBuffer;
 
     public MergedInputStream(InputStream... originalStreams) {
         // Add streams to stack backwards so that we pop() them in the same order as given.
@@ -34,12 +41,80 @@ public class MergedInputStream extends InputStream {
                 return -1;
             }
             // Move on to next stream
-            currentStream = remainingStreams.pop();
+            nextStream();
         }
         bytesRead += 1;
         return result;
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int result;
+        while (currentStream == null || (result = currentStream.read(b, off, len)) == -1) {
+            if (remainingStreams.isEmpty()) {
+                // We're done
+                return -1;
+            }
+            // Move on to next stream
+            nextStream();
+        }
+        bytesRead += result;
+        return result;
+    }
+
+    @Override
+    public long readTo(WritableByteChannel target) throws IOException {
+        long result;
+        while (currentStream == null || (result = readTo(currentStream, target)) == -1) {
+            if (remainingStreams.isEmpty()) {
+                // We're done
+                return -1;
+            }
+            // Move on to next stream
+            nextStream();
+        }
+        bytesRead += result;
+        return result;
+    }
+
+    /**
+     * Skips within the current stream, moving on to the next stream only once the current one is exhausted.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        while (true) {
+            if (currentStream != null) {
+                long skipped = currentStream.skip(n);
+                if (skipped > 0) {
+                    bytesRead += skipped;
+                    return skipped;
+                }
+                // skip() is allowed to return 0 before the end of the stream, so use read() to find out
+                if (currentStream.read() != -1) {
+                    bytesRead += 1;
+                    return 1;
+                }
+            }
+            if (remainingStreams.isEmpty()) {
+                // We're done
+                return 0;
+            }
+            // Move on to next stream
+            nextStream();
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return currentStream == null ? 0 : currentStream.available();
+    }
+
     /**
      * Close the currentStream and all remainingStreams as necessary. If the MergedInputStream was already completely
      * read, then all original streams will have already been closed.
@@ -59,8 +134,40 @@ public class MergedInputStream extends InputStream {
         }
     }
 
-    public int getBytesRead() {
+    public long getBytesRead() {
         return bytesRead;
     }
 
+    /**
+     * Returns the index of the stream that is currently being read, or that will be read first if reading hasn't
+     * started yet. May be called from any thread.
+     * 
+     * @return
+     */
+    public int getCurrentIndex() {
+        return currentIndex;
+    }
+
+    private long readTo(InputStream stream, WritableByteChannel target) throws IOException {
+        if (stream instanceof IChannelSource) {
+            return ((IChannelSource) stream).readTo(target);
+        }
+        if (transferBuffer == null) {
+            transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+        }
+        int read = stream.read(transferBuffer);
+        if (read > 0) {
+            ByteBuffer source = ByteBuffer.wrap(transferBuffer, 0, read);
+            while (source.hasRemaining()) {
+                target.write(source);
+            }
+        }
+        return read;
+    }
+
+    private void nextStream() {
+        currentStream = remainingStreams.pop();
+        currentIndex = allStreams.size() - remainingStreams.size() - 1;
+    }
+
 }
@@ -0,0 +1,465 @@
+package org.oxcart.streams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * <p>
+ * Metrics of one or more downloads: per mirror, the bytes fetched, throughput, requests, failures, retries, pieces that
+ * failed verification, and histograms of time to first byte and request duration; and for the readers of
+ * {@link ParallelHttpGetInputStream}s, how much data is buffered and how long they spend waiting for it. A single
+ * registry can be shared by many downloads (see {@link ParallelHttpGetOptions#setMetrics(Metrics)}), in which case
+ * mirrors with the same url are counted together.
+ * </p>
+ *
+ * <p>
+ * The metrics can be registered as JMX MBeans with {@link #register(String)}, and written in the Prometheus text
+ * exposition format with {@link #writeText(Writer)}. Counters that are updated for every read are striped across
+ * threads, so that downloads don't contend on them.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class Metrics implements MetricsMBean {
+    /**
+     * JMX domain under which metrics are registered.
+     */
+    public static final String DOMAIN = "org.oxcart.pget";
+    /**
+     * Upper bounds in seconds of the buckets of the time to first byte and request duration histograms.
+     */
+    static final double[] LATENCY_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 };
+    private static final String ENCODING = "UTF-8";
+
+    // The following are guarded by this
+    private final Map<String, MirrorMetrics> mirrors = new LinkedHashMap<String, MirrorMetrics>();
+    // Shared budgets are counted once, however many streams use them
+    private final Map<MemoryBudget, Integer> memoryBudgets = new IdentityHashMap<MemoryBudget, Integer>();
+    private MBeanServer mBeanServer;
+    private String name;
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    private final Counter readStallNanos = new Counter();
+    private final Counter readStalls = new Counter();
+
+    /**
+     * Returns the metrics of the mirror with the given url, creating them if this is the first download to use it.
+     *
+     * @param url
+     * @return
+     */
+    public synchronized MirrorMetrics getMirror(String url) {
+        MirrorMetrics mirror = mirrors.get(url);
+        if (mirror == null) {
+            mirror = new MirrorMetrics(url);
+            mirrors.put(url, mirror);
+            if (mBeanServer != null) {
+                try {
+                    registerMirror(mirror);
+                } catch (JMException jme) {
+                    // The mirror's metrics are still written by writeText()
+                }
+            }
+        }
+        return mirror;
+    }
+
+    public synchronized List<MirrorMetrics> getMirrors() {
+        return new ArrayList<MirrorMetrics>(mirrors.values());
+    }
+
+    /**
+     * Count the data a stream holds in the given budget as buffered, until {@link #removeMemoryBudget(MemoryBudget)}.
+     *
+     * @param memoryBudget
+     */
+    synchronized void addMemoryBudget(MemoryBudget memoryBudget) {
+        Integer users = memoryBudgets.get(memoryBudget);
+        memoryBudgets.put(memoryBudget, users == null ? 1 : users + 1);
+    }
+
+    synchronized void removeMemoryBudget(MemoryBudget memoryBudget) {
+        Integer users = memoryBudgets.get(memoryBudget);
+        if (users == null || users == 1) {
+            memoryBudgets.remove(memoryBudget);
+        } else {
+            memoryBudgets.put(memoryBudget, users - 1);
+        }
+    }
+
+    /**
+     * Record that a reader waited for data for the given time.
+     *
+     * @param nanos
+     */
+    void readStalled(long nanos) {
+        readStalls.add(1);
+        readStallNanos.add(nanos);
+    }
+
+    @Override
+    public synchronized long getBufferedBytes() {
+        long bufferedBytes = 0;
+        for (MemoryBudget memoryBudget : memoryBudgets.keySet()) {
+            bufferedBytes += memoryBudget.getReservedBytes();
+        }
+        return bufferedBytes;
+    }
+
+    @Override
+    public synchronized long getBufferLimit() {
+        long limit = 0;
+        for (MemoryBudget memoryBudget : memoryBudgets.keySet()) {
+            limit += memoryBudget.getLimit();
+        }
+        return limit;
+    }
+
+    @Override
+    public long getReadStalls() {
+        return readStalls.get();
+    }
+
+    @Override
+    public double getReadStallSeconds() {
+        return readStallNanos.get() / 1e9;
+    }
+
+    @Override
+    public long getBytesFetched() {
+        long bytesFetched = 0;
+        for (MirrorMetrics mirror : getMirrors()) {
+            bytesFetched += mirror.getBytesFetched();
+        }
+        return bytesFetched;
+    }
+
+    @Override
+    public double getThroughput() {
+        double throughput = 0;
+        for (MirrorMetrics mirror : getMirrors()) {
+            throughput += mirror.getThroughput();
+        }
+        return throughput;
+    }
+
+    @Override
+    public long getRequests() {
+        long requests = 0;
+        for (MirrorMetrics mirror : getMirrors()) {
+            requests += mirror.getRequests();
+        }
+        return requests;
+    }
+
+    @Override
+    public long getFailedRequests() {
+        long failedRequests = 0;
+        for (MirrorMetrics mirror : getMirrors()) {
+            failedRequests += mirror.getFailedRequests();
+        }
+        return failedRequests;
+    }
+
+    /**
+     * Register these metrics and those of each mirror (including mirrors added later) with the platform MBeanServer,
+     * as <code>org.oxcart.pget:type=Metrics,name=&lt;quoted name&gt;</code> and
+     * <code>org.oxcart.pget:type=Mirror,name=&lt;quoted name&gt;,url=&lt;quoted url&gt;</code>.
+     *
+     * @param name
+     *            distinguishes these metrics from others registered in the same JVM
+     * @throws IOException
+     *             if the metrics can't be registered, for example because the name is taken
+     */
+    public synchronized void register(String name) throws IOException {
+        if (mBeanServer != null) {
+            throw new IllegalStateException("Metrics already registered as " + this.name);
+        }
+        mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        this.name = name;
+        try {
+            register(new StandardMBean(this, MetricsMBean.class),
+                     new ObjectName(String.format("%1$s:type=Metrics,name=%2$s", DOMAIN, ObjectName.quote(name))));
+            for (MirrorMetrics mirror : mirrors.values()) {
+                registerMirror(mirror);
+            }
+        } catch (JMException jme) {
+            unregister();
+            throw new IOException(String.format("Unable to register metrics %1$s: %2$s", name, jme.getMessage()), jme);
+        }
+    }
+
+    /**
+     * Remove the MBeans registered by {@link #register(String)}, if any.
+     */
+    public synchronized void unregister() {
+        for (ObjectName objectName : registered) {
+            try {
+                mBeanServer.unregisterMBean(objectName);
+            } catch (JMException jme) {
+                // Already gone
+            }
+        }
+        registered.clear();
+        mBeanServer = null;
+        name = null;
+    }
+
+    /**
+     * Write the current value of all metrics in the Prometheus text exposition format.
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void writeText(Writer writer) throws IOException {
+        List<MirrorMetrics> mirrors = getMirrors();
+        writeHeader(writer, "pget_mirror_bytes_fetched_total", "counter", "Bytes fetched from the mirror");
+        for (MirrorMetrics mirror : mirrors) {
+            writeSample(writer, "pget_mirror_bytes_fetched_total", mirror, null, mirror.getBytesFetched());
+        }
+        writeHeader(writer, "pget_mirror_throughput_bytes_per_second", "gauge",
+                    "Estimated throughput of the mirror while data is flowing");
+        for (MirrorMetrics mirror : mirrors) {
+            writeSample(writer, "pget_mirror_throughput_bytes_per_second", mirror, null, mirror.getThroughput());
+        }
+        writeHeader(writer, "pget_mirror_requests_total", "counter", "Range requests made to the mirror");
+        for (MirrorMetrics mirror : mirrors) {
+            writeSample(writer, "pget_mirror_requests_total", mirror, null, mirror.getRequests());
+        }
+        writeHeader(writer, "pget_mirror_failed_requests_total", "counter",
+                    "Range requests to the mirror that failed");
+        for (MirrorMetrics mirror : mirrors) {
+            writeSample(writer, "pget_mirror_failed_requests_total", mirror, null, mirror.getFailedRequests());
+        }
+        writeHeader(writer, "pget_mirror_retries_total", "counter", "Failed requests to the mirror that were retried");
+        for (MirrorMetrics mirror : mirrors) {
+            writeSample(writer, "pget_mirror_retries_total", mirror, null, mirror.getRetries());
+        }
+        writeHeader(writer, "pget_mirror_bad_pieces_total", "counter",
+                    "Pieces with data from the mirror that failed verification");
+        for (MirrorMetrics mirror : mirrors) {
+            writeSample(writer, "pget_mirror_bad_pieces_total", mirror, null, mirror.getBadPieces());
+        }
+        writeHeader(writer, "pget_mirror_time_to_first_byte_seconds", "histogram",
+                    "Time from making a range request to the mirror until its response starts");
+        for (MirrorMetrics mirror : mirrors) {
+            writeHistogram(writer, "pget_mirror_time_to_first_byte_seconds", mirror, mirror.getTimeToFirstByte());
+        }
+        writeHeader(writer, "pget_mirror_request_duration_seconds", "histogram",
+                    "Time from making a range request to the mirror until its response is over");
+        for (MirrorMetrics mirror : mirrors) {
+            writeHistogram(writer, "pget_mirror_request_duration_seconds", mirror, mirror.getRequestDuration());
+        }
+        writeHeader(writer, "pget_buffered_bytes", "gauge", "Bytes buffered in memory ahead of the readers");
+        writeSample(writer, "pget_buffered_bytes", null, null, getBufferedBytes());
+        writeHeader(writer, "pget_buffer_limit_bytes", "gauge", "Bytes that may be buffered in memory");
+        writeSample(writer, "pget_buffer_limit_bytes", null, null, getBufferLimit());
+        writeHeader(writer, "pget_read_stalls_total", "counter", "Times that readers had to wait for data");
+        writeSample(writer, "pget_read_stalls_total", null, null, getReadStalls());
+        writeHeader(writer, "pget_read_stall_seconds_total", "counter", "Time readers spent waiting for data");
+        writeSample(writer, "pget_read_stall_seconds_total", null, null, getReadStallSeconds());
+        writer.flush();
+    }
+
+    /**
+     * Write the metrics like {@link #writeText(Writer)} to the given file, replacing it in one go so that whoever reads
+     * it never sees it half written.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeText(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), ENCODING);
+        try {
+            writeText(writer);
+        } finally {
+            writer.close();
+        }
+        file.delete();
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException(String.format("Unable to write metrics to %1$s", file));
+        }
+    }
+
+    /**
+     * Must be called while holding the lock on this.
+     */
+    private void registerMirror(MirrorMetrics mirror) throws JMException {
+        register(new StandardMBean(mirror, MirrorMetricsMBean.class),
+                 new ObjectName(String.format("%1$s:type=Mirror,name=%2$s,url=%3$s", DOMAIN, ObjectName.quote(name),
+                                              ObjectName.quote(mirror.getUrl()))));
+    }
+
+    private void register(Object mBean, ObjectName objectName) throws JMException {
+        mBeanServer.registerMBean(mBean, objectName);
+        registered.add(objectName);
+    }
+
+    private static void writeHeader(Writer writer, String metric, String type, String help) throws IOException {
+        writer.write(String.format("# HELP %1$s %2$s\n# TYPE %1$s %3$s\n", metric, help, type));
+    }
+
+    private static void writeHistogram(Writer writer, String metric, MirrorMetrics mirror, Histogram histogram)
+            throws IOException {
+        double[] bounds = histogram.getBounds();
+        long[] counts = histogram.getCounts();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String bound = i < bounds.length ? String.valueOf(bounds[i]) : "+Inf";
+            writeSample(writer, metric + "_bucket", mirror, bound, cumulative);
+        }
+        writeSample(writer, metric + "_sum", mirror, null, histogram.getSumSeconds());
+        writeSample(writer, metric + "_count", mirror, null, cumulative);
+    }
+
+    private static void writeSample(Writer writer, String metric, MirrorMetrics mirror, String bound, Object value)
+            throws IOException {
+        writer.write(metric);
+        if (mirror != null) {
+            writer.write("{url=\"");
+            writer.write(escape(mirror.getUrl()));
+            writer.write("\"");
+            if (bound != null) {
+                writer.write(",le=\"");
+                writer.write(bound);
+                writer.write("\"");
+            }
+            writer.write("}");
+        }
+        writer.write(" ");
+        writer.write(String.valueOf(value));
+        writer.write("\n");
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A count that many threads can add to without contending: each thread adds to one of a number of separate cells,
+     * which are only summed up when the count is read. Reads see additions that happen while they're summing up
+     * either in full or not at all, so a count read while it's being added to is at worst slightly out of date.
+     */
+    public static class Counter {
+        private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+        // Spreads the cells out so that each is on a cache line of its own
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+        public void add(long n) {
+            long threadId = Thread.currentThread().getId();
+            int stripe = (int) ((threadId ^ (threadId >>> 16)) & (STRIPES - 1));
+            cells.addAndGet(stripe * PADDING, n);
+        }
+
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PADDING);
+            }
+            return sum;
+        }
+
+        /**
+         * Returns the smallest power of 2 that gives each processor two stripes to itself, up to 64.
+         */
+        private static int stripes(int processors) {
+            int stripes = 1;
+            while (stripes < 2 * processors && stripes < 64) {
+                stripes *= 2;
+            }
+            return stripes;
+        }
+    }
+
+    /**
+     * A count of durations by which of a fixed set of buckets they fall into, along with their sum.
+     */
+    public static class Histogram {
+        private final double[] bounds;
+        // One more than there are bounds, the last counting anything above the highest bound
+        private final Counter[] counts;
+        private final Counter sumNanos = new Counter();
+
+        /**
+         * @param bounds
+         *            upper bound in seconds of each bucket, in ascending order
+         */
+        public Histogram(double[] bounds) {
+            this.bounds = bounds.clone();
+            this.counts = new Counter[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new Counter();
+            }
+        }
+
+        public void record(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < bounds.length && seconds > bounds[bucket]) {
+                bucket++;
+            }
+            counts[bucket].add(1);
+            sumNanos.add(nanos);
+        }
+
+        public double[] getBounds() {
+            return bounds.clone();
+        }
+
+        /**
+         * Returns the number of durations in each bucket, the last one being those above the highest bound.
+         *
+         * @return
+         */
+        public long[] getCounts() {
+            long[] result = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                result[i] = counts[i].get();
+            }
+            return result;
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (Counter bucket : counts) {
+                count += bucket.get();
+            }
+            return count;
+        }
+
+        public double getSumSeconds() {
+            return sumNanos.get() / 1e9;
+        }
+
+        /**
+         * Returns the mean duration in seconds, or 0 if nothing has been recorded yet.
+         *
+         * @return
+         */
+        public double getMeanSeconds() {
+            long count = getCount();
+            return count == 0 ? 0 : getSumSeconds() / count;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.oxcart.streams;
+
+/**
+ * The management interface through which {@link Metrics} are exposed over JMX.
+ * 
+ * @author ox.to.a.cart /at/ gmail.com
+ * 
+ */
+public interface MetricsMBean {
+    /**
+     * Returns the number of bytes fetched from all mirrors.
+     */
+    long getBytesFetched();
+
+    /**
+     * Returns the estimated throughput of all mirrors together in bytes/sec.
+     */
+    double getThroughput();
+
+    /**
+     * Returns the number of range requests made to all mirrors.
+     */
+    long getRequests();
+
+    /**
+     * Returns the number of range requests to all mirrors that failed.
+     */
+    long getFailedRequests();
+
+    /**
+     * Returns the number of bytes currently buffered in memory ahead of the readers.
+     */
+    long getBufferedBytes();
+
+    /**
+     * Returns the number of bytes that may be buffered in memory.
+     */
+    long getBufferLimit();
+
+    /**
+     * Returns the number of times that readers had to wait for data.
+     */
+    long getReadStalls();
+
+    /**
+     * Returns the total time in seconds that readers spent waiting for data.
+     */
+    double getReadStallSeconds();
+}
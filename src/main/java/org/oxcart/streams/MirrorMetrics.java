@@ -0,0 +1,142 @@
+package org.oxcart.streams;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link Metrics} of a single mirror, covering every download that uses it. Counts are updated by the mirror's
+ * {@link MirrorStats} as fetches happen, and the throughput is summed over the downloads currently using the mirror.
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class MirrorMetrics implements MirrorMetricsMBean {
+    private final String url;
+    private final Metrics.Counter bytesFetched = new Metrics.Counter();
+    private final Metrics.Counter requests = new Metrics.Counter();
+    private final Metrics.Counter failedRequests = new Metrics.Counter();
+    private final Metrics.Counter retries = new Metrics.Counter();
+    private final Metrics.Counter badPieces = new Metrics.Counter();
+    private final Metrics.Histogram timeToFirstByte = new Metrics.Histogram(Metrics.LATENCY_BUCKETS);
+    private final Metrics.Histogram requestDuration = new Metrics.Histogram(Metrics.LATENCY_BUCKETS);
+    // Guarded by itself
+    private final List<MirrorStats> downloads = new ArrayList<MirrorStats>();
+
+    MirrorMetrics(String url) {
+        this.url = url;
+    }
+
+    @Override
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public long getBytesFetched() {
+        return bytesFetched.get();
+    }
+
+    @Override
+    public double getThroughput() {
+        double throughput = 0;
+        synchronized (downloads) {
+            for (MirrorStats stats : downloads) {
+                throughput += stats.getThroughput();
+            }
+        }
+        return throughput;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getBadPieces() {
+        return badPieces.get();
+    }
+
+    public Metrics.Histogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    public Metrics.Histogram getRequestDuration() {
+        return requestDuration;
+    }
+
+    @Override
+    public double[] getLatencyBuckets() {
+        return Metrics.LATENCY_BUCKETS.clone();
+    }
+
+    @Override
+    public long[] getTimeToFirstByteCounts() {
+        return timeToFirstByte.getCounts();
+    }
+
+    @Override
+    public double getMeanTimeToFirstByteSeconds() {
+        return timeToFirstByte.getMeanSeconds();
+    }
+
+    @Override
+    public long[] getRequestDurationCounts() {
+        return requestDuration.getCounts();
+    }
+
+    @Override
+    public double getMeanRequestDurationSeconds() {
+        return requestDuration.getMeanSeconds();
+    }
+
+    void addDownload(MirrorStats stats) {
+        synchronized (downloads) {
+            downloads.add(stats);
+        }
+    }
+
+    void removeDownload(MirrorStats stats) {
+        synchronized (downloads) {
+            downloads.remove(stats);
+        }
+    }
+
+    void bytesFetched(long bytes) {
+        bytesFetched.add(bytes);
+    }
+
+    void requestMade() {
+        requests.add(1);
+    }
+
+    void requestFailed() {
+        failedRequests.add(1);
+    }
+
+    void requestRetried() {
+        retries.add(1);
+    }
+
+    void pieceFailedVerification() {
+        badPieces.add(1);
+    }
+
+    void responseStarted(long timeToFirstByteNanos) {
+        timeToFirstByte.record(timeToFirstByteNanos);
+    }
+
+    void responseFinished(long durationNanos) {
+        requestDuration.record(durationNanos);
+    }
+}
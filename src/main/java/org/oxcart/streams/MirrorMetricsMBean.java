@@ -0,0 +1,51 @@
+package org.oxcart.streams;
+
+/**
+ * The management interface through which {@link MirrorMetrics} are exposed over JMX.
+ * 
+ * @author ox.to.a.cart /at/ gmail.com
+ * 
+ */
+public interface MirrorMetricsMBean {
+    String getUrl();
+
+    long getBytesFetched();
+
+    /**
+     * Returns the estimated throughput in bytes/sec while data is flowing, summed over the downloads currently using
+     * the mirror.
+     */
+    double getThroughput();
+
+    long getRequests();
+
+    long getFailedRequests();
+
+    /**
+     * Returns the number of failed requests after which the mirror was tried again.
+     */
+    long getRetries();
+
+    long getBadPieces();
+
+    /**
+     * Returns the upper bounds in seconds of the buckets of the time to first byte and request duration histograms.
+     */
+    double[] getLatencyBuckets();
+
+    /**
+     * Returns the number of requests whose response started within each bucket, the last one counting those above
+     * the highest bound.
+     */
+    long[] getTimeToFirstByteCounts();
+
+    double getMeanTimeToFirstByteSeconds();
+
+    /**
+     * Returns the number of requests whose response was over within each bucket, the last one counting those above
+     * the highest bound.
+     */
+    long[] getRequestDurationCounts();
+
+    double getMeanRequestDurationSeconds();
+}
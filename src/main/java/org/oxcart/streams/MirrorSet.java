@@ -0,0 +1,278 @@
+package org.oxcart.streams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpHead;
+
+/**
+ * The set of compatible {@link Resource}s from which a single download is fetched, along with the HttpClient used to
+ * fetch them. The urls are probed concurrently, and any that can't be used are dropped rather than failing the whole
+ * download. Each probe is given twice the probe timeout from when it starts running, not counting any time spent
+ * waiting for a thread, and is aborted if it hasn't finished by then, however far it got. The connections opened by the
+ * probes stay in the pool for the range requests that follow. Unless the options supply a shared
+ * {@link HttpConnectionPool}, the set has a pool of its own, which {@link #close()} shuts down.
+ * 
+ * @author ox.to.a.cart /at/ gmail.com
+ * 
+ */
+class MirrorSet {
+    private HttpConnectionPool connectionPool;
+    private boolean ownsConnectionPool;
+    private HttpClient httpClient;
+    private List<Resource> resources;
+    private ParallelHttpGetOptions options;
+    private List<String> failures = new ArrayList<String>();
+
+    /**
+     * Look up the given urls in parallel on the given ExecutorService and keep those that can be used together to
+     * fetch a single resource.
+     * 
+     * @param executorService
+     * @param options
+     * @param urls
+     * @throws IOException
+     *             if none of the urls can be used
+     */
+    public MirrorSet(ExecutorService executorService, ParallelHttpGetOptions options, String... urls)
+            throws IOException {
+        this.options = options;
+        initHttpClient(urls.length);
+        boolean usable = false;
+        try {
+            probeResources(executorService, urls);
+            dropIncompatibleResources();
+            if (resources.isEmpty()) {
+                throw new IOException(String.format("None of the urls could be used: %1$s", failures));
+            }
+            Metrics metrics = options.getMetrics();
+            if (metrics != null) {
+                for (Resource resource : resources) {
+                    resource.setMetrics(metrics.getMirror(resource.getUrl()));
+                }
+            }
+            usable = true;
+        } finally {
+            if (!usable) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Stop recording metrics for the resources, and shut down the connection pool unless it's shared with other
+     * downloads.
+     */
+    public void close() {
+        if (resources != null) {
+            for (Resource resource : resources) {
+                resource.setMetrics(null);
+            }
+        }
+        if (ownsConnectionPool) {
+            connectionPool.shutdown();
+        }
+    }
+
+    public List<Resource> getResources() {
+        return resources;
+    }
+
+    /**
+     * Returns why each of the urls that were dropped couldn't be used.
+     * 
+     * @return
+     */
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    public long getContentLength() {
+        return resources.get(0).getContentLength();
+    }
+
+    /**
+     * Report how much each mirror has fetched under the given category, along with its throughput, time to first byte
+     * and failures.
+     * 
+     * @param recorder
+     * @param category
+     */
+    public void reportProgress(IProgressRecorder recorder, String category) {
+        double totalThroughput = 0;
+        double longestTimeToFirstByte = 0;
+        for (Resource resource : resources) {
+            totalThroughput += resource.getStats().getThroughput();
+            longestTimeToFirstByte = Math.max(longestTimeToFirstByte, resource.getStats().getTimeToFirstByte());
+        }
+        for (Resource resource : resources) {
+            MirrorStats stats = resource.getStats();
+            recorder.record(resource.getUrl(), category, getContentLength(), stats.getBytesFetched());
+            recorder.record(resource.getUrl(), IProgressReporter.THROUGHPUT, totalThroughput, stats.getThroughput());
+            recorder.record(resource.getUrl(), IProgressReporter.TIME_TO_FIRST_BYTE, longestTimeToFirstByte * 1000,
+                            stats.getTimeToFirstByte() * 1000);
+            recorder.record(resource.getUrl(), IProgressReporter.RETRIES, options.getMaxRetries(),
+                            stats.getConsecutiveFailures());
+            recorder.record(resource.getUrl(), IProgressReporter.FAILED_FETCHES, stats.getFetchAttempts(),
+                            stats.getFailedFetches());
+            recorder.record(resource.getUrl(), IProgressReporter.BAD_PIECES, options.getMaxBadPieces(),
+                            stats.getBadPieces());
+        }
+    }
+
+    private void initHttpClient(int numberOfUrls) throws IOException {
+        connectionPool = options.getConnectionPool();
+        ownsConnectionPool = connectionPool == null;
+        if (ownsConnectionPool) {
+            // Enough for every connection to every url, so that the pool never limits the connections per mirror. The
+            // pool only lives as long as the download, so there's no need to evict idle connections.
+            int connectionsPerMirror = options.getConnectionsPerMirror();
+            connectionPool = new HttpConnectionPool(
+                                                    Math.max(HttpConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+                                                             connectionsPerMirror),
+                                                    Math.max(HttpConnectionPool.DEFAULT_MAX_CONNECTIONS, numberOfUrls
+                                                            * connectionsPerMirror), 0);
+        } else if (connectionPool.isShutdown()) {
+            throw new IOException("Connection pool has been shut down");
+        }
+        this.httpClient = connectionPool.getHttpClient();
+    }
+
+    private void probeResources(ExecutorService executorService, String[] urls) throws IOException {
+        List<Probe> probes = new ArrayList<Probe>();
+        List<Future<Resource>> futures = new ArrayList<Future<Resource>>();
+        for (String url : urls) {
+            Probe probe = new Probe(url);
+            probes.add(probe);
+            futures.add(executorService.submit(probe));
+        }
+        this.resources = new ArrayList<Resource>();
+        for (int i = 0; i < urls.length; i++) {
+            try {
+                Resource resource = probes.get(i).await(futures.get(i));
+                if (resource.acceptsRangeRequests()) {
+                    resources.add(resource);
+                } else {
+                    failures.add(String.format("Resource does not allow range requests: %1$s", resource.getUrl()));
+                }
+            } catch (ExecutionException ee) {
+                failures.add(String.format("Unable to get HEAD information for %1$s: %2$s", urls[i],
+                                           ee.getCause().getMessage()));
+            } catch (TimeoutException te) {
+                futures.get(i).cancel(true);
+                probes.get(i).abort();
+                failures.add(String.format("Timed out getting HEAD information for %1$s after %2$s ms", urls[i],
+                                           2L * options.getProbeTimeoutMillis()));
+            } catch (InterruptedException ie) {
+                for (int j = 0; j < urls.length; j++) {
+                    futures.get(j).cancel(true);
+                    probes.get(j).abort();
+                }
+                throw new IOException("Interrupted while probing urls: " + ie.getMessage(), ie);
+            }
+        }
+    }
+
+    /**
+     * Looks up a url with a HEAD request that can be aborted from another thread. The probe timeout only limits each
+     * step, like connecting or each read, so a server that keeps sending a little at a time or a slow DNS lookup would
+     * hold up startup indefinitely without an overall deadline. Twice the timeout leaves room for a connection and a
+     * response that each take almost all of it. The deadline starts once the probe runs, since the ExecutorService
+     * may be shared with other downloads whose tasks hold its threads for a long time.
+     */
+    private class Probe implements Callable<Resource> {
+        private final String url;
+        private final HttpHead method;
+        // In nanoseconds, set once the probe starts running
+        private volatile long deadline;
+        private volatile boolean started = false;
+
+        private Probe(String url) {
+            this.url = url;
+            this.method = new HttpHead(url);
+        }
+
+        @Override
+        public Resource call() throws Exception {
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2L * options.getProbeTimeoutMillis());
+            started = true;
+            return new Resource(httpClient, url, method, options.getProbeTimeoutMillis());
+        }
+
+        /**
+         * Wait for the result of the probe, for however long it waits for a thread and then until its deadline.
+         *
+         * @param future
+         *            the probe's future
+         * @return
+         * @throws InterruptedException
+         * @throws ExecutionException
+         * @throws TimeoutException
+         *             if the probe was still running at its deadline
+         */
+        private Resource await(Future<Resource> future) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            while (true) {
+                boolean running = started;
+                long waitNanos = running ? deadline - System.nanoTime()
+                        : TimeUnit.MILLISECONDS.toNanos(options.getProbeTimeoutMillis());
+                try {
+                    return future.get(Math.max(0, waitNanos), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException te) {
+                    if (running) {
+                        throw te;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Give up on the request, closing its connection if it has one, which makes a blocked read fail right away.
+         */
+        private void abort() {
+            method.abort();
+        }
+    }
+
+    /**
+     * Keep only the resources whose content length is the one reported by most of them, preferring earlier urls in
+     * case of a tie.
+     */
+    private void dropIncompatibleResources() {
+        Map<Long, Resource> firstByLength = new LinkedHashMap<Long, Resource>();
+        Map<Long, Integer> countByLength = new LinkedHashMap<Long, Integer>();
+        Resource mostCommon = null;
+        for (Resource resource : resources) {
+            Long length = resource.getContentLength();
+            if (!firstByLength.containsKey(length)) {
+                firstByLength.put(length, resource);
+                countByLength.put(length, 0);
+            }
+            countByLength.put(length, countByLength.get(length) + 1);
+            if (mostCommon == null
+                    || countByLength.get(length) > countByLength.get(mostCommon.getContentLength())) {
+                mostCommon = firstByLength.get(length);
+            }
+        }
+        List<Resource> compatibleResources = new ArrayList<Resource>();
+        for (Resource resource : resources) {
+            try {
+                mostCommon.ensureCompatibleWith(resource);
+                compatibleResources.add(resource);
+            } catch (IOException ioe) {
+                failures.add(ioe.getMessage());
+            }
+        }
+        this.resources = compatibleResources;
+    }
+}
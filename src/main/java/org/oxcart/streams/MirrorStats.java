@@ -0,0 +1,291 @@
+package org.oxcart.streams;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running estimates of how a {@link Resource} performs: its throughput once data is flowing and its time to first
+ * byte. Both are exponentially weighted moving averages, so they follow changes in a mirror's speed over the course of
+ * a download. Also counts failed fetches, both in total and in a row, the latter being what retry budgets are charged
+ * against, and pieces that failed verification. Everything recorded is also passed on to the mirror's
+ * {@link MirrorMetrics}, if it has any.
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+class MirrorStats {
+    /**
+     * Weight given to each new sample.
+     */
+    static final double SMOOTHING = 0.3;
+    /**
+     * Throughput is sampled over intervals of at least this long while data is flowing.
+     */
+    static final long SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private long bytesFetched = 0;
+    private int activeFetches = 0;
+    private double throughput = 0;
+    private double timeToFirstByte = 0;
+    private boolean hasTimeToFirstByte = false;
+    private long sampleStart;
+    private long sampleBytes = 0;
+    private int sampleConnections = 0;
+    private double connections = 0;
+    private int fetchAttempts = 0;
+    private int failedFetches = 0;
+    private int consecutiveFailures = 0;
+    private int badPieces = 0;
+    private volatile MirrorMetrics metrics;
+
+    /**
+     * Decide whether a mirror should leave a chunk to faster mirrors rather than fetching it itself, which is the case
+     * if the busy mirrors that are faster would get through all of the pending chunks before this mirror could finish
+     * just the one. This keeps slow mirrors from holding up the end of a download.
+     *
+     * @param mine
+     *            stats of the mirror considering the chunk
+     * @param others
+     *            stats of all other mirrors
+     * @param chunkLength
+     * @param pendingChunks
+     *            number of chunks waiting to be fetched, including this one
+     * @return
+     */
+    static boolean shouldLeaveToFasterMirrors(MirrorStats mine, Collection<MirrorStats> others, long chunkLength,
+            int pendingChunks) {
+        double mySeconds = mine.estimateSeconds(chunkLength);
+        if (Double.isInfinite(mySeconds)) {
+            // We don't know how fast we are yet
+            return false;
+        }
+        double othersChunksPerSecond = 0;
+        for (MirrorStats other : others) {
+            if (other != mine && other.isFetching()) {
+                double otherSeconds = other.estimateSeconds(chunkLength);
+                if (otherSeconds < mySeconds) {
+                    // Each of the other mirror's connections works on a chunk of its own
+                    othersChunksPerSecond += other.getConnections() / otherSeconds;
+                }
+            }
+        }
+        return othersChunksPerSecond > 0 && pendingChunks / othersChunksPerSecond < mySeconds;
+    }
+
+    /**
+     * Pass what is recorded from now on to the given metrics, which also take this download into account in the
+     * mirror's throughput.
+     *
+     * @param metrics
+     *            the mirror's metrics, or null to stop passing anything on
+     */
+    void setMetrics(MirrorMetrics metrics) {
+        MirrorMetrics previous = this.metrics;
+        if (previous != null) {
+            previous.removeDownload(this);
+        }
+        this.metrics = metrics;
+        if (metrics != null) {
+            metrics.addDownload(this);
+        }
+    }
+
+    void fetchAttempted() {
+        MirrorMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.requestMade();
+        }
+        synchronized (this) {
+            fetchAttempts += 1;
+        }
+    }
+
+    /**
+     * Record that a fetch failed.
+     * 
+     * @return the number of fetches that have failed in a row, including this one
+     */
+    synchronized int fetchFailed() {
+        if (metrics != null) {
+            metrics.requestFailed();
+        }
+        failedFetches += 1;
+        consecutiveFailures += 1;
+        return consecutiveFailures;
+    }
+
+    synchronized void fetchSucceeded() {
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Record that the mirror is going to be tried again after a failed fetch.
+     */
+    void fetchRetried() {
+        MirrorMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.requestRetried();
+        }
+    }
+
+    /**
+     * Record that a piece supplied (at least in part) by this mirror failed verification.
+     *
+     * @return the number of pieces from this mirror that have failed verification, including this one
+     */
+    synchronized int pieceFailedVerification() {
+        if (metrics != null) {
+            metrics.pieceFailedVerification();
+        }
+        badPieces += 1;
+        return badPieces;
+    }
+
+    void fetchStarted(long timeToFirstByteNanos) {
+        fetchStarted(timeToFirstByteNanos, System.nanoTime());
+    }
+
+    /**
+     * Record that a fetch received its response headers after the given time.
+     */
+    synchronized void fetchStarted(long timeToFirstByteNanos, long now) {
+        if (metrics != null) {
+            metrics.responseStarted(timeToFirstByteNanos);
+        }
+        double seconds = timeToFirstByteNanos / 1e9;
+        timeToFirstByte = hasTimeToFirstByte ? average(timeToFirstByte, seconds) : seconds;
+        hasTimeToFirstByte = true;
+        if (activeFetches == 0) {
+            // Don't count time spent idle towards throughput
+            sampleStart = now;
+            sampleBytes = 0;
+            sampleConnections = 0;
+        }
+        activeFetches += 1;
+        sampleConnections = Math.max(sampleConnections, activeFetches);
+    }
+
+    void bytesFetched(long bytes) {
+        MirrorMetrics metrics = this.metrics;
+        if (metrics != null) {
+            // Counted outside the lock, since the metrics may be shared with other downloads
+            metrics.bytesFetched(bytes);
+        }
+        bytesFetched(bytes, System.nanoTime());
+    }
+
+    synchronized void bytesFetched(long bytes, long now) {
+        bytesFetched += bytes;
+        sampleBytes += bytes;
+        if (now - sampleStart >= SAMPLE_INTERVAL_NANOS) {
+            sample(now);
+        }
+    }
+
+    /**
+     * Record that a fetch whose request was made the given time ago has received the whole response, or given up on
+     * it.
+     */
+    void fetchFinished(long requestNanos, long now) {
+        MirrorMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.responseFinished(requestNanos);
+        }
+        fetchFinished(now);
+    }
+
+    synchronized void fetchFinished(long now) {
+        activeFetches -= 1;
+        if (activeFetches == 0 && sampleBytes > 0 && now > sampleStart) {
+            // Going idle, so take what we have as a (possibly short) sample
+            sample(now);
+        }
+    }
+
+    /**
+     * Returns the estimated throughput in bytes/sec once data is flowing, or 0 if not known yet.
+     *
+     * @return
+     */
+    synchronized double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Returns the estimated throughput of a single connection in bytes/sec, or 0 if not known yet. When fetching over
+     * several connections at once, they share the mirror's throughput.
+     * 
+     * @return
+     */
+    synchronized double getThroughputPerConnection() {
+        return throughput / Math.max(1, connections);
+    }
+
+    /**
+     * Returns the typical number of connections over which data is fetched at once, or 0 if not known yet.
+     * 
+     * @return
+     */
+    synchronized double getConnections() {
+        return connections;
+    }
+
+    /**
+     * Returns the estimated time to first byte in seconds, or 0 if not known yet.
+     *
+     * @return
+     */
+    synchronized double getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    synchronized long getBytesFetched() {
+        return bytesFetched;
+    }
+
+    synchronized int getFetchAttempts() {
+        return fetchAttempts;
+    }
+
+    synchronized int getFailedFetches() {
+        return failedFetches;
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    synchronized int getBadPieces() {
+        return badPieces;
+    }
+
+    synchronized boolean isFetching() {
+        return activeFetches > 0;
+    }
+
+    /**
+     * Estimate how many seconds it would take to fetch a range of the given length over one connection.
+     *
+     * @param length
+     * @return the estimate, or infinity if the throughput isn't known yet
+     */
+    synchronized double estimateSeconds(long length) {
+        if (throughput <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return timeToFirstByte + length / getThroughputPerConnection();
+    }
+
+    private void sample(long now) {
+        double sampleThroughput = sampleBytes * 1e9 / (now - sampleStart);
+        throughput = throughput > 0 ? average(throughput, sampleThroughput) : sampleThroughput;
+        connections = connections > 0 ? average(connections, sampleConnections) : sampleConnections;
+        sampleStart = now;
+        sampleBytes = 0;
+        sampleConnections = activeFetches;
+    }
+
+    private static double average(double average, double sample) {
+        return SMOOTHING * sample + (1 - SMOOTHING) * average;
+    }
+}
@@ -0,0 +1,981 @@
+package org.oxcart.streams;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A minimal non-blocking HTTP/1.1 client that drives any number of GET requests from a few selector threads, instead
+ * of tying up a thread per connection like HttpClient does. The response to each request is streamed to an
+ * {@link IResponseHandler} on the selector thread that owns its connection. While a handler isn't ready for more data,
+ * its connection is taken out of the selector so that TCP flow control holds back the server, rather than data piling
+ * up in memory.
+ * </p>
+ *
+ * <p>
+ * Only plain http urls are supported (see {@link #supports(String)}). Connections are kept alive and reused by later
+ * requests to the same host that are handled by the same selector thread. Response bodies may be delimited by
+ * Content-Length, by chunked transfer encoding or by the connection closing. Host names are resolved on the selector
+ * thread.
+ * </p>
+ *
+ * <p>
+ * Requests can also be pipelined, up to a given number per connection: while there is no idle connection to a host, a
+ * request is sent on the busy connection with the fewest requests before a new one is opened. The server answers them
+ * in order, so a request waits for the responses ahead of it, and a handler that isn't ready holds up the requests
+ * behind its own. Requests that are needed right away (see {@link IResponseHandler#isNeededNow()}) are never queued
+ * like that, and a connection that such a request has come to be queued on doesn't pause. Requests that the server
+ * closes the connection on without answering are sent again on new connections. When a request is cancelled while
+ * waiting its turn, the requests behind it are sent again on new connections and its own connection is closed once the
+ * responses ahead of it are over, rather than reading a response that nobody wants.
+ * </p>
+ *
+ * <p>
+ * Besides requests, the engine runs tasks and timers on its selector threads for code that is driven by its
+ * responses, see {@link #execute(Runnable)} and {@link #schedule(Runnable, long)}.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+class NioHttpEngine {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+    /**
+     * How often a connection that is paused for backpressure checks whether its handler is ready again.
+     */
+    private static final long PAUSED_RECHECK_MILLIS = 10;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private enum State {
+        CONNECTING, SENDING, READING_HEADERS, READING_BODY, READING_CHUNK_SIZE, READING_CHUNK, READING_CHUNK_END,
+        READING_TRAILERS, IDLE
+    }
+
+    private final SelectorThread[] selectorThreads;
+    private final AtomicInteger nextSelectorThread = new AtomicInteger(0);
+    private final int maxRequestsPerConnection;
+
+    /**
+     * Start an engine with the given number of selector threads, which doesn't pipeline requests.
+     *
+     * @param numberOfThreads
+     * @throws IOException
+     *             if a selector couldn't be opened
+     */
+    NioHttpEngine(int numberOfThreads) throws IOException {
+        this(numberOfThreads, 1);
+    }
+
+    /**
+     * Start an engine with the given number of selector threads.
+     *
+     * @param numberOfThreads
+     * @param maxRequestsPerConnection
+     *            the most requests that may be waiting for their responses on one connection, 1 for no pipelining
+     * @throws IOException
+     *             if a selector couldn't be opened
+     */
+    NioHttpEngine(int numberOfThreads, int maxRequestsPerConnection) throws IOException {
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("Need at least 1 selector thread");
+        }
+        if (maxRequestsPerConnection < 1) {
+            throw new IllegalArgumentException("Need at least 1 request per connection");
+        }
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        selectorThreads = new SelectorThread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            selectorThreads[i] = new SelectorThread(i);
+        }
+        for (SelectorThread selectorThread : selectorThreads) {
+            selectorThread.start();
+        }
+    }
+
+    /**
+     * Whether the given url can be fetched by this engine.
+     *
+     * @param url
+     * @return
+     */
+    static boolean supports(String url) {
+        try {
+            URI uri = new URI(url);
+            return "http".equalsIgnoreCase(uri.getScheme()) && uri.getHost() != null;
+        } catch (URISyntaxException use) {
+            return false;
+        }
+    }
+
+    /**
+     * Start a GET request for the given url. The handler hears about the outcome, including if the request fails
+     * before it gets anywhere.
+     *
+     * @param url
+     * @param headers
+     *            extra request headers
+     * @param handler
+     * @return the request, which can be used to cancel it
+     */
+    Request get(String url, Map<String, String> headers, IResponseHandler handler) {
+        final Request request = new Request(nextSelectorThread(), url, headers, handler);
+        request.selectorThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                request.start();
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Run the given task on one of the selector threads. Tasks must not block.
+     *
+     * @param task
+     */
+    void execute(Runnable task) {
+        nextSelectorThread().execute(task);
+    }
+
+    /**
+     * Run the given task on one of the selector threads once the given time has passed.
+     *
+     * @param task
+     * @param delayMillis
+     */
+    void schedule(Runnable task, long delayMillis) {
+        nextSelectorThread().schedule(task, delayMillis);
+    }
+
+    /**
+     * Stop the selector threads, failing any requests that are still going.
+     */
+    void shutdown() {
+        for (SelectorThread selectorThread : selectorThreads) {
+            selectorThread.shutdown();
+        }
+    }
+
+    private SelectorThread nextSelectorThread() {
+        int next = nextSelectorThread.getAndIncrement() & Integer.MAX_VALUE;
+        return selectorThreads[next % selectorThreads.length];
+    }
+
+    /**
+     * A GET request, which can be cancelled from any thread.
+     */
+    class Request {
+        private final SelectorThread selectorThread;
+        private final IResponseHandler handler;
+        private String address;
+        private String host;
+        private int port;
+        private byte[] message;
+        private IOException invalid;
+        private volatile boolean queued = false;
+        // Only accessed on the selector thread
+        private Connection connection;
+        private boolean finished = false;
+
+        private Request(SelectorThread selectorThread, String url, Map<String, String> headers,
+                IResponseHandler handler) {
+            this.selectorThread = selectorThread;
+            this.handler = handler;
+            try {
+                URI uri = new URI(url);
+                host = uri.getHost();
+                port = uri.getPort() == -1 ? 80 : uri.getPort();
+                address = host + ":" + port;
+                String path = uri.getRawPath() == null || uri.getRawPath().length() == 0 ? "/" : uri.getRawPath();
+                if (uri.getRawQuery() != null) {
+                    path += "?" + uri.getRawQuery();
+                }
+                StringBuilder request = new StringBuilder();
+                request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+                request.append("Host: ").append(uri.getPort() == -1 ? host : address).append("\r\n");
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+                request.append("\r\n");
+                message = request.toString().getBytes(ISO_8859_1);
+            } catch (URISyntaxException use) {
+                invalid = new IOException(String.format("Invalid url %1$s: %2$s", url, use.getMessage()), use);
+            }
+        }
+
+        /**
+         * Cancel the request, closing its connection, or if it is still waiting for its turn on a pipelined one, once
+         * its turn comes. The handler is told that the request failed, unless it had already finished.
+         */
+        void cancel() {
+            selectorThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    IOException cancelled = new IOException("Request cancelled");
+                    if (connection != null && queued) {
+                        connection.cancelQueued(Request.this, cancelled);
+                    } else if (connection != null) {
+                        connection.fail(cancelled);
+                    } else {
+                        finish(cancelled);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Whether the request has been pipelined and is waiting for the responses ahead of it.
+         *
+         * @return
+         */
+        boolean isQueued() {
+            return queued;
+        }
+
+        private void start() {
+            if (invalid != null) {
+                finish(invalid);
+            } else if (selectorThread.shutdown) {
+                finish(new IOException("Engine shut down"));
+            } else {
+                selectorThread.send(this, true);
+            }
+        }
+
+        private void finish(IOException failure) {
+            if (!finished) {
+                finished = true;
+                handler.responseFinished(failure);
+            }
+        }
+    }
+
+    /**
+     * A connection to a server, which reads the response to one request at a time. Only accessed on its selector
+     * thread.
+     */
+    private class Connection {
+        private final SelectorThread selectorThread;
+        private final String address;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final StringBuilder line = new StringBuilder();
+        // Requests pipelined behind the current one, in the order they were sent
+        private final LinkedList<Request> queue = new LinkedList<Request>();
+        private State state;
+        private Request request;
+        private boolean reused;
+        private boolean receivedResponse;
+        private boolean paused;
+        // False once the server has said that it will close the connection
+        private boolean pipelinable = true;
+        private ByteBuffer out;
+        private String statusLine;
+        private boolean keepAlive;
+        private boolean chunked;
+        // Bytes left of the body, or of the current chunk if chunked. -1 if the body ends when the connection closes.
+        private long remaining;
+
+        private Connection(SelectorThread selectorThread, String address, SocketChannel channel, boolean connected)
+                throws IOException {
+            this.selectorThread = selectorThread;
+            this.address = address;
+            this.channel = channel;
+            this.state = connected ? State.SENDING : State.CONNECTING;
+            this.key = channel.register(selectorThread.selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+        }
+
+        private void send(Request request, boolean reused) {
+            this.request = request;
+            this.reused = reused;
+            request.connection = this;
+            receivedResponse = false;
+            statusLine = null;
+            line.setLength(0);
+            out = ByteBuffer.wrap(request.message);
+            if (state != State.CONNECTING) {
+                state = State.SENDING;
+                updateInterestOps();
+            }
+        }
+
+        /**
+         * Whether another request can be sent on this connection without waiting for the responses to those before it.
+         */
+        private boolean canPipeline() {
+            return request != null && pipelinable && !paused && queue.size() + 1 < maxRequestsPerConnection
+                    && key.isValid();
+        }
+
+        /**
+         * Send another request behind the ones this connection is already handling.
+         *
+         * @param next
+         */
+        private void pipeline(Request next) {
+            next.connection = this;
+            next.queued = true;
+            queue.add(next);
+            ByteBuffer unsent = ByteBuffer.allocate(out.remaining() + next.message.length);
+            unsent.put(out).put(next.message);
+            unsent.flip();
+            out = unsent;
+            updateInterestOps();
+        }
+
+        private void connected() throws IOException {
+            channel.finishConnect();
+            state = State.SENDING;
+            updateInterestOps();
+        }
+
+        private void writeRequest() throws IOException {
+            channel.write(out);
+            if (!out.hasRemaining() && state == State.SENDING) {
+                state = State.READING_HEADERS;
+            }
+            updateInterestOps();
+        }
+
+        /**
+         * Write while there are requests to send, and read unless sending the first request or paused.
+         */
+        private void updateInterestOps() {
+            if (!key.isValid()) {
+                return;
+            }
+            if (state == State.CONNECTING) {
+                key.interestOps(SelectionKey.OP_CONNECT);
+                return;
+            }
+            int ops = out != null && out.hasRemaining() ? SelectionKey.OP_WRITE : 0;
+            if (state != State.SENDING && !paused) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Whether the current request can take more of its response. One with a request behind it that is needed right
+         * away always can.
+         */
+        private boolean isReady() {
+            if (request.handler.isReady()) {
+                return true;
+            }
+            for (Request next : queue) {
+                if (!next.finished && next.handler.isNeededNow()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void read(ByteBuffer buffer) throws IOException {
+            if (isPausable() && !isReady()) {
+                pause();
+                return;
+            }
+            buffer.clear();
+            if (isPausable() && request.handler.isReady()) {
+                // No more than the handler can take, e.g. within its bandwidth limit
+                buffer.limit(Math.min(buffer.capacity(), Math.max(1, request.handler.getReadLimit())));
+            }
+            int read = channel.read(buffer);
+            if (read == -1) {
+                endOfStream();
+                return;
+            }
+            buffer.flip();
+            if (state == State.IDLE) {
+                throw new IOException(String.format("Unexpected data from %1$s on an idle connection", address));
+            }
+            receivedResponse = receivedResponse || read > 0;
+            process(buffer);
+            if (request == null) {
+                if (buffer.hasRemaining()) {
+                    // More than we asked for, don't trust the connection with another request
+                    close();
+                }
+            } else if (isPausable() && !isReady()) {
+                pause();
+            }
+        }
+
+        private void process(ByteBuffer buffer) throws IOException {
+            while (request != null && buffer.hasRemaining()) {
+                String nextLine;
+                switch (state) {
+                case READING_HEADERS:
+                    if ((nextLine = readLine(buffer)) != null) {
+                        header(nextLine);
+                    }
+                    break;
+                case READING_BODY:
+                    deliver(buffer, remaining < 0 ? buffer.remaining() : (int) Math.min(remaining, buffer.remaining()));
+                    if (remaining == 0) {
+                        complete();
+                    }
+                    break;
+                case READING_CHUNK_SIZE:
+                    if ((nextLine = readLine(buffer)) != null) {
+                        remaining = parseChunkSize(nextLine);
+                        state = remaining == 0 ? State.READING_TRAILERS : State.READING_CHUNK;
+                    }
+                    break;
+                case READING_CHUNK:
+                    deliver(buffer, (int) Math.min(remaining, buffer.remaining()));
+                    if (remaining == 0) {
+                        state = State.READING_CHUNK_END;
+                    }
+                    break;
+                case READING_CHUNK_END:
+                    if (readLine(buffer) != null) {
+                        state = State.READING_CHUNK_SIZE;
+                    }
+                    break;
+                case READING_TRAILERS:
+                    if ((nextLine = readLine(buffer)) != null && nextLine.length() == 0) {
+                        complete();
+                    }
+                    break;
+                default:
+                    throw new IOException(String.format("Unexpected data from %1$s while sending request", address));
+                }
+            }
+        }
+
+        private void header(String nextLine) throws IOException {
+            if (statusLine == null) {
+                statusLine = nextLine;
+                keepAlive = nextLine.startsWith("HTTP/1.1");
+                chunked = false;
+                remaining = -1;
+                return;
+            }
+            if (nextLine.length() > 0) {
+                int colon = nextLine.indexOf(':');
+                if (colon == -1) {
+                    return;
+                }
+                String name = nextLine.substring(0, colon).trim();
+                String value = nextLine.substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    try {
+                        remaining = Long.parseLong(value);
+                    } catch (NumberFormatException nfe) {
+                        throw new IOException(String.format("Invalid Content-Length from %1$s: %2$s", address, value));
+                    }
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    keepAlive = value.equalsIgnoreCase("keep-alive") || (keepAlive && !value.equalsIgnoreCase("close"));
+                }
+                return;
+            }
+            // End of the headers
+            String[] parts = statusLine.split(" ");
+            int statusCode;
+            try {
+                statusCode = Integer.parseInt(parts[1]);
+            } catch (Exception e) {
+                throw new IOException(String.format("Invalid status line from %1$s: %2$s", address, statusLine));
+            }
+            statusLine = null;
+            if (statusCode / 100 == 1) {
+                // Interim response, the real one follows
+                return;
+            }
+            request.handler.responseStarted(statusCode);
+            if (!chunked && remaining < 0) {
+                // Without a length, the body ends when the connection closes
+                keepAlive = false;
+            }
+            if (!keepAlive) {
+                pipelinable = false;
+            }
+            if (chunked) {
+                state = State.READING_CHUNK_SIZE;
+            } else if (remaining == 0) {
+                complete();
+            } else {
+                state = State.READING_BODY;
+            }
+        }
+
+        private long parseChunkSize(String chunkSizeLine) throws IOException {
+            int extension = chunkSizeLine.indexOf(';');
+            String size = (extension == -1 ? chunkSizeLine : chunkSizeLine.substring(0, extension)).trim();
+            try {
+                return Long.parseLong(size, 16);
+            } catch (NumberFormatException nfe) {
+                throw new IOException(String.format("Invalid chunk size from %1$s: %2$s", address, chunkSizeLine));
+            }
+        }
+
+        /**
+         * Read the next line from the buffer, which may continue one started in an earlier buffer.
+         *
+         * @param buffer
+         * @return the line without its line terminator, or null if the buffer ended before the line did
+         * @throws IOException
+         */
+        private String readLine(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                char c = (char) (buffer.get() & 0xFF);
+                if (c == '\n') {
+                    int length = line.length();
+                    String result = line.substring(0, length > 0 && line.charAt(length - 1) == '\r' ? length - 1
+                            : length);
+                    line.setLength(0);
+                    return result;
+                }
+                line.append(c);
+                if (line.length() > MAX_LINE_LENGTH) {
+                    throw new IOException(String.format("Response line from %1$s is too long", address));
+                }
+            }
+            return null;
+        }
+
+        private void deliver(ByteBuffer buffer, int length) throws IOException {
+            int position = buffer.position();
+            buffer.position(position + length);
+            if (remaining > 0) {
+                remaining -= length;
+            }
+            request.handler.bodyReceived(buffer.array(), buffer.arrayOffset() + position, length);
+        }
+
+        /**
+         * Whether the connection is waiting for the response, which can be held off for as long as the handler isn't
+         * ready. That includes the headers, since the start of the body may well arrive along with them.
+         */
+        private boolean isPausable() {
+            return request != null && state != State.CONNECTING && state != State.SENDING;
+        }
+
+        private void pause() {
+            paused = true;
+            updateInterestOps();
+            selectorThread.pausedConnections.add(this);
+        }
+
+        private void resumeIfReady() {
+            if (request == null || !key.isValid() || isReady()) {
+                paused = false;
+                selectorThread.pausedConnections.remove(this);
+                updateInterestOps();
+            }
+        }
+
+        private void complete() {
+            Request completed = request;
+            request = null;
+            completed.connection = null;
+            if (!keepAlive || (!queue.isEmpty() && queue.getFirst().finished)) {
+                // Either the server won't answer the next request on this connection, or nobody wants the answer
+                close();
+            } else if (queue.isEmpty()) {
+                state = State.IDLE;
+                // Keep reading, to notice if the server closes the connection
+                updateInterestOps();
+                selectorThread.addIdleConnection(this);
+            } else {
+                // On to the response to the next request, which may already be in the buffer
+                request = queue.removeFirst();
+                request.queued = false;
+                reused = true;
+                receivedResponse = false;
+                state = State.READING_HEADERS;
+                request.handler.responseDue();
+            }
+            completed.finish(null);
+        }
+
+        private void endOfStream() throws IOException {
+            if (state == State.IDLE) {
+                close();
+            } else if (state == State.READING_BODY && remaining < 0) {
+                complete();
+            } else {
+                throw new IOException(String.format("Connection to %1$s closed before the response was complete",
+                                                    address));
+            }
+        }
+
+        /**
+         * Fail the current request, unless it could just as well be sent again on a new connection because the
+         * server closed this kept alive connection before responding.
+         *
+         * @param ioe
+         */
+        private void failOrRetry(IOException ioe) {
+            if (request != null && reused && !receivedResponse) {
+                Request retry = request;
+                request = null;
+                // Sent again along with the requests queued behind it
+                queue.addFirst(retry);
+                close();
+            } else {
+                fail(ioe);
+            }
+        }
+
+        /**
+         * Cancel a request that is waiting for its turn. The requests behind it are sent again on new connections
+         * rather than waiting for a response that nobody wants, and this connection is closed when its turn comes.
+         *
+         * @param cancelled
+         * @param failure
+         */
+        private void cancelQueued(Request cancelled, IOException failure) {
+            List<Request> behind = queue.subList(queue.indexOf(cancelled) + 1, queue.size());
+            List<Request> resend = new ArrayList<Request>(behind);
+            behind.clear();
+            pipelinable = false;
+            cancelled.finish(failure);
+            for (Request next : resend) {
+                resend(next);
+            }
+        }
+
+        private void fail(IOException ioe) {
+            Request failed = request;
+            request = null;
+            close();
+            if (failed != null) {
+                failed.connection = null;
+                failed.finish(ioe);
+            }
+        }
+
+        /**
+         * Close the connection, sending any requests still queued on it again on new connections, since they haven't
+         * been answered.
+         */
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                // Nothing more we can do
+            }
+            selectorThread.removeIdleConnection(this);
+            selectorThread.removeOpenConnection(this);
+            selectorThread.pausedConnections.remove(this);
+            Request next;
+            while ((next = queue.poll()) != null) {
+                resend(next);
+            }
+        }
+
+        /**
+         * Send a request that was queued on this connection again on a new one, unless it has been cancelled.
+         *
+         * @param next
+         */
+        private void resend(Request next) {
+            next.connection = null;
+            next.queued = false;
+            if (next.finished) {
+                return;
+            } else if (selectorThread.shutdown) {
+                next.finish(new IOException("Engine shut down"));
+            } else {
+                selectorThread.send(next, false);
+            }
+        }
+    }
+
+    /**
+     * A task to run on a selector thread at a given time.
+     */
+    private static class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final long sequence;
+        private final Runnable task;
+
+        private Timer(long deadline, long sequence, Runnable task) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            long difference = deadline - other.deadline;
+            if (difference == 0) {
+                difference = sequence - other.sequence;
+            }
+            return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+        }
+    }
+
+    /**
+     * Runs a selector along with the tasks and timers submitted to it.
+     */
+    private class SelectorThread extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile boolean shutdown = false;
+        // Only accessed on this thread
+        private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+        private final Map<String, LinkedList<Connection>> idleConnections =
+                new HashMap<String, LinkedList<Connection>>();
+        private final Map<String, LinkedList<Connection>> openConnections =
+                new HashMap<String, LinkedList<Connection>>();
+        private final Set<Connection> pausedConnections = new LinkedHashSet<Connection>();
+        private long timersScheduled = 0;
+
+        private SelectorThread(int index) throws IOException {
+            super("NioHttpEngine-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void schedule(final Runnable task, long delayMillis) {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    timers.add(new Timer(deadline, timersScheduled++, task));
+                }
+            });
+        }
+
+        private void shutdown() {
+            shutdown = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!shutdown) {
+                    selector.select(selectTimeoutMillis());
+                    runTasks();
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        handle(key);
+                    }
+                    runTimers();
+                    for (Connection connection : new ArrayList<Connection>(pausedConnections)) {
+                        connection.resumeIfReady();
+                    }
+                }
+            } catch (IOException ioe) {
+                // The selector broke, fail whatever is left below
+            } finally {
+                IOException shutDown = new IOException("Engine shut down");
+                for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                    ((Connection) key.attachment()).fail(shutDown);
+                }
+                // Requests that were submitted in the meantime fail right away
+                runTasks();
+                try {
+                    selector.close();
+                } catch (IOException ioe) {
+                    // Nothing more we can do
+                }
+            }
+        }
+
+        private long selectTimeoutMillis() {
+            // 0 means no timeout
+            long timeout = pausedConnections.isEmpty() ? 0 : PAUSED_RECHECK_MILLIS;
+            Timer next = timers.peek();
+            if (next != null) {
+                long untilNext = Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime()) + 1);
+                timeout = timeout == 0 ? untilNext : Math.min(timeout, untilNext);
+            }
+            return timeout;
+        }
+
+        private void handle(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (!key.isValid()) {
+                    return;
+                } else if (key.isConnectable()) {
+                    connection.connected();
+                } else {
+                    if (key.isWritable()) {
+                        connection.writeRequest();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                }
+            } catch (IOException ioe) {
+                connection.failOrRetry(ioe);
+            } catch (RuntimeException re) {
+                connection.fail(new IOException(re.getMessage(), re));
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                run(task);
+            }
+        }
+
+        private void runTimers() {
+            long now = System.nanoTime();
+            while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+                run(timers.poll().task);
+            }
+        }
+
+        private void run(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                // A broken task mustn't take down the other connections on this thread
+            }
+        }
+
+        /**
+         * Send the given request on an idle connection, pipeline it on a busy one or open a new connection for it, in
+         * that order of preference. A request that is sent again because its connection failed always gets a new one,
+         * and one that is needed right away is never pipelined.
+         *
+         * @param request
+         * @param reuse
+         *            whether the request may be sent on an existing connection
+         */
+        private void send(Request request, boolean reuse) {
+            Connection connection = reuse ? takeIdleConnection(request.address) : null;
+            if (connection != null) {
+                connection.send(request, true);
+                return;
+            }
+            connection = reuse && !request.handler.isNeededNow() ? pipelinableConnection(request.address) : null;
+            if (connection != null) {
+                connection.pipeline(request);
+                return;
+            }
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                boolean connected = channel.connect(new InetSocketAddress(request.host, request.port));
+                connection = new Connection(this, request.address, channel, connected);
+                addOpenConnection(connection);
+                connection.send(request, false);
+            } catch (IOException ioe) {
+                closeQuietly(channel);
+                request.finish(ioe);
+            } catch (RuntimeException re) {
+                // e.g. an unresolvable host
+                closeQuietly(channel);
+                request.finish(new IOException(String.format("Unable to connect to %1$s: %2$s", request.address,
+                                                             re.getMessage()), re));
+            }
+        }
+
+        private void closeQuietly(SocketChannel channel) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ioe) {
+                    // Nothing more we can do
+                }
+            }
+        }
+
+        private Connection takeIdleConnection(String address) {
+            LinkedList<Connection> connections = idleConnections.get(address);
+            while (connections != null && !connections.isEmpty()) {
+                Connection connection = connections.removeFirst();
+                if (connection.channel.isOpen() && connection.key.isValid()) {
+                    return connection;
+                }
+            }
+            return null;
+        }
+
+        private void addIdleConnection(Connection connection) {
+            LinkedList<Connection> connections = idleConnections.get(connection.address);
+            if (connections == null) {
+                connections = new LinkedList<Connection>();
+                idleConnections.put(connection.address, connections);
+            }
+            connections.add(connection);
+        }
+
+        private void removeIdleConnection(Connection connection) {
+            LinkedList<Connection> connections = idleConnections.get(connection.address);
+            if (connections != null) {
+                connections.remove(connection);
+            }
+        }
+
+        /**
+         * Returns the busy connection to the given address with the fewest requests that has room for another, or
+         * null if there isn't one.
+         */
+        private Connection pipelinableConnection(String address) {
+            LinkedList<Connection> connections = openConnections.get(address);
+            Connection best = null;
+            if (connections != null) {
+                for (Connection connection : connections) {
+                    if (connection.canPipeline() && (best == null || connection.queue.size() < best.queue.size())) {
+                        best = connection;
+                    }
+                }
+            }
+            return best;
+        }
+
+        private void addOpenConnection(Connection connection) {
+            LinkedList<Connection> connections = openConnections.get(connection.address);
+            if (connections == null) {
+                connections = new LinkedList<Connection>();
+                openConnections.put(connection.address, connections);
+            }
+            connections.add(connection);
+        }
+
+        private void removeOpenConnection(Connection connection) {
+            LinkedList<Connection> connections = openConnections.get(connection.address);
+            if (connections != null) {
+                connections.remove(connection);
+                if (connections.isEmpty()) {
+                    openConnections.remove(connection.address);
+                }
+            }
+        }
+    }
+}
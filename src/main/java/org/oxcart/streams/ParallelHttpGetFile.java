@@ -0,0 +1,251 @@
+package org.oxcart.streams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <p>
+ * Downloads a resource in parallel from multiple urls straight into a file. The file is preallocated to the full
+ * content length and each chunk is written at its own offset as it arrives, so data is written to disk exactly once
+ * and never goes through temp files or an ordered merge. Chunks are taken from a shared queue, so faster mirrors fetch
+ * more of the file.
+ * </p>
+ * 
+ * <p>
+ * While downloading, completed chunks are recorded in a journal next to the file (see {@link DownloadJournal}), which
+ * is deleted once every chunk is complete. If {@link ParallelHttpGetOptions#isResume()} is set, a download into a file
+ * with a matching journal only fetches the chunks that are still missing.
+ * </p>
+ *
+ * <p>
+ * Call {@link #fetch()} to perform the download, then check {@link #isValid()}.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class ParallelHttpGetFile implements IProgressReporter, IValidatable {
+    private ExecutorService executorService;
+    private File file;
+    private ParallelHttpGetOptions options;
+    private MirrorSet mirrors;
+    private List<Resource> resources;
+    private List<Chunk> chunks = new ArrayList<Chunk>();
+    private List<String> validationErrors = new ArrayList<String>();
+
+    /**
+     * Construct a download of a single resource from multiple urls into the given file, using the given
+     * ExecutorService to perform the parallel fetches.
+     *
+     * @param executorService
+     * @param file
+     * @param urls
+     * @throws IOException
+     */
+    public ParallelHttpGetFile(ExecutorService executorService, File file, String... urls) throws IOException {
+        this(executorService, file, new ParallelHttpGetOptions(), urls);
+    }
+
+    /**
+     * Construct a download of a single resource from multiple urls into the given file, using the given
+     * ExecutorService to perform the parallel fetches and tuned by the given options.
+     *
+     * @param executorService
+     * @param file
+     * @param options
+     * @param urls
+     * @throws IOException
+     */
+    public ParallelHttpGetFile(ExecutorService executorService, File file, ParallelHttpGetOptions options,
+            String... urls) throws IOException {
+        this.executorService = executorService;
+        this.file = file;
+        this.options = options;
+        this.mirrors = new MirrorSet(executorService, options, urls);
+        this.resources = mirrors.getResources();
+    }
+
+    /**
+     * Fetch all chunks into the file, returning once the last one has finished. Unless the options supply a shared
+     * {@link HttpConnectionPool}, the download's connections are closed afterwards.
+     *
+     * @throws IOException
+     *             if the file couldn't be written or any of the chunks failed
+     */
+    public void fetch() throws IOException {
+        try {
+            doFetch();
+        } finally {
+            mirrors.close();
+        }
+    }
+
+    private void doFetch() throws IOException {
+        long chunkSize = options.chunkSizeFor(getContentLength());
+        long[] boundaries = ChunkScheduler.planChunkBoundaries(getContentLength(), options);
+        DownloadJournal journal = DownloadJournal.open(file, resources, chunkSize, boundaries.length - 1,
+                                                       options.isResume());
+        boolean complete = false;
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(getContentLength());
+                FileChannel channel = randomAccessFile.getChannel();
+                List<Chunk> missingChunks = new ArrayList<Chunk>();
+                for (int i = 0; i < boundaries.length - 1; i++) {
+                    Chunk chunk = new Chunk(i, boundaries[i], boundaries[i + 1],
+                                            new FileChunkSink(channel, journal, i, boundaries[i + 1] - boundaries[i]));
+                    chunks.add(chunk);
+                    if (journal.isComplete(i)) {
+                        chunk.restore();
+                    } else {
+                        missingChunks.add(chunk);
+                    }
+                }
+                ChunkScheduler.expectPieceHashes(missingChunks, options);
+                ChunkScheduler scheduler = new ChunkScheduler(resources, missingChunks, options);
+                scheduler.start(executorService);
+                scheduler.await();
+                complete = getBytesWritten() == getContentLength();
+            } finally {
+                randomAccessFile.close();
+            }
+        } finally {
+            if (complete) {
+                journal.delete();
+            } else {
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of chunks that were already complete from an earlier download and didn't need to be fetched.
+     * 
+     * @return
+     */
+    public int getRestoredChunks() {
+        int restoredChunks = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.isRestored()) {
+                restoredChunks += 1;
+            }
+        }
+        return restoredChunks;
+    }
+
+    /**
+     * Returns why each of the urls that were dropped at startup couldn't be used.
+     * 
+     * @return
+     */
+    public List<String> getMirrorFailures() {
+        return mirrors.getFailures();
+    }
+
+    public long getContentLength() {
+        return mirrors.getContentLength();
+    }
+
+    /**
+     * Returns the number of bytes written to the file so far.
+     *
+     * @return
+     */
+    public long getBytesWritten() {
+        long bytesWritten = 0;
+        for (Chunk chunk : chunks) {
+            bytesWritten += chunk.getReceived();
+        }
+        return bytesWritten;
+    }
+
+    @Override
+    public void reportProgress(IProgressRecorder recorder) {
+        mirrors.reportProgress(recorder, "Written");
+    }
+
+    /**
+     * Validate the results of the download. This method should be called only after {@link #fetch()} has returned.
+     */
+    @Override
+    public boolean isValid() {
+        validationErrors.clear();
+        if (getBytesWritten() != getContentLength()) {
+            validationErrors.add(String.format("WARNING - Amount of written content did not match expected content length, data may be corrupted.  Expected %1$s, wrote %2$s",
+                                               getContentLength(), getBytesWritten()));
+        }
+        return validationErrors.size() == 0;
+    }
+
+    @Override
+    public List<String> getValidationErrors() {
+        return validationErrors;
+    }
+
+    /**
+     * Writes the data of a chunk straight to its position in the file, recording it in the journal once complete.
+     */
+    private static class FileChunkSink implements IChunkSink {
+        private final FileChannel channel;
+        private final DownloadJournal journal;
+        private final int index;
+        private final long length;
+        private long written = 0;
+
+        private FileChunkSink(FileChannel channel, DownloadJournal journal, int index, long length) {
+            this.channel = channel;
+            this.journal = journal;
+            this.index = index;
+            this.length = length;
+        }
+
+        @Override
+        public void write(long position, byte[] b, int off, int len) throws IOException {
+            ByteBuffer source = ByteBuffer.wrap(b, off, len);
+            while (source.hasRemaining()) {
+                position += channel.write(source, position);
+            }
+            written += len;
+        }
+
+        @Override
+        public boolean isBackedUp() {
+            // Writing to the file never needs to wait for anyone
+            return false;
+        }
+
+        @Override
+        public boolean isNeededNow() {
+            // Nor is anyone waiting for any one chunk
+            return false;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            // A short chunk is left out of the journal so that resuming fetches it again
+            if (written == length) {
+                // Make sure the data is on disk before the journal says it is
+                channel.force(false);
+                journal.markComplete(index);
+            }
+        }
+
+        @Override
+        public void reset() {
+            // The bad data is simply overwritten
+            written = 0;
+        }
+
+        @Override
+        public void fail(IOException ioe) {
+            // Nothing to do, the failure is reported by fetch()
+        }
+    }
+}
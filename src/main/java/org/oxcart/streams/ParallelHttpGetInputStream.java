@@ -2,38 +2,39 @@ package org.oxcart.streams;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 
-import org.apache.http.Header;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpHead;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.PoolingClientConnectionManager;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.HttpContext;
-
 /**
  * An InputStream that reads a resource in parallel from multiple urls by fetching ranges of the file on multiple
- * threads.
+ * threads. The content is split into chunks that the mirrors take from a shared queue, so faster mirrors fetch more of
+ * it. When {@link ParallelHttpGetOptions#isStreaming() streaming}, only the chunks within a window ahead of the reader
+ * are fetched.
  * 
  * @author ox.to.a.cart /at/ gmail.com
  * 
  */
-public class ParallelHttpGetInputStream extends ValidatingInputStream implements IProgressReporter {
+public class ParallelHttpGetInputStream extends ValidatingInputStream implements IProgressReporter, IChannelSource {
+    /**
+     * Memory shared by all chunks of a stream that is constructed without a MemoryBudget.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+    /**
+     * Chunks ahead of the reader hold off fetching (where the transport allows it) once the memory budget has less
+     * than this much room left, rather than spilling to disk.
+     */
+    private static final long BACKPRESSURE_HEADROOM = 64 * 1024;
+
     private ExecutorService executorService;
-    private HttpClient httpClient;
+    private ParallelHttpGetOptions options;
+    private MirrorSet mirrors;
     private List<Resource> resources;
+    private ChunkScheduler scheduler;
     private MergedInputStream inputStream;
-    private List<ReadAheadInputStream> contentInputStreams;
-    private List<Integer> expectedContentLengths;
+    private MemoryBudget memoryBudget;
+    private ReadWindow window;
 
     /**
      * Construct a stream to fetch a single resource from multiple urls in parallel, using the given ExecutorService to
@@ -44,39 +45,138 @@ public class ParallelHttpGetInputStream extends ValidatingInputStream implements
      * @throws IOException
      */
     public ParallelHttpGetInputStream(ExecutorService executorService, String... urls) throws IOException {
+        this(executorService, new ParallelHttpGetOptions(), urls);
+    }
+
+    /**
+     * Construct a stream to fetch a single resource from multiple urls in parallel, using the given ExecutorService to
+     * perform the parallel fetches. Chunks that are fetched ahead of the reader are buffered in memory within the
+     * given memoryBudget and spilled to disk beyond that.
+     * 
+     * @param executorService
+     * @param memoryBudget
+     * @param urls
+     * @throws IOException
+     */
+    public ParallelHttpGetInputStream(ExecutorService executorService, MemoryBudget memoryBudget, String... urls)
+            throws IOException {
+        this(executorService, optionsWithMemoryBudget(memoryBudget), urls);
+    }
+
+    /**
+     * Construct a stream to fetch a single resource from multiple urls in parallel, using the given ExecutorService to
+     * perform the parallel fetches. HTTP requests are made through the given connectionPool, which may be shared with
+     * other streams and isn't shut down when this stream is closed.
+     * 
+     * @param executorService
+     * @param connectionPool
+     * @param urls
+     * @throws IOException
+     */
+    public ParallelHttpGetInputStream(ExecutorService executorService, HttpConnectionPool connectionPool,
+            String... urls) throws IOException {
+        this(executorService, optionsWithConnectionPool(connectionPool), urls);
+    }
+
+    /**
+     * Construct a stream to fetch a single resource from multiple urls in parallel, using the given ExecutorService to
+     * perform the parallel fetches and tuned by the given options.
+     * 
+     * @param executorService
+     * @param options
+     * @param urls
+     * @throws IOException
+     */
+    public ParallelHttpGetInputStream(ExecutorService executorService, ParallelHttpGetOptions options, String... urls)
+            throws IOException {
         this.executorService = executorService;
-        initHttpClient();
-        buildResources(urls);
-        ensureResourcesAreCompatible();
-        open();
+        this.options = options;
+        this.mirrors = new MirrorSet(executorService, options, urls);
+        this.resources = mirrors.getResources();
+        boolean opened = false;
+        try {
+            open();
+            opened = true;
+        } finally {
+            if (!opened) {
+                mirrors.close();
+            }
+        }
     }
 
     @Override
     public int read() throws IOException {
-        return inputStream.read();
+        int result = inputStream.read();
+        trackReader();
+        return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int result = inputStream.read(b, off, len);
+        trackReader();
+        return result;
+    }
+
+    /**
+     * Write the next piece of the content to the given target, straight from where its chunk is buffered.
+     */
+    @Override
+    public long readTo(WritableByteChannel target) throws IOException {
+        long result = inputStream.readTo(target);
+        trackReader();
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long result = inputStream.skip(n);
+        trackReader();
+        return result;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return inputStream.available();
     }
 
     @Override
     public void close() throws IOException {
-        inputStream.close();
+        try {
+            // Stop fetching any chunks that haven't been read yet
+            scheduler.abort(new IOException("Stream closed"));
+        } finally {
+            try {
+                inputStream.close();
+            } finally {
+                if (options.getMetrics() != null) {
+                    options.getMetrics().removeMemoryBudget(memoryBudget);
+                }
+                mirrors.close();
+            }
+        }
+    }
+
+    /**
+     * Returns why each of the urls that were dropped at startup couldn't be used.
+     * 
+     * @return
+     */
+    public List<String> getMirrorFailures() {
+        return mirrors.getFailures();
     }
 
-    public int getContentLength() {
-        return resources.get(0).contentLength;
+    public long getContentLength() {
+        return mirrors.getContentLength();
     }
 
-    public int getBytesRead() {
+    public long getBytesRead() {
         return inputStream.getBytesRead();
     }
 
     @Override
     public void reportProgress(IProgressRecorder recorder) {
-        for (int i = 0; i < contentInputStreams.size(); i++) {
-            recorder.record(resources.get(i).url,
-                            "Buffered",
-                            expectedContentLengths.get(i),
-                            contentInputStreams.get(i).getBufferedBytes());
-        }
+        mirrors.reportProgress(recorder, "Buffered");
     }
 
     /**
@@ -92,127 +192,92 @@ public class ParallelHttpGetInputStream extends ValidatingInputStream implements
         }
     }
 
-    private void initHttpClient() {
-        SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(
-                      new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
-        schemeRegistry.register(
-                      new Scheme("https", 443, SSLSocketFactory.getSocketFactory()));
+    private void open() throws IOException {
+        memoryBudget = options.getMemoryBudget();
+        if (memoryBudget == null) {
+            memoryBudget = new MemoryBudget(DEFAULT_MEMORY_BUDGET);
+        }
+        Metrics metrics = options.getMetrics();
+        long[] boundaries = ChunkScheduler.planChunkBoundaries(getContentLength(), options);
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        List<ReadAheadInputStream> chunkInputStreams = new ArrayList<ReadAheadInputStream>();
+        // Chunks that are verified are held back from the reader until they have passed
+        boolean verifying = options.getPieceManifest() != null;
+        final MemoryBudget budget = memoryBudget;
+        for (int i = 0; i < boundaries.length - 1; i++) {
+            final int index = i;
+            final ReadAheadInputStream chunkInputStream = new ReadAheadInputStream(memoryBudget, verifying);
+            chunkInputStream.setMetrics(metrics);
+            chunkInputStreams.add(chunkInputStream);
+            chunks.add(new Chunk(i, boundaries[i], boundaries[i + 1], new IChunkSink() {
+                @Override
+                public void write(long position, byte[] b, int off, int len) throws IOException {
+                    chunkInputStream.write(b, off, len);
+                }
 
-        PoolingClientConnectionManager cm = new PoolingClientConnectionManager(schemeRegistry);
-        cm.setDefaultMaxPerRoute(16);
-        cm.setMaxTotal(64);
-        this.httpClient = new DefaultHttpClient(cm);
-    }
+                @Override
+                public boolean isBackedUp() {
+                    // The chunk being read always keeps going (spilling if need be), so that the reader can't get
+                    // stuck behind chunks waiting for it to make room
+                    return index > inputStream.getCurrentIndex() && !budget.hasRoomFor(BACKPRESSURE_HEADROOM);
+                }
 
-    private void buildResources(String[] urls) throws IOException {
-        this.resources = new ArrayList<Resource>();
-        for (String url : urls) {
-            Resource resource = new Resource(url);
-            if (!resource.acceptsRangeRequests) {
-                throw new IOException(String.format("Resource does not allow range requests: %1$s", resource.url));
-            }
-            resources.add(resource);
-        }
-    }
+                @Override
+                public boolean isNeededNow() {
+                    return index <= inputStream.getCurrentIndex();
+                }
 
-    private void ensureResourcesAreCompatible() throws IOException {
-        Resource previousResource = null;
-        for (Resource nextResource : resources) {
-            if (previousResource != null) {
-                previousResource.ensureCompatibleWith(nextResource);
-            }
-            previousResource = nextResource;
-        }
-    }
+                @Override
+                public void finish() {
+                    chunkInputStream.finishBuffering();
+                }
+
+                @Override
+                public void reset() {
+                    chunkInputStream.discardBuffered();
+                }
 
-    private void open() throws IOException {
-        contentInputStreams = new ArrayList<ReadAheadInputStream>();
-        expectedContentLengths = new ArrayList<Integer>();
-        // Figure out size of each segment to download
-        int segmentSize = getContentLength() / resources.size();
-        for (int i = 0; i < resources.size(); i++) {
-            boolean onLastSegment = i == resources.size() - 1;
-            final int currentOffset = i * segmentSize;
-            final int end = onLastSegment ? getContentLength() : (i + 1) * segmentSize;
-            final Resource resource = resources.get(i);
-            contentInputStreams.add(ReadAheadInputStream.open(new IStreamProvider() {
                 @Override
-                public InputStream openStream() throws IOException {
-                    return resource.fetchRange(currentOffset, end);
+                public void fail(IOException ioe) {
+                    chunkInputStream.failBuffering(ioe);
                 }
-            }, executorService));
-            expectedContentLengths.add(end - currentOffset);
+            }));
+        }
+        ChunkScheduler.expectPieceHashes(chunks, options);
+        this.inputStream = new MergedInputStream(chunkInputStreams.toArray(new InputStream[chunkInputStreams.size()]));
+        this.scheduler = new ChunkScheduler(resources, chunks, options);
+        if (options.isStreaming()) {
+            // The chunk being read and the window ahead of it all fit in memory
+            long chunkSize = options.chunkSizeFor(getContentLength());
+            window = new ReadWindow((int) Math.min(Integer.MAX_VALUE, memoryBudget.getLimit() / chunkSize - 1),
+                                    System.nanoTime());
+            scheduler.setWindow(window);
+        }
+        scheduler.start(executorService);
+        if (metrics != null) {
+            metrics.addMemoryBudget(memoryBudget);
         }
-        this.inputStream = new MergedInputStream(
-                                                 contentInputStreams.toArray(new InputStream[contentInputStreams.size()]));
     }
 
     /**
-     * Represents a resource which will be used to fetch part of the download.
-     * 
-     * @author ox.to.a.cart /at/ gmail.com
-     * 
+     * Let the window of a streaming download know how far the reader has got.
      */
-    private class Resource {
-        private String url;
-        private HttpContext context;
-        private int contentLength;
-        private boolean acceptsRangeRequests;
-
-        public Resource(String url) throws IOException {
-            this.url = url;
-            this.context = new BasicHttpContext();
-            HttpHead method = new HttpHead(url);
-            HttpResponse response = httpClient.execute(method, context);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != 200) {
-                throw new IOException(
-                                      String.format("Unrecognized response on attempting to get resource HEAD information. Expected 200, got %1$s",
-                                                    statusCode));
-            }
-            contentLength = Integer.parseInt(response.getFirstHeader("Content-Length").getValue());
-            // Per RFC 2616, we assume that range requests are accepted unless the server explicitly says they aren't
-            Header acceptRangesHeader = response.getFirstHeader("Accept-Ranges");
-            acceptsRangeRequests = acceptRangesHeader == null
-                    || !"none".equalsIgnoreCase(acceptRangesHeader.getValue().trim());
+    private void trackReader() {
+        if (window != null && window.readerAt(inputStream.getCurrentIndex(), inputStream.getBytesRead())) {
+            scheduler.readerMoved();
         }
+    }
 
-        /**
-         * Fetches a section of the resource specified by the given range (in bytes).
-         * 
-         * @param start
-         *            start of range (inclusive)
-         * @param end
-         *            end of range (exclusive)
-         * @return
-         * @throws IOException
-         */
-        public InputStream fetchRange(int start, int end) throws IOException {
-            HttpGet method = new HttpGet(url);
-            method.addHeader("Range", String.format("bytes=%1$s-%2$s", start, end - 1));
-            HttpResponse response = httpClient.execute(method, context);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != 206) {
-                throw new IOException(
-                                      String.format("Unrecognized response on attempting to issue range GET. Expected 206, got %1$s",
-                                                    statusCode));
-            }
-            return response.getEntity().getContent();
-        }
+    private static ParallelHttpGetOptions optionsWithMemoryBudget(MemoryBudget memoryBudget) {
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setMemoryBudget(memoryBudget);
+        return options;
+    }
 
-        /**
-         * Two resources are considered compatible if their content lengths match.
-         * 
-         * @param other
-         * @return
-         */
-        public void ensureCompatibleWith(Resource other) throws IOException {
-            if (contentLength != other.contentLength) {
-                throw new IOException(String.format("Content-Length for resources '%1$s' and '%2$s' did not match",
-                                                    url, other.url));
-            }
-        }
+    private static ParallelHttpGetOptions optionsWithConnectionPool(HttpConnectionPool connectionPool) {
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setConnectionPool(connectionPool);
+        return options;
     }
 
 }
@@ -0,0 +1,419 @@
+package org.oxcart.streams;
+
+/**
+ * Tuning options for {@link ParallelHttpGetInputStream} and {@link ParallelHttpGetFile}. The defaults are suitable for
+ * most downloads.
+ * 
+ * @author ox.to.a.cart /at/ gmail.com
+ * 
+ */
+public class ParallelHttpGetOptions {
+    /**
+     * Content up to this size is fetched with a single request by default.
+     */
+    public static final long DEFAULT_SINGLE_REQUEST_THRESHOLD = 1024 * 1024;
+    /**
+     * Smallest chunk size chosen when adapting the chunk size to the content length.
+     */
+    public static final long MIN_ADAPTIVE_CHUNK_SIZE = 1024 * 1024;
+    /**
+     * Largest chunk size chosen when adapting the chunk size to the content length.
+     */
+    public static final long MAX_ADAPTIVE_CHUNK_SIZE = 32 * 1024 * 1024;
+    /**
+     * Largest chunk size chosen when adapting the chunk size to the content length of a streaming download, so that its
+     * window holds several chunks.
+     */
+    public static final long MAX_STREAMING_CHUNK_SIZE = 4 * 1024 * 1024;
+    /**
+     * Number of chunks aimed for when adapting the chunk size to the content length.
+     */
+    public static final int TARGET_CHUNK_COUNT = 64;
+    /**
+     * Number of failed fetches in a row after which a mirror is given up on, by default.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    /**
+     * Time to wait before the first retry by default, doubling with each further failure in a row.
+     */
+    public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 500;
+    /**
+     * Longest time to wait between retries.
+     */
+    public static final long MAX_RETRY_BACKOFF_MILLIS = 8000;
+    /**
+     * A chunk receiving less than this many bytes/sec over a whole low speed window is considered stalled, by default.
+     */
+    public static final long DEFAULT_LOW_SPEED_LIMIT = 16 * 1024;
+    /**
+     * Length of the window over which a chunk's speed is checked against the low speed limit, by default.
+     */
+    public static final long DEFAULT_LOW_SPEED_TIME_MILLIS = 10000;
+    /**
+     * How long to wait for each url's HEAD request at startup, by default.
+     */
+    public static final int DEFAULT_PROBE_TIMEOUT_MILLIS = 10000;
+    /**
+     * Number of pieces failing verification after which a mirror is given up on, by default.
+     */
+    public static final int DEFAULT_MAX_BAD_PIECES = 2;
+    /**
+     * Number of selector threads used for non-blocking fetches, by default.
+     */
+    public static final int DEFAULT_SELECTOR_THREADS = 2;
+
+    private MemoryBudget memoryBudget;
+    private long chunkSize = 0;
+    private long singleRequestThreshold = DEFAULT_SINGLE_REQUEST_THRESHOLD;
+    private boolean resume = false;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long retryBackoffMillis = DEFAULT_RETRY_BACKOFF_MILLIS;
+    private boolean hedging = true;
+    private boolean streaming = false;
+    private long lowSpeedLimit = DEFAULT_LOW_SPEED_LIMIT;
+    private long lowSpeedTimeMillis = DEFAULT_LOW_SPEED_TIME_MILLIS;
+    private int probeTimeoutMillis = DEFAULT_PROBE_TIMEOUT_MILLIS;
+    private int connectionsPerMirror = 1;
+    private PieceManifest pieceManifest;
+    private int maxBadPieces = DEFAULT_MAX_BAD_PIECES;
+    private boolean nonBlocking = false;
+    private int selectorThreads = DEFAULT_SELECTOR_THREADS;
+    private int pipelineDepth = 1;
+    private HttpConnectionPool connectionPool;
+    private BandwidthLimiter.Share bandwidthShare;
+    private Metrics metrics;
+
+    /**
+     * Returns the memory budget for buffering data fetched ahead of the reader, or null to use a private budget of
+     * {@link ParallelHttpGetInputStream#DEFAULT_MEMORY_BUDGET}.
+     * 
+     * @return
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Returns the size of the chunks that mirrors take from the shared queue, or 0 to adapt the chunk size to the
+     * content length.
+     * 
+     * @return
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the content length up to which content is fetched with a single request rather than being split into
+     * chunks.
+     * 
+     * @return
+     */
+    public long getSingleRequestThreshold() {
+        return singleRequestThreshold;
+    }
+
+    public void setSingleRequestThreshold(long singleRequestThreshold) {
+        this.singleRequestThreshold = singleRequestThreshold;
+    }
+
+    /**
+     * Returns whether a {@link ParallelHttpGetFile} picks up where an earlier, interrupted download into the same file
+     * left off, rather than starting over. Has no effect on {@link ParallelHttpGetInputStream}.
+     * 
+     * @return
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Returns how many times in a row fetching from a mirror may fail before that mirror is given up on. The download
+     * only fails once every mirror has been given up on.
+     * 
+     * @return
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Returns how long a mirror waits after a failed fetch before fetching again. The wait doubles with each failure in
+     * a row, up to {@link #MAX_RETRY_BACKOFF_MILLIS}.
+     * 
+     * @return
+     */
+    public long getRetryBackoffMillis() {
+        return retryBackoffMillis;
+    }
+
+    public void setRetryBackoffMillis(long retryBackoffMillis) {
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    /**
+     * Returns whether mirrors with nothing else to do duplicate the fetches of stragglers, taking whichever finishes
+     * first. A chunk is hedged if it has stalled (see {@link #getLowSpeedLimit()}), or if nothing is left in the queue
+     * and the idle mirror is expected to finish the rest of the chunk sooner than the mirror fetching it.
+     * 
+     * @return
+     */
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Returns whether a {@link ParallelHttpGetInputStream} only fetches the chunk being read and a window of chunks
+     * after it, which favours a steady flow of data to the reader from the first byte on over finishing the download as
+     * soon as possible. The window deepens and shrinks with the rate at which the reader consumes data, but never holds
+     * more chunks than fit in the memory budget, so nothing is spilled to disk. Has no effect on a
+     * {@link ParallelHttpGetFile}.
+     * 
+     * @return
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Returns the speed in bytes/sec below which a chunk is considered stalled if it stays below it for
+     * {@link #getLowSpeedTimeMillis()}.
+     * 
+     * @return
+     */
+    public long getLowSpeedLimit() {
+        return lowSpeedLimit;
+    }
+
+    public void setLowSpeedLimit(long lowSpeedLimit) {
+        this.lowSpeedLimit = lowSpeedLimit;
+    }
+
+    public long getLowSpeedTimeMillis() {
+        return lowSpeedTimeMillis;
+    }
+
+    public void setLowSpeedTimeMillis(long lowSpeedTimeMillis) {
+        this.lowSpeedTimeMillis = lowSpeedTimeMillis;
+    }
+
+    /**
+     * Returns the number of range requests made to each mirror at the same time. More than one connection per mirror
+     * helps to saturate links with a high bandwidth-delay product, especially when there is only one mirror. Unless
+     * fetching with {@link #isNonBlocking()}, each connection needs a thread of its own from the ExecutorService.
+     * 
+     * @return
+     */
+    public int getConnectionsPerMirror() {
+        return connectionsPerMirror;
+    }
+
+    public void setConnectionsPerMirror(int connectionsPerMirror) {
+        if (connectionsPerMirror < 1) {
+            throw new IllegalArgumentException("Need at least 1 connection per mirror");
+        }
+        this.connectionsPerMirror = connectionsPerMirror;
+    }
+
+    /**
+     * Returns how long to wait for a connection to each url and for its response to the HEAD request made at startup.
+     * Urls that take longer are dropped, as are urls whose probes are still unfinished after twice this long in all.
+     * 
+     * @return
+     */
+    public int getProbeTimeoutMillis() {
+        return probeTimeoutMillis;
+    }
+
+    public void setProbeTimeoutMillis(int probeTimeoutMillis) {
+        this.probeTimeoutMillis = probeTimeoutMillis;
+    }
+
+    /**
+     * Returns the manifest against which each chunk is verified as soon as it has been fetched, or null to not verify
+     * chunks. With a manifest, the content is split into chunks of exactly the manifest's piece size, regardless of
+     * {@link #getChunkSize()} and {@link #getSingleRequestThreshold()}. A chunk that fails verification is fetched
+     * again from a different mirror. {@link ParallelHttpGetInputStream} only hands a chunk to the reader once it has
+     * been verified.
+     * 
+     * @return
+     */
+    public PieceManifest getPieceManifest() {
+        return pieceManifest;
+    }
+
+    public void setPieceManifest(PieceManifest pieceManifest) {
+        this.pieceManifest = pieceManifest;
+    }
+
+    /**
+     * Returns how many pieces from a mirror may fail verification before that mirror is given up on.
+     * 
+     * @return
+     */
+    public int getMaxBadPieces() {
+        return maxBadPieces;
+    }
+
+    public void setMaxBadPieces(int maxBadPieces) {
+        this.maxBadPieces = maxBadPieces;
+    }
+
+    /**
+     * Returns whether ranges are fetched with non-blocking I/O, in which case all connections are driven by
+     * {@link #getSelectorThreads()} threads of their own instead of each needing a thread from the ExecutorService.
+     * This allows for far more connections per mirror, and chunks that are fetched ahead of the reader of a
+     * {@link ParallelHttpGetInputStream} hold off once its memory budget is used up instead of spilling to disk. Only
+     * applies to http urls, https urls are still fetched with a thread per connection.
+     * 
+     * @return
+     */
+    public boolean isNonBlocking() {
+        return nonBlocking;
+    }
+
+    public void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+
+    /**
+     * Returns the number of threads that drive the connections when fetching with {@link #isNonBlocking()}.
+     * 
+     * @return
+     */
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    public void setSelectorThreads(int selectorThreads) {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("Need at least 1 selector thread");
+        }
+        this.selectorThreads = selectorThreads;
+    }
+
+    /**
+     * Returns how many range requests to a mirror may share a connection when fetching with {@link #isNonBlocking()}.
+     * Above 1, requests are pipelined: a request is sent on a busy connection with room for more before a new
+     * connection is opened, without waiting for the responses ahead of it, which the server sends back to back. The
+     * {@link #getConnectionsPerMirror()} requests to a mirror then need only a fraction as many connections, each of
+     * which stays busy and keeps its TCP window open between ranges, rather than every range paying for a connection
+     * of its own. Requests that a server closes the connection on without answering are sent again on a connection of
+     * their own, so servers that don't support pipelining still work, if more slowly. Defaults to 1, no pipelining.
+     * 
+     * @return
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("Need at least 1 request per connection");
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * Returns the pool of connections through which to make HTTP requests, which may be shared with other downloads,
+     * or null to use a private pool that's shut down along with the download. Non-blocking fetches don't use it.
+     * 
+     * @return
+     */
+    public HttpConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public void setConnectionPool(HttpConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Returns the share of a {@link BandwidthLimiter} that the download is limited to, which it splits between its
+     * mirrors, or null for no limit. The share isn't closed when the download is done, and can be adjusted while it's
+     * running. Chunks that are held back by a low limit count as stalled below {@link #getLowSpeedLimit()}, so lower
+     * that along with the bandwidth if need be.
+     * 
+     * @return
+     */
+    public BandwidthLimiter.Share getBandwidthShare() {
+        return bandwidthShare;
+    }
+
+    public void setBandwidthShare(BandwidthLimiter.Share bandwidthShare) {
+        this.bandwidthShare = bandwidthShare;
+    }
+
+    /**
+     * Returns the metrics to record the download in, which may be shared with other downloads, or null to record no
+     * metrics.
+     * 
+     * @return
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Work out how long to wait before fetching again after the given number of failures in a row.
+     * 
+     * @param consecutiveFailures
+     * @return
+     */
+    long retryBackoffMillisAfter(int consecutiveFailures) {
+        long backoff = retryBackoffMillis;
+        for (int i = 1; i < consecutiveFailures && backoff < MAX_RETRY_BACKOFF_MILLIS; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, MAX_RETRY_BACKOFF_MILLIS);
+    }
+
+    /**
+     * Work out the chunk size to use for content of the given length.
+     * 
+     * @param contentLength
+     * @return
+     */
+    long chunkSizeFor(long contentLength) {
+        if (pieceManifest != null) {
+            return pieceManifest.getPieceSize();
+        }
+        if (contentLength <= singleRequestThreshold) {
+            return Math.max(contentLength, 1);
+        }
+        if (chunkSize > 0) {
+            return chunkSize;
+        }
+        long adaptiveChunkSize = contentLength / TARGET_CHUNK_COUNT;
+        long maxChunkSize = streaming ? MAX_STREAMING_CHUNK_SIZE : MAX_ADAPTIVE_CHUNK_SIZE;
+        return Math.min(maxChunkSize, Math.max(MIN_ADAPTIVE_CHUNK_SIZE, adaptiveChunkSize));
+    }
+}
@@ -0,0 +1,277 @@
+package org.oxcart.streams;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * <p>
+ * A list of hashes, one per fixed-size piece of some content, that lets a download verify each chunk as soon as it
+ * lands instead of only checking the whole content at the end. When a manifest is set in
+ * {@link ParallelHttpGetOptions#setPieceManifest(PieceManifest)}, chunks line up with pieces and a chunk that fails
+ * verification is fetched again from a different mirror.
+ * </p>
+ *
+ * <p>
+ * The piece hashes form the leaves of a Merkle tree, whose root ({@link #getRootHash()}) identifies the manifest as a
+ * whole. That way a manifest obtained from an untrusted place can be checked against a single trusted hash.
+ * </p>
+ *
+ * <p>
+ * A manifest is either computed from a known-good copy of the content with
+ * {@link #compute(InputStream, String, long)}, or read from a file written by {@link #write(File)}. The file is plain
+ * text: an "algorithm", "piece-size", "length" and "root" line followed by one hex encoded hash per piece.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class PieceManifest {
+    public static final String DEFAULT_ALGORITHM = "SHA-256";
+    public static final long DEFAULT_PIECE_SIZE = 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final String ENCODING = "UTF-8";
+
+    private final String algorithm;
+    private final long pieceSize;
+    private final long contentLength;
+    private final List<byte[]> pieceHashes;
+
+    /**
+     * @param algorithm
+     *            algorithm used for the piece hashes, see {@link Digests}
+     * @param pieceSize
+     *            size of every piece but the last
+     * @param contentLength
+     * @param pieceHashes
+     * @throws NoSuchAlgorithmException
+     */
+    public PieceManifest(String algorithm, long pieceSize, long contentLength, List<byte[]> pieceHashes)
+            throws NoSuchAlgorithmException {
+        if (pieceSize < 1) {
+            throw new IllegalArgumentException("Piece size must be positive");
+        }
+        long expectedPieces = Math.max(1, (contentLength + pieceSize - 1) / pieceSize);
+        if (pieceHashes.size() != expectedPieces) {
+            throw new IllegalArgumentException(String.format("Expected %1$s piece hashes but got %2$s",
+                                                             expectedPieces, pieceHashes.size()));
+        }
+        // Fail early if the algorithm isn't supported
+        Digests.getInstance(algorithm);
+        this.algorithm = algorithm;
+        this.pieceSize = pieceSize;
+        this.contentLength = contentLength;
+        this.pieceHashes = Collections.unmodifiableList(new ArrayList<byte[]>(pieceHashes));
+    }
+
+    /**
+     * Compute a manifest by reading through a known-good copy of the content. The stream is not closed.
+     *
+     * @param in
+     * @param algorithm
+     * @param pieceSize
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static PieceManifest compute(InputStream in, String algorithm, long pieceSize) throws IOException,
+            NoSuchAlgorithmException {
+        MessageDigest digest = Digests.getInstance(algorithm);
+        List<byte[]> pieceHashes = new ArrayList<byte[]>();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        long contentLength = 0;
+        long inPiece = 0;
+        int read;
+        while ((read = in.read(buffer, 0, (int) Math.min(buffer.length, pieceSize - inPiece))) != -1) {
+            digest.update(buffer, 0, read);
+            contentLength += read;
+            inPiece += read;
+            if (inPiece == pieceSize) {
+                pieceHashes.add(digest.digest());
+                inPiece = 0;
+            }
+        }
+        if (inPiece > 0 || pieceHashes.isEmpty()) {
+            pieceHashes.add(digest.digest());
+        }
+        return new PieceManifest(algorithm, pieceSize, contentLength, pieceHashes);
+    }
+
+    /**
+     * Compute a manifest from a known-good copy of the content in the given file.
+     *
+     * @param file
+     * @param algorithm
+     * @param pieceSize
+     * @return
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static PieceManifest compute(File file, String algorithm, long pieceSize) throws IOException,
+            NoSuchAlgorithmException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return compute(in, algorithm, pieceSize);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read a manifest from a file written by {@link #write(File)}.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     *             if the file isn't a valid manifest, including if its root hash doesn't match its piece hashes
+     */
+    public static PieceManifest read(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String algorithm = null;
+            long pieceSize = -1;
+            long contentLength = -1;
+            byte[] rootHash = null;
+            List<byte[]> pieceHashes = new ArrayList<byte[]>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length == 1) {
+                    pieceHashes.add(Hex.decodeHex(parts[0].toCharArray()));
+                } else if ("algorithm".equals(parts[0])) {
+                    algorithm = parts[1];
+                } else if ("piece-size".equals(parts[0])) {
+                    pieceSize = Long.parseLong(parts[1]);
+                } else if ("length".equals(parts[0])) {
+                    contentLength = Long.parseLong(parts[1]);
+                } else if ("root".equals(parts[0])) {
+                    rootHash = Hex.decodeHex(parts[1].toCharArray());
+                } else {
+                    throw new IOException(String.format("Unexpected line in piece manifest %1$s: %2$s", file, line));
+                }
+            }
+            if (algorithm == null || pieceSize < 0 || contentLength < 0) {
+                throw new IOException(String.format("Piece manifest %1$s is missing its algorithm, piece-size or length",
+                                                    file));
+            }
+            PieceManifest manifest = new PieceManifest(algorithm, pieceSize, contentLength, pieceHashes);
+            if (rootHash != null && !Arrays.equals(rootHash, manifest.getRootHash())) {
+                throw new IOException(String.format("Root hash of piece manifest %1$s does not match its pieces",
+                                                    file));
+            }
+            return manifest;
+        } catch (DecoderException de) {
+            throw new IOException(String.format("Invalid hash in piece manifest %1$s: %2$s", file, de.getMessage()),
+                                  de);
+        } catch (NumberFormatException nfe) {
+            throw new IOException(String.format("Invalid number in piece manifest %1$s: %2$s", file,
+                                                nfe.getMessage()), nfe);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(String.format("Unsupported algorithm in piece manifest %1$s: %2$s", file,
+                                                nsae.getMessage()), nsae);
+        } catch (IllegalArgumentException iae) {
+            throw new IOException(String.format("Invalid piece manifest %1$s: %2$s", file, iae.getMessage()), iae);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write this manifest to the given file, in the format understood by {@link #read(File)}.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), ENCODING);
+        try {
+            writer.write("algorithm " + algorithm + "\n");
+            writer.write("piece-size " + pieceSize + "\n");
+            writer.write("length " + contentLength + "\n");
+            writer.write("root " + Hex.encodeHexString(getRootHash()) + "\n");
+            for (byte[] pieceHash : pieceHashes) {
+                writer.write(Hex.encodeHexString(pieceHash) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns the root of the Merkle tree whose leaves are the piece hashes. Each level hashes pairs of hashes from the
+     * level below, an odd hash out being carried up as is.
+     *
+     * @return
+     */
+    public byte[] getRootHash() {
+        MessageDigest digest = newDigest();
+        List<byte[]> level = pieceHashes;
+        while (level.size() > 1) {
+            List<byte[]> nextLevel = new ArrayList<byte[]>();
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 < level.size()) {
+                    digest.update(level.get(i));
+                    digest.update(level.get(i + 1));
+                    nextLevel.add(digest.digest());
+                } else {
+                    nextLevel.add(level.get(i));
+                }
+            }
+            level = nextLevel;
+        }
+        return level.get(0).clone();
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public long getPieceSize() {
+        return pieceSize;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public int getNumberOfPieces() {
+        return pieceHashes.size();
+    }
+
+    public byte[] getPieceHash(int index) {
+        return pieceHashes.get(index).clone();
+    }
+
+    /**
+     * Returns a fresh digest for hashing a piece.
+     *
+     * @return
+     */
+    MessageDigest newDigest() {
+        try {
+            return Digests.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException nsae) {
+            // Checked when the manifest was constructed
+            throw new IllegalStateException(nsae);
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package org.oxcart.streams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The buffer behind a {@link ReadAheadInputStream}. A single writer appends data and a single reader consumes it in
+ * order. Data is held in memory for as long as the {@link MemoryBudget} allows and is otherwise spilled to a temp file,
+ * which is only created if needed. A reader waiting for data is woken up as soon as the writer appends some, unless
+ * the buffer holds its data until finished, in which case the writer may also discard everything it wrote and start
+ * over.
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+class ReadAheadBuffer {
+    private static final int SPILL_READ_BUFFER_SIZE = 64 * 1024;
+
+    private final MemoryBudget memoryBudget;
+    private final boolean holdUntilFinished;
+    private final Lock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private final LinkedList<Block> blocks = new LinkedList<Block>();
+    private long availableBytes = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+    private IOException failure;
+    private File spillFile;
+    private FileChannel spillChannel;
+    // Only accessed by the writer
+    private long spillLength = 0;
+    // Only accessed by the reader, caches spilled data so that small reads don't each hit the file system
+    private byte[] spillReadBuffer;
+    private long spillReadBufferPosition = 0;
+    private int spillReadBufferLength = 0;
+    private volatile Metrics metrics;
+
+    ReadAheadBuffer(MemoryBudget memoryBudget) {
+        this(memoryBudget, false);
+    }
+
+    /**
+     * @param memoryBudget
+     * @param holdUntilFinished
+     *            if true, the reader doesn't see any data until the buffer is finished
+     */
+    ReadAheadBuffer(MemoryBudget memoryBudget, boolean holdUntilFinished) {
+        this.memoryBudget = memoryBudget;
+        this.holdUntilFinished = holdUntilFinished;
+    }
+
+    /**
+     * Record the time that the reader spends waiting for data in the given metrics, or nowhere if null.
+     *
+     * @param metrics
+     */
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Append data to the buffer, in memory if the budget allows and otherwise in the spill file.
+     *
+     * @param b
+     * @param off
+     * @param len
+     * @throws IOException
+     *             if the buffer has been closed or spilling failed
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        Block block;
+        if (memoryBudget.tryReserve(len)) {
+            byte[] data = new byte[len];
+            System.arraycopy(b, off, data, 0, len);
+            block = new Block(data, 0, len);
+        } else {
+            block = new Block(null, spill(b, off, len), len);
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                if (block.data != null) {
+                    memoryBudget.release(len);
+                }
+                throw new IOException("Buffer closed");
+            }
+            Block last = blocks.peekLast();
+            if (block.data == null && last != null && last.data == null
+                    && last.spillPosition + last.length == block.spillPosition) {
+                // Contiguous with the previous spilled block, just extend that one
+                last.length += len;
+            } else {
+                blocks.add(block);
+            }
+            availableBytes += len;
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mark the buffer as complete, meaning that readers will see the end of the stream once they've consumed everything
+     * already written.
+     */
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a failure to be rethrown to the reader. Only the first failure is kept.
+     *
+     * @param ioe
+     */
+    void fail(IOException ioe) {
+        lock.lock();
+        try {
+            if (failure == null) {
+                failure = ioe;
+            }
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Throw away everything written so far, so that the writer can start over. Only allowed while holding data until
+     * finished, since otherwise the reader may already have consumed some of it.
+     */
+    void discard() {
+        if (!holdUntilFinished) {
+            throw new IllegalStateException("Can only discard data that is held until finished");
+        }
+        lock.lock();
+        try {
+            for (Block block : blocks) {
+                if (block.data != null) {
+                    memoryBudget.release(block.data.length);
+                }
+            }
+            blocks.clear();
+            availableBytes = 0;
+            // The reader hasn't seen any spilled data, so the spill file can be overwritten from the start
+            spillLength = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            Block block = awaitBlock();
+            if (block == null) {
+                return -1;
+            }
+            int read = (int) Math.min(len, block.remaining());
+            if (block.data != null) {
+                System.arraycopy(block.data, (int) block.consumed, b, off, read);
+            } else {
+                read = readSpilled(block.spillPosition + block.consumed, b, off, read, block.remaining());
+            }
+            consume(block, read);
+            return read;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the data of the next block (or as much of it as the target takes) to the given target, without copying it
+     * to a buffer first. Spilled data is transferred from the spill file by the operating system where it can. The
+     * lock isn't held while writing, so a slow target doesn't hold up the writer.
+     * 
+     * @param target
+     * @return the number of bytes written, or -1 at the end of the buffer
+     * @throws IOException
+     */
+    long readTo(WritableByteChannel target) throws IOException {
+        Block block;
+        long offset;
+        long length;
+        FileChannel channel;
+        lock.lock();
+        try {
+            block = awaitBlock();
+            if (block == null) {
+                return -1;
+            }
+            offset = block.consumed;
+            length = block.remaining();
+            channel = spillChannel;
+        } finally {
+            lock.unlock();
+        }
+        // Only the reader consumes blocks, so this one stays put, though a spilled one may grow in the meantime
+        long written;
+        if (block.data != null) {
+            written = target.write(ByteBuffer.wrap(block.data, (int) offset, (int) length));
+        } else {
+            written = channel.transferTo(block.spillPosition + offset, length, target);
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            consume(block, written);
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            Block block = awaitBlock();
+            if (block == null) {
+                return 0;
+            }
+            long skipped = Math.min(n, block.remaining());
+            consume(block, skipped);
+            return skipped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int available() {
+        lock.lock();
+        try {
+            if (holdUntilFinished && !finished) {
+                return 0;
+            }
+            return (int) Math.min(availableBytes, Integer.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard any buffered data, returning its memory to the budget and deleting the spill file.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Block block : blocks) {
+                if (block.data != null) {
+                    memoryBudget.release(block.data.length);
+                }
+            }
+            blocks.clear();
+            availableBytes = 0;
+            dataAvailable.signalAll();
+            if (spillChannel != null) {
+                try {
+                    spillChannel.close();
+                } finally {
+                    spillFile.delete();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the spill file, or null if nothing has been spilled yet.
+     *
+     * @return
+     */
+    File getSpillFile() {
+        lock.lock();
+        try {
+            return spillFile;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a block with unconsumed data. Must be called while holding the lock.
+     *
+     * @return the first block with data to read, or null if the end of the buffer has been reached
+     * @throws IOException
+     */
+    private Block awaitBlock() throws IOException {
+        // A wakeup needn't mean that there's a block for the reader yet, so the whole wait counts as one stall
+        boolean waited = false;
+        long waitStart = 0;
+        try {
+            while (true) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (finished || !holdUntilFinished) {
+                    Block block = blocks.peekFirst();
+                    if (block != null) {
+                        return block;
+                    }
+                    if (finished) {
+                        return null;
+                    }
+                }
+                if (!waited) {
+                    waited = true;
+                    waitStart = System.nanoTime();
+                }
+                try {
+                    dataAvailable.await();
+                } catch (InterruptedException ie) {
+                    throw new IOException(String.format("Interrupted while waiting for buffer to catch up: "
+                            + ie.getMessage()), ie);
+                }
+            }
+        } finally {
+            Metrics metrics = this.metrics;
+            if (waited && metrics != null) {
+                metrics.readStalled(System.nanoTime() - waitStart);
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock.
+     */
+    private void consume(Block block, long bytes) {
+        block.consumed += bytes;
+        availableBytes -= bytes;
+        if (block.remaining() == 0) {
+            blocks.removeFirst();
+            if (block.data != null) {
+                memoryBudget.release(block.data.length);
+            }
+        }
+    }
+
+    /**
+     * Append data to the end of the spill file, creating it if necessary.
+     *
+     * @return the position in the spill file at which the data was written
+     */
+    private long spill(byte[] b, int off, int len) throws IOException {
+        if (spillChannel == null) {
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("Buffer closed");
+                }
+                spillFile = File.createTempFile(UUID.randomUUID().toString(), ".tmp");
+                spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+            } finally {
+                lock.unlock();
+            }
+        }
+        long position = spillLength;
+        ByteBuffer source = ByteBuffer.wrap(b, off, len);
+        while (source.hasRemaining()) {
+            spillLength += spillChannel.write(source, spillLength);
+        }
+        return position;
+    }
+
+    /**
+     * Read spilled data at the given position via the spill read buffer, refilling it if necessary.
+     *
+     * @param position
+     *            position in the spill file
+     * @param len
+     *            maximum number of bytes to read
+     * @param spilledRemaining
+     *            number of bytes known to have been spilled at and after position
+     * @return the number of bytes read
+     */
+    private int readSpilled(long position, byte[] b, int off, int len, long spilledRemaining) throws IOException {
+        if (position < spillReadBufferPosition || position >= spillReadBufferPosition + spillReadBufferLength) {
+            if (spillReadBuffer == null) {
+                spillReadBuffer = new byte[SPILL_READ_BUFFER_SIZE];
+            }
+            int fillLength = (int) Math.min(spillReadBuffer.length, spilledRemaining);
+            ByteBuffer destination = ByteBuffer.wrap(spillReadBuffer, 0, fillLength);
+            long fillPosition = position;
+            while (destination.hasRemaining()) {
+                int read = spillChannel.read(destination, fillPosition);
+                if (read == -1) {
+                    throw new IOException("Unexpected end of spill file");
+                }
+                fillPosition += read;
+            }
+            spillReadBufferPosition = position;
+            spillReadBufferLength = fillLength;
+        }
+        int offsetInBuffer = (int) (position - spillReadBufferPosition);
+        int read = Math.min(len, spillReadBufferLength - offsetInBuffer);
+        System.arraycopy(spillReadBuffer, offsetInBuffer, b, off, read);
+        return read;
+    }
+
+    /**
+     * A contiguous piece of buffered data, held either in memory or in the spill file.
+     */
+    private static class Block {
+        // null if the block lives in the spill file
+        private final byte[] data;
+        private final long spillPosition;
+        private long length;
+        private long consumed = 0;
+
+        private Block(byte[] data, long spillPosition, long length) {
+            this.data = data;
+            this.spillPosition = spillPosition;
+            this.length = length;
+        }
+
+        private long remaining() {
+            return length - consumed;
+        }
+    }
+}
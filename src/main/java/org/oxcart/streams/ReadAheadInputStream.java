@@ -1,37 +1,34 @@
 package org.oxcart.streams;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.UUID;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * An InputStream that reads ahead in the background and buffers data via the file system. ReadAheadInputStreams are
- * opened using {@link #open(org.oxcart.streams.IStreamProvider, java.util.concurrent.ExecutorService) open}.
+ * An InputStream that reads ahead in the background and buffers data in memory, spilling to the file system once its
+ * {@link MemoryBudget} is used up. ReadAheadInputStreams are opened using
+ * {@link #open(org.oxcart.streams.IStreamProvider, java.util.concurrent.ExecutorService) open}.
  * 
  * @author ox.to.a.cart /at/ gmail.com
  * 
  */
-public class ReadAheadInputStream extends InputStream implements Runnable {
+public class ReadAheadInputStream extends InputStream implements Runnable, IChannelSource {
+    /**
+     * Memory budget used by streams that are opened without one.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 8 * 1024 * 1024;
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
     private IStreamProvider streamProvider;
-    private File bufferFile;
-    private BufferedOutputStream bufferOutputStream;
-    private BufferedInputStream bufferInputStream;
-    private AtomicBoolean stillBuffering = new AtomicBoolean(true);
-    private AtomicInteger bufferedBytes = new AtomicInteger(0);
-    private AtomicReference<IOException> readAheadException = new AtomicReference<IOException>(null);
+    private ReadAheadBuffer buffer;
+    // Only ever updated by the writer, so it needn't be atomic
+    private volatile long bufferedBytes = 0;
+    private byte[] singleByte = new byte[1];
 
     /**
      * Open a new ReadAheadInputStream that wraps the supplied originalStream and that reads ahead using a task
-     * submitted to the provided ExecutorService.
+     * submitted to the provided ExecutorService. Up to {@link #DEFAULT_MEMORY_BUDGET} bytes are buffered in memory.
      * 
      * @param streamProvider
      *            provides the underlying stream to read (called on its own thread)
@@ -39,82 +36,163 @@ public class ReadAheadInputStream extends InputStream implements Runnable {
      */
     public static ReadAheadInputStream open(IStreamProvider streamProvider, ExecutorService executorService)
             throws IOException {
-        final ReadAheadInputStream stream = new ReadAheadInputStream(streamProvider);
+        return open(streamProvider, executorService, new MemoryBudget(DEFAULT_MEMORY_BUDGET));
+    }
+
+    /**
+     * Open a new ReadAheadInputStream that wraps the supplied originalStream and that reads ahead using a task
+     * submitted to the provided ExecutorService, buffering in memory within the given memoryBudget.
+     * 
+     * @param streamProvider
+     *            provides the underlying stream to read (called on its own thread)
+     * @param executorService
+     * @param memoryBudget
+     *            limits how much data is buffered in memory (may be shared with other streams)
+     */
+    public static ReadAheadInputStream open(IStreamProvider streamProvider, ExecutorService executorService,
+            MemoryBudget memoryBudget) throws IOException {
+        final ReadAheadInputStream stream = new ReadAheadInputStream(streamProvider, memoryBudget, false);
         // Start reading ahead
         executorService.submit(stream);
         return stream;
     }
 
-    private ReadAheadInputStream(IStreamProvider streamProvider) throws IOException {
+    private ReadAheadInputStream(IStreamProvider streamProvider, MemoryBudget memoryBudget,
+            boolean holdUntilFinished) {
         this.streamProvider = streamProvider;
-        String tempFileName = UUID.randomUUID().toString();
-        this.bufferFile = File.createTempFile(tempFileName, ".tmp");
-        this.bufferOutputStream = new BufferedOutputStream(new FileOutputStream(bufferFile));
-        this.bufferInputStream = new BufferedInputStream(new FileInputStream(bufferFile));
+        this.buffer = new ReadAheadBuffer(memoryBudget, holdUntilFinished);
+    }
+
+    /**
+     * Construct a stream that doesn't read ahead by itself, but is instead fed by the caller through
+     * {@link #write(byte[], int, int)}, {@link #finishBuffering()} and {@link #failBuffering(IOException)}.
+     * 
+     * @param memoryBudget
+     */
+    ReadAheadInputStream(MemoryBudget memoryBudget) {
+        this(null, memoryBudget, false);
+    }
+
+    /**
+     * Construct a fed stream like {@link #ReadAheadInputStream(MemoryBudget)}, which if holdUntilFinished is set only
+     * lets the reader see the data once buffering has finished and until then allows it to be discarded with
+     * {@link #discardBuffered()}.
+     * 
+     * @param memoryBudget
+     * @param holdUntilFinished
+     */
+    ReadAheadInputStream(MemoryBudget memoryBudget, boolean holdUntilFinished) {
+        this(null, memoryBudget, holdUntilFinished);
     }
 
     @Override
     public void run() {
         try {
-            BufferedInputStream originalStream = new BufferedInputStream(streamProvider.openStream());
+            InputStream originalStream = streamProvider.openStream();
+            // Only report a failure once the original stream is closed, so that readers never see a failure while it
+            // is still open. A read failure takes precedence over a close failure.
+            IOException failure = null;
             try {
-                int next;
-                while ((next = originalStream.read()) != -1) {
-                    bufferOutputStream.write(next);
-                    bufferedBytes.incrementAndGet();
+                byte[] transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+                int read;
+                while ((read = originalStream.read(transferBuffer)) != -1) {
+                    write(transferBuffer, 0, read);
                 }
             } catch (IOException ioe) {
-                readAheadException.set(ioe);
+                failure = ioe;
             } finally {
                 try {
                     originalStream.close();
                 } catch (IOException ioeClose) {
-                    readAheadException.compareAndSet(null, ioeClose);
+                    if (failure == null) {
+                        failure = ioeClose;
+                    }
                 }
             }
+            if (failure != null) {
+                failBuffering(failure);
+            }
         } catch (IOException ioe) {
-            readAheadException.set(ioe);
+            failBuffering(ioe);
         } catch (Exception e) {
-            readAheadException.set(new IOException(e.getMessage(), e));
+            failBuffering(new IOException(e.getMessage(), e));
         } finally {
-            stillBuffering.set(false);
-            try {
-                bufferOutputStream.close();
-            } catch (Exception e) {
-                // ignore
-            }
+            finishBuffering();
         }
+    }
+
+    /**
+     * Record the time that the reader spends waiting for data in the given metrics.
+     * 
+     * @param metrics
+     *            the metrics, or null to record nothing
+     */
+    void setMetrics(Metrics metrics) {
+        buffer.setMetrics(metrics);
+    }
+
+    /**
+     * Append data to the buffer.
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        buffer.write(b, off, len);
+        bufferedBytes += len;
+    }
+
+    /**
+     * Throw away the data buffered so far, which is only possible while it is being held until finished.
+     */
+    void discardBuffered() {
+        buffer.discard();
+        bufferedBytes = 0;
+    }
+
+    /**
+     * Mark the end of the buffered data.
+     */
+    void finishBuffering() {
+        buffer.finish();
+    }
 
+    /**
+     * Make the reader fail with the given exception.
+     */
+    void failBuffering(IOException ioe) {
+        buffer.fail(ioe);
     }
 
     @Override
     public int read() throws IOException {
-        while (stillBuffering.get() && bufferInputStream.available() == 0) {
-            // Wait for the buffer to catch up
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException ie) {
-                throw new IOException(String.format("Interrupted while waiting for buffer to catch up: "
-                        + ie.getMessage()), ie);
-            }
-        }
+        int read = buffer.read(singleByte, 0, 1);
+        return read == -1 ? -1 : singleByte[0] & 0xFF;
+    }
 
-        // Check to see if there was an exception doing the read ahead
-        IOException ioe = readAheadException.get();
-        if (ioe != null) {
-            throw ioe;
-        }
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return buffer.read(b, off, len);
+    }
+
+    @Override
+    public long readTo(WritableByteChannel target) throws IOException {
+        return buffer.readTo(target);
+    }
+
+    /**
+     * Skips only over data that has already been buffered, waiting for some to arrive if necessary.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        return buffer.skip(n);
+    }
 
-        return bufferInputStream.read();
+    @Override
+    public int available() throws IOException {
+        return buffer.available();
     }
 
     @Override
     public void close() throws IOException {
-        try {
-            bufferInputStream.close();
-        } finally {
-            bufferFile.delete();
-        }
+        buffer.close();
     }
 
     /**
@@ -122,7 +200,7 @@ public class ReadAheadInputStream extends InputStream implements Runnable {
      * 
      * @return
      */
-    public int getBufferedBytes() {
-        return bufferedBytes.get();
+    public long getBufferedBytes() {
+        return bufferedBytes;
     }
 }
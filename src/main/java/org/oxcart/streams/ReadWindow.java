@@ -0,0 +1,124 @@
+package org.oxcart.streams;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The chunks of a streaming download that may be fetched, namely the chunk being read and a window of chunks after it.
+ * The window starts out one chunk deep, so that the first chunks don't have to share the mirrors with chunks far ahead
+ * of the reader. From then on it is kept just deep enough for the chunks in flight to keep up with the rate at which
+ * the reader consumes data, going by the throughput of each connection, plus one chunk so that it deepens while the
+ * reader is waiting for data. A reader that slows down or pauses lets the window shrink back, and it never gets deeper
+ * than the given maximum, which bounds how much is buffered however long the content is.
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+class ReadWindow {
+    /**
+     * How often the reader's rate is sampled, at most.
+     */
+    private static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /**
+     * Time constant of the moving average of the reader's rate.
+     */
+    private static final double RATE_TIME_CONSTANT_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final int maxDepth;
+    // Only written by the reader
+    private volatile int cursor = 0;
+    private volatile long bytesRead = 0;
+    // Guarded by this
+    private int depth = 1;
+    private double readRate = Double.NaN;
+    private long lastSampleNanos;
+    private long lastSampleBytes = 0;
+
+    /**
+     * @param maxDepth
+     *            the most chunks ahead of the one being read that may be fetched
+     * @param now
+     *            the current System.nanoTime(), from when the reader's rate is measured
+     */
+    ReadWindow(int maxDepth, long now) {
+        this.maxDepth = Math.max(1, maxDepth);
+        this.lastSampleNanos = now;
+    }
+
+    /**
+     * Record how far the reader has got. Only called by the reader.
+     *
+     * @param chunkIndex
+     *            the index of the chunk being read
+     * @param bytesRead
+     *            the total number of bytes read (or skipped)
+     * @return true if the reader has moved on to another chunk since last time
+     */
+    boolean readerAt(int chunkIndex, long bytesRead) {
+        this.bytesRead = bytesRead;
+        if (chunkIndex != cursor) {
+            cursor = chunkIndex;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the chunk with the given index is close enough to the reader to be fetched.
+     *
+     * @param chunkIndex
+     * @param stats
+     *            the stats of all mirrors, to tell how fast a connection fetches
+     * @param now
+     *            the current System.nanoTime()
+     * @return
+     */
+    synchronized boolean allows(int chunkIndex, List<MirrorStats> stats, long now) {
+        return chunkIndex <= cursor + getDepth(stats, now);
+    }
+
+    /**
+     * Returns the number of chunks ahead of the one being read that may be fetched, adapting it to the reader's rate
+     * if it's time for another sample.
+     *
+     * @param stats
+     *            the stats of all mirrors
+     * @param now
+     *            the current System.nanoTime()
+     * @return
+     */
+    synchronized int getDepth(List<MirrorStats> stats, long now) {
+        long elapsed = now - lastSampleNanos;
+        if (elapsed >= SAMPLE_NANOS) {
+            long bytes = bytesRead;
+            double rate = (bytes - lastSampleBytes) * 1e9 / elapsed;
+            // Samples count for more the longer they are
+            readRate = Double.isNaN(readRate) ? rate : readRate + (1 - Math.exp(-elapsed / RATE_TIME_CONSTANT_NANOS))
+                    * (rate - readRate);
+            lastSampleNanos = now;
+            lastSampleBytes = bytes;
+            double throughputPerConnection = getThroughputPerConnection(stats);
+            if (throughputPerConnection > 0) {
+                depth = (int) Math.max(1, Math.min(maxDepth, Math.ceil(readRate / throughputPerConnection) + 1));
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the average throughput of a single connection over the mirrors whose throughput is known, or 0 if none
+     * is known yet.
+     */
+    private static double getThroughputPerConnection(List<MirrorStats> stats) {
+        double total = 0;
+        int known = 0;
+        for (MirrorStats mirror : stats) {
+            double throughput = mirror.getThroughputPerConnection();
+            if (throughput > 0) {
+                total += throughput;
+                known += 1;
+            }
+        }
+        return known == 0 ? 0 : total / known;
+    }
+}
@@ -0,0 +1,329 @@
+package org.oxcart.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Represents a resource which will be used to fetch part of the download.
+ * 
+ * @author ox.to.a.cart /at/ gmail.com
+ * 
+ */
+class Resource {
+    private HttpClient httpClient;
+    private String url;
+    private long contentLength;
+    private boolean acceptsRangeRequests;
+    private String validator;
+    private MirrorStats stats = new MirrorStats();
+    // When the request for each range stream that hasn't been released yet was made
+    private Map<InputStream, Long> requestStarts = new IdentityHashMap<InputStream, Long>();
+
+    /**
+     * Look up the resource at the given url with a HEAD request.
+     * 
+     * @param httpClient
+     * @param url
+     * @param timeoutMillis
+     *            how long to wait for a connection and for the response
+     * @throws IOException
+     */
+    public Resource(HttpClient httpClient, String url, int timeoutMillis) throws IOException {
+        this(httpClient, url, new HttpHead(url), timeoutMillis);
+    }
+
+    /**
+     * Look up the resource at the given url with the given HEAD request, which another thread can abort to give up on
+     * the lookup.
+     * 
+     * @param httpClient
+     * @param url
+     * @param method
+     * @param timeoutMillis
+     *            how long to wait for a connection and for the response
+     * @throws IOException
+     */
+    Resource(HttpClient httpClient, String url, HttpHead method, int timeoutMillis) throws IOException {
+        this.httpClient = httpClient;
+        this.url = url;
+        method.getParams().setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, timeoutMillis);
+        HttpConnectionParams.setConnectionTimeout(method.getParams(), timeoutMillis);
+        HttpConnectionParams.setSoTimeout(method.getParams(), timeoutMillis);
+        HttpResponse response = httpClient.execute(method, new BasicHttpContext());
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode != 200) {
+            throw new IOException(
+                                  String.format("Unrecognized response on attempting to get resource HEAD information. Expected 200, got %1$s",
+                                                statusCode));
+        }
+        Header contentLengthHeader = response.getFirstHeader("Content-Length");
+        if (contentLengthHeader == null) {
+            throw new IOException("No Content-Length in response to HEAD request");
+        }
+        contentLength = Long.parseLong(contentLengthHeader.getValue());
+        // Per RFC 2616, we assume that range requests are accepted unless the server explicitly says they aren't
+        Header acceptRangesHeader = response.getFirstHeader("Accept-Ranges");
+        acceptsRangeRequests = acceptRangesHeader == null
+                || !"none".equalsIgnoreCase(acceptRangesHeader.getValue().trim());
+        // Prefer a strong ETag, since weak ones can't be used with If-Range
+        Header eTagHeader = response.getFirstHeader("ETag");
+        Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+        if (eTagHeader != null && !eTagHeader.getValue().startsWith("W/")) {
+            validator = eTagHeader.getValue();
+        } else if (lastModifiedHeader != null) {
+            validator = lastModifiedHeader.getValue();
+        }
+    }
+
+    /**
+     * Fetches a section of the resource specified by the given range (in bytes). If the resource has a validator, the
+     * request is made conditional on it so that a resource that changed since its HEAD was looked up fails the fetch
+     * instead of mixing data from two versions.
+     * 
+     * @param start
+     *            start of range (inclusive)
+     * @param end
+     *            end of range (exclusive)
+     * @return
+     * @throws IOException
+     */
+    public InputStream fetchRange(long start, long end) throws IOException {
+        HttpGet method = new HttpGet(url);
+        for (Map.Entry<String, String> header : rangeHeaders(start, end).entrySet()) {
+            method.addHeader(header.getKey(), header.getValue());
+        }
+        stats.fetchAttempted();
+        long requestStart = System.nanoTime();
+        // A context of its own, since a context isn't thread-safe and the workers for this resource fetch at the same
+        // time
+        HttpResponse response = httpClient.execute(method, new BasicHttpContext());
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode != 206) {
+            if (statusCode == 200) {
+                // The server ignored the range and is sending the whole resource, which isn't worth reading to the end
+                // just to keep the connection
+                method.abort();
+            } else {
+                EntityUtils.consume(response.getEntity());
+            }
+            throw new IOException(
+                                  String.format("Unrecognized response on attempting to issue range GET. Expected 206, got %1$s",
+                                                statusCode));
+        }
+        stats.fetchStarted(System.nanoTime() - requestStart);
+        InputStream rangeStream = response.getEntity().getContent();
+        synchronized (requestStarts) {
+            requestStarts.put(rangeStream, requestStart);
+        }
+        return rangeStream;
+    }
+
+    /**
+     * Fetches a section of the resource like {@link #fetchRange(long, long)}, but without blocking. The request is
+     * made by the given engine, which streams the response body to the given handler. The handler is only told about
+     * the response once it is known to be the requested range, and the fetch has been recorded as finished by the
+     * time the handler hears that the response is over.
+     * 
+     * @param engine
+     * @param start
+     *            start of range (inclusive)
+     * @param end
+     *            end of range (exclusive)
+     * @param handler
+     * @return the request, which can be used to cancel it
+     */
+    public NioHttpEngine.Request fetchRange(NioHttpEngine engine, long start, long end, final IResponseHandler handler) {
+        stats.fetchAttempted();
+        return engine.get(url, rangeHeaders(start, end), new IResponseHandler() {
+            private long requestStart = System.nanoTime();
+            private boolean started = false;
+
+            @Override
+            public void responseDue() {
+                requestStart = System.nanoTime();
+            }
+
+            @Override
+            public void responseStarted(int statusCode) throws IOException {
+                if (statusCode != 206) {
+                    throw new IOException(
+                                          String.format("Unrecognized response on attempting to issue range GET. Expected 206, got %1$s",
+                                                        statusCode));
+                }
+                started = true;
+                stats.fetchStarted(System.nanoTime() - requestStart);
+                handler.responseStarted(statusCode);
+            }
+
+            @Override
+            public boolean isReady() {
+                return handler.isReady();
+            }
+
+            @Override
+            public boolean isNeededNow() {
+                return handler.isNeededNow();
+            }
+
+            @Override
+            public int getReadLimit() {
+                return handler.getReadLimit();
+            }
+
+            @Override
+            public void bodyReceived(byte[] b, int off, int len) throws IOException {
+                handler.bodyReceived(b, off, len);
+            }
+
+            @Override
+            public void responseFinished(IOException failure) {
+                if (started) {
+                    long now = System.nanoTime();
+                    stats.fetchFinished(now - requestStart, now);
+                }
+                handler.responseFinished(failure);
+            }
+        });
+    }
+
+    /**
+     * Headers for a request of the given range, made conditional on the validator if there is one.
+     * 
+     * @param start
+     * @param end
+     * @return
+     */
+    private Map<String, String> rangeHeaders(long start, long end) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Range", String.format("bytes=%1$s-%2$s", start, end - 1));
+        if (validator != null) {
+            headers.put("If-Range", validator);
+        }
+        return headers;
+    }
+
+    /**
+     * Release a stream obtained from {@link #fetchRange(long, long)}. A stream that wasn't read to the end has its
+     * connection aborted, since closing it normally would read the rest of the range in order to reuse the connection.
+     * 
+     * @param rangeStream
+     * @param complete
+     *            whether the stream was read to the end
+     * @throws IOException
+     */
+    public void release(InputStream rangeStream, boolean complete) throws IOException {
+        try {
+            if (!complete && rangeStream instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) rangeStream).abortConnection();
+            } else {
+                rangeStream.close();
+            }
+        } finally {
+            Long requestStart;
+            synchronized (requestStarts) {
+                requestStart = requestStarts.remove(rangeStream);
+            }
+            long now = System.nanoTime();
+            if (requestStart != null) {
+                stats.fetchFinished(now - requestStart, now);
+            } else {
+                stats.fetchFinished(now);
+            }
+        }
+    }
+
+    /**
+     * Two resources are considered compatible if their content lengths match.
+     * 
+     * @param other
+     * @return
+     */
+    public void ensureCompatibleWith(Resource other) throws IOException {
+        if (contentLength != other.contentLength) {
+            throw new IOException(String.format("Content-Length for resources '%1$s' and '%2$s' did not match",
+                                                url, other.url));
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns the strong ETag of the resource, or else its Last-Modified date, or null if it has neither.
+     * 
+     * @return
+     */
+    public String getValidator() {
+        return validator;
+    }
+
+    public boolean acceptsRangeRequests() {
+        return acceptsRangeRequests;
+    }
+
+    /**
+     * Record that data was fetched from this resource.
+     * 
+     * @param bytes
+     */
+    public void recordBytesFetched(long bytes) {
+        stats.bytesFetched(bytes);
+    }
+
+    /**
+     * Record that fetching a range failed.
+     * 
+     * @return the number of fetches from this resource that have failed in a row
+     */
+    public int recordFetchFailed() {
+        return stats.fetchFailed();
+    }
+
+    public void recordFetchSucceeded() {
+        stats.fetchSucceeded();
+    }
+
+    /**
+     * Record that this resource is going to be tried again after a failed fetch.
+     */
+    public void recordRetry() {
+        stats.fetchRetried();
+    }
+
+    /**
+     * Pass what is recorded about this resource on to the given metrics from now on.
+     * 
+     * @param metrics
+     *            the metrics of this resource's url, or null to stop passing anything on
+     */
+    public void setMetrics(MirrorMetrics metrics) {
+        stats.setMetrics(metrics);
+    }
+
+    public long getBytesFetched() {
+        return stats.getBytesFetched();
+    }
+
+    public MirrorStats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,152 @@
+package org.oxcart.streams;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * An ExecutorService that starts a new thread for every task, from a given ThreadFactory, and limits how many tasks
+ * run at the same time with a fair {@link Semaphore} rather than with the size of a pool. Tasks beyond the limit wait
+ * for a permit on their own thread, in the order they were submitted. This is meant for cheap threads such as virtual
+ * threads (see {@link VirtualThreads}), where a thread per blocking fetch costs next to nothing.
+ * </p>
+ *
+ * <p>
+ * {@link #shutdownNow()} interrupts all tasks, including those still waiting for a permit, which then never run. It
+ * always returns an empty list.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class ThreadPerTaskExecutorService extends AbstractExecutorService {
+    private final ThreadFactory threadFactory;
+    private final Semaphore permits;
+    private final Object lock = new Object();
+    // Guarded by lock
+    private final Set<Thread> threads = new HashSet<Thread>();
+    private boolean shutdown = false;
+    // Set by shutdownNow(), after which tasks that were still waiting don't run even if they get a permit
+    private volatile boolean stopped = false;
+
+    /**
+     * @param threadFactory
+     *            creates the thread for each task
+     * @param maxConcurrentTasks
+     *            how many tasks may run at the same time
+     */
+    public ThreadPerTaskExecutorService(ThreadFactory threadFactory, int maxConcurrentTasks) {
+        if (maxConcurrentTasks < 1) {
+            throw new IllegalArgumentException("Need to allow at least 1 concurrent task");
+        }
+        this.threadFactory = threadFactory;
+        this.permits = new Semaphore(maxConcurrentTasks, true);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        Thread thread = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    permits.acquire();
+                    try {
+                        if (!stopped) {
+                            command.run();
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                } catch (InterruptedException ie) {
+                    // Shut down before the task got to run
+                } finally {
+                    taskFinished(Thread.currentThread());
+                }
+            }
+        });
+        synchronized (lock) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            threads.add(thread);
+        }
+        thread.start();
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Thread> running;
+        synchronized (lock) {
+            shutdown = true;
+            stopped = true;
+            running = new ArrayList<Thread>(threads);
+            lock.notifyAll();
+        }
+        for (Thread thread : running) {
+            thread.interrupt();
+        }
+        return new ArrayList<Runnable>();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        synchronized (lock) {
+            return shutdown;
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        synchronized (lock) {
+            return shutdown && threads.isEmpty();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (!(shutdown && threads.isEmpty())) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of tasks that are running or waiting for a permit to run.
+     *
+     * @return
+     */
+    public int getActiveTasks() {
+        synchronized (lock) {
+            return threads.size();
+        }
+    }
+
+    private void taskFinished(Thread thread) {
+        synchronized (lock) {
+            threads.remove(thread);
+            lock.notifyAll();
+        }
+    }
+}
@@ -10,7 +10,7 @@ import java.util.List;
  * @author ox.to.a.cart /at/ gmail.com
  * 
  */
-public abstract class ValidatingInputStream extends InputStream {
+public abstract class ValidatingInputStream extends InputStream implements IValidatable {
     private List<String> validationErrors = new ArrayList<String>();
 
     /**
@@ -18,6 +18,7 @@ public abstract class ValidatingInputStream extends InputStream {
      * 
      * @return
      */
+    @Override
     public final boolean isValid() {
         validationErrors.clear();
         collectValidationErrors(validationErrors);
@@ -29,6 +30,7 @@ public abstract class ValidatingInputStream extends InputStream {
      * 
      * @return
      */
+    @Override
     public List<String> getValidationErrors() {
         return validationErrors;
     }
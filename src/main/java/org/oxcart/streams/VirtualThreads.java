@@ -0,0 +1,71 @@
+package org.oxcart.streams;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Access to virtual threads (Java 21 and up) from code that is still built for older JVMs. Virtual threads are looked
+ * up by reflection, so {@link #isAvailable()} simply returns false on JVMs that don't have them.
+ * </p>
+ *
+ * <p>
+ * With virtual threads, every range fetch and read-ahead task can block on a thread of its own without the cost of a
+ * platform thread, so the number of fetches in flight is no longer bound by the size of a thread pool.
+ * {@link #newExecutor(int)} still caps it, with a semaphore, so that a download can't open unbounded connections.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class VirtualThreads {
+    private static final String THREAD_NAME_PREFIX = "pget-virtual-";
+    private static final ThreadFactory FACTORY = lookUpFactory();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Whether this JVM supports virtual threads.
+     *
+     * @return
+     */
+    public static boolean isAvailable() {
+        return FACTORY != null;
+    }
+
+    /**
+     * Create an ExecutorService that runs each task on a new virtual thread, with at most maxConcurrentTasks running
+     * at the same time.
+     *
+     * @param maxConcurrentTasks
+     * @return
+     * @throws UnsupportedOperationException
+     *             if this JVM doesn't support virtual threads
+     */
+    public static ThreadPerTaskExecutorService newExecutor(int maxConcurrentTasks) {
+        if (FACTORY == null) {
+            throw new UnsupportedOperationException(String.format("Virtual threads are not supported by Java %1$s",
+                                                                  System.getProperty("java.version")));
+        }
+        return new ThreadPerTaskExecutorService(FACTORY, maxConcurrentTasks);
+    }
+
+    /**
+     * Looks up the equivalent of <code>Thread.ofVirtual().name(prefix, 0).factory()</code>.
+     *
+     * @return the factory, or null if there are no virtual threads
+     */
+    private static ThreadFactory lookUpFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX, 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            // Not there, or only as a preview feature that isn't enabled
+            return null;
+        }
+    }
+}
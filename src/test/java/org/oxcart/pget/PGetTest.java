@@ -10,6 +10,8 @@ import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.oxcart.streams.BaseHTTPGetTest;
+import org.oxcart.streams.Digests;
+import org.oxcart.streams.MirrorSimulator;
 
 public class PGetTest extends BaseHTTPGetTest {
     private static final String OUT_FILE_NAME = "/tmp/PGetTest_outfile.tmp";
@@ -61,6 +63,128 @@ public class PGetTest extends BaseHTTPGetTest {
         assertEquals("Fetch should have failed checksum", 2, fetchResult);
     }
 
+    @Test
+    public void testSeveralChecksums() throws Exception {
+        String sha256 = Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(CONTENT.getBytes()));
+        String crc32c = Hex.encodeHexString(Digests.getInstance(Digests.CRC32C).digest(CONTENT.getBytes()));
+        int fetchResult = new PGet("-o", OUT_FILE_NAME,
+                                   "-c", sha256,
+                                   "-c", "CRC32C:" + crc32c,
+                                   "-d", "MD5",
+                                   "http://localhost:8089/good1",
+                                   "http://localhost:8089/good2").fetch();
+        assertEquals("Fetch should be successful", 0, fetchResult);
+        checkSavedFile();
+
+        fetchResult = new PGet("-a", "CRC32C",
+                               "-c", sha256,
+                               "http://localhost:8089/good1",
+                               "http://localhost:8089/good2").fetch();
+        assertEquals("Checksum should have been taken as CRC32C", 2, fetchResult);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        File manifest = File.createTempFile("PGetTest", ".batch");
+        File secondOutFile = File.createTempFile("PGetTest", ".tmp");
+        File badOutFile = File.createTempFile("PGetTest", ".tmp");
+        try {
+            String checksum = Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(CONTENT.getBytes()));
+            FileUtils.writeStringToFile(manifest, "# Comment\n"
+                    + "-o " + OUT_FILE_NAME + " -c " + checksum
+                    + " http://localhost:8089/good1 http://localhost:8089/good2\n"
+                    + "\n"
+                    + "-o " + secondOutFile + " -P 5 -n 2 http://localhost:8089/good2\n");
+            int fetchResult = new PGet("-b", manifest.getPath(), "-t", "2", "-f", "2").fetch();
+            assertEquals("Batch should be successful", 0, fetchResult);
+            checkSavedFile();
+            assertEquals("Second file's content didn't match original content", CONTENT,
+                         FileUtils.readFileToString(secondOutFile));
+
+            FileUtils.writeStringToFile(manifest, "-o " + OUT_FILE_NAME + " http://localhost:8089/good1\n"
+                    + "-o " + badOutFile + " -c " + checksum.substring(2) + "00 http://localhost:8089/good1\n");
+            fetchResult = new PGet("-b", manifest.getPath(), "-t", "1", "-f", "1").fetch();
+            assertEquals("Batch should have failed checksum of second file", 2, fetchResult);
+            checkSavedFile();
+
+            FileUtils.writeStringToFile(manifest, "http://localhost:8089/good1\n");
+            fetchResult = new PGet("-b", manifest.getPath()).fetch();
+            assertEquals("Entry without outfile should have been rejected", 1, fetchResult);
+        } finally {
+            manifest.delete();
+            secondOutFile.delete();
+            badOutFile.delete();
+        }
+    }
+
+    @Test
+    public void testBatchWithQuotedOutfiles() throws Exception {
+        File manifest = File.createTempFile("PGetTest", ".batch");
+        File directory = new File(manifest.getParentFile(), "PGetTest dir " + System.nanoTime());
+        File doubleQuoted = new File(directory, "double quoted.tmp");
+        File singleQuoted = new File(directory, "single 'quoted'.tmp");
+        directory.mkdir();
+        try {
+            FileUtils.writeStringToFile(manifest, "-o \"" + doubleQuoted + "\" http://localhost:8089/good1\n"
+                    + "-o '" + directory + File.separator + "single '\\''quoted'\\''.tmp' http://localhost:8089/good2\n");
+            int fetchResult = new PGet("-b", manifest.getPath()).fetch();
+            assertEquals("Batch should be successful", 0, fetchResult);
+            assertEquals("Double quoted file's content didn't match original content", CONTENT,
+                         FileUtils.readFileToString(doubleQuoted));
+            assertEquals("Single quoted file's content didn't match original content", CONTENT,
+                         FileUtils.readFileToString(singleQuoted));
+
+            FileUtils.writeStringToFile(manifest, "-o \"" + doubleQuoted + " http://localhost:8089/good1\n");
+            fetchResult = new PGet("-b", manifest.getPath()).fetch();
+            assertEquals("Entry with an unfinished quote should have been rejected", 1, fetchResult);
+        } finally {
+            manifest.delete();
+            doubleQuoted.delete();
+            singleQuoted.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        File cacheDirectory = File.createTempFile("PGetTest", ".cache");
+        cacheDirectory.delete();
+        try {
+            String checksum = Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(CONTENT.getBytes()));
+            int fetchResult = new PGet("-o", OUT_FILE_NAME,
+                                       "-k", cacheDirectory.getPath(),
+                                       "-c", checksum,
+                                       "http://localhost:8089/good1").fetch();
+            assertEquals("Fetch should be successful", 0, fetchResult);
+            File cached = new File(new File(cacheDirectory, "SHA-256"), checksum);
+            assertEquals("Download should have been added to the cache", CONTENT, FileUtils.readFileToString(cached));
+
+            // Would fail if it weren't for the cache
+            new File(OUT_FILE_NAME).delete();
+            fetchResult = new PGet("-o", OUT_FILE_NAME,
+                                   "-k", cacheDirectory.getPath(),
+                                   "-c", checksum,
+                                   "http://localhost:8089/nonexistent").fetch();
+            assertEquals("Fetch should have been served from the cache", 0, fetchResult);
+            checkSavedFile();
+            fetchResult = new PGet("-k", cacheDirectory.getPath(),
+                                   "-c", checksum,
+                                   "http://localhost:8089/nonexistent").fetch();
+            assertEquals("Fetch to stdout should have been served from the cache", 0, fetchResult);
+
+            FileUtils.writeStringToFile(cached, "corrupted");
+            fetchResult = new PGet("-o", OUT_FILE_NAME,
+                                   "-k", cacheDirectory.getPath(),
+                                   "-c", checksum,
+                                   "http://localhost:8089/good1").fetch();
+            assertEquals("Corrupt cached copy should have been downloaded again", 0, fetchResult);
+            checkSavedFile();
+            assertEquals("Cache should have been repaired", CONTENT, FileUtils.readFileToString(cached));
+        } finally {
+            FileUtils.deleteDirectory(cacheDirectory);
+        }
+    }
+
     @Test
     public void testSuccessToFileWithInvalidChecksum() throws Exception {
         int fetchResult = new PGet("-o", OUT_FILE_NAME,
@@ -79,6 +203,21 @@ public class PGetTest extends BaseHTTPGetTest {
         assertEquals("Fetch should have failed because of bad file", 3, fetchResult);
     }
 
+    @Test
+    public void testMirrorsThatResetAndFail() throws Exception {
+        MirrorSimulator simulator = new MirrorSimulator(512 * 1024, 3);
+        try {
+            simulator.getMirror(1).dropConnectionsAfter(10 * 1024, 5);
+            simulator.getMirror(2).failRequests(503, 5);
+            MirrorSimulator.Result result = simulator.fetch("-t", "3");
+            assertTrue("Healthy mirror should send the most data, got " + result,
+                       result.getShare(0) > result.getShare(1) && result.getShare(0) > result.getShare(2));
+            assertEquals("Fetches cut short should resume where they stopped", 0, result.getBytesWasted());
+        } finally {
+            simulator.close();
+        }
+    }
+
     @Test
     public void testHelp() throws Exception {
         int fetchResult = new PGet("--help").fetch();
@@ -0,0 +1,127 @@
+package org.oxcart.streams;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class BandwidthLimiterTest {
+    private static final int KB = 1024;
+
+    @Test
+    public void testLimitIsEnforcedAndCanBeChanged() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter(200 * KB);
+        BandwidthLimiter.Share share = limiter.newShare(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            share.acquire(5 * KB);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // Less the 0.1 seconds' worth of burst
+        assertTrue("100 KB at 200 KB/s should take about half a second, took " + elapsedMillis,
+                   elapsedMillis >= 350 && elapsedMillis < 1500);
+
+        limiter.setBytesPerSecond(0);
+        start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            share.acquire(100 * KB);
+        }
+        assertTrue("Lifting the limit should let data through straight away",
+                   System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+
+        share.setBytesPerSecond(100 * KB);
+        start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            share.acquire(5 * KB);
+        }
+        elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("50 KB at 100 KB/s should take about half a second, took " + elapsedMillis,
+                   elapsedMillis >= 350 && elapsedMillis < 1500);
+    }
+
+    @Test
+    public void testAcquireUpToNeverGoesOverTheLimit() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter(100 * KB);
+        BandwidthLimiter.Share share = limiter.newShare(1);
+        long start = System.nanoTime();
+        long granted = 0;
+        while (granted < 50 * KB) {
+            int bytes = share.acquireUpTo(64 * KB);
+            assertTrue("Should grant no more than the burst, got " + bytes, bytes >= 1 && bytes <= 10 * KB);
+            granted += bytes;
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // Less the 0.1 seconds' worth of burst, however the grants fall
+        assertTrue("50 KB at 100 KB/s should take at least 0.4 seconds, took " + elapsedMillis, elapsedMillis >= 390);
+
+        // Given back bandwidth is available straight away, up to the burst
+        int bytes = share.acquireUpTo(64 * KB);
+        share.giveBack(bytes);
+        assertTrue("Given back bandwidth should be available again", share.getAvailableBytes() >= bytes);
+        share.giveBack(100 * KB);
+        assertEquals(10 * KB, share.getAvailableBytes());
+    }
+
+    @Test
+    public void testBandwidthIsSharedByWeight() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter(400 * KB);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong light = consume(limiter.newShare(1), stop);
+        AtomicLong heavy = consume(limiter.newShare(3), stop);
+        Thread.sleep(1500);
+        stop.set(true);
+        double ratio = (double) heavy.get() / light.get();
+        assertTrue("Share with 3 times the weight should get about 3 times the bandwidth, got " + ratio,
+                   ratio > 2 && ratio < 4.5);
+        long total = heavy.get() + light.get();
+        assertTrue("Both together should get about 600 KB in 1.5 seconds, got " + total,
+                   total > 400 * KB && total < 800 * KB);
+    }
+
+    @Test
+    public void testUnusedBandwidthGoesToOthers() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter(400 * KB);
+        BandwidthLimiter.Share download = limiter.newShare(1);
+        // A mirror that never uses its share, next to one that does
+        download.newShare(1);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong mirror = consume(download.newShare(1), stop);
+        AtomicLong other = consume(limiter.newShare(1), stop);
+        Thread.sleep(1500);
+        stop.set(true);
+        double ratio = (double) mirror.get() / other.get();
+        assertTrue("Busy mirror should get all of the download's share, got " + ratio, ratio > 0.7 && ratio < 1.4);
+    }
+
+    /**
+     * Keep acquiring 4 KB at a time from the given share on a thread of its own until told to stop.
+     *
+     * @return the number of bytes acquired so far
+     */
+    private AtomicLong consume(final BandwidthLimiter.Share share, final AtomicBoolean stop) {
+        final AtomicLong acquired = new AtomicLong(0);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!stop.get()) {
+                        share.acquire(4 * KB);
+                        acquired.addAndGet(4 * KB);
+                    }
+                } catch (Exception e) {
+                    // Just stop
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return acquired;
+    }
+}
@@ -2,6 +2,8 @@ package org.oxcart.streams;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 
+import java.io.ByteArrayInputStream;
+
 import org.junit.Before;
 import org.junit.Rule;
 
@@ -34,6 +36,8 @@ public class BaseHTTPGetTest extends StreamTest {
                                                                      .withHeader("Content-Length", "20")));
         stubFor(head(urlEqualTo("/bad-length")).willReturn(aResponse().withStatus(2006)
                                                                       .withHeader("Content-Length", "21")));
+        stubFor(head(urlEqualTo("/other-length")).willReturn(aResponse().withStatus(200)
+                                                                        .withHeader("Content-Length", "21")));
         stubFor(head(urlEqualTo("/bad-range")).willReturn(aResponse().withStatus(200)
                                                                      .withHeader("Accept-Ranges", "none")
                                                                      .withHeader("Content-Length", "20")));
@@ -49,6 +53,37 @@ public class BaseHTTPGetTest extends StreamTest {
                                                                 .withHeader("Transfer-Encoding", "")
                                                                 .withHeader("Content-Range", "bytes 10-19/10")
                                                                 .withBody(CONTENT_PART_2)));
+        // Since mirrors take chunks from a shared queue, any mirror may be asked for any range
+        stubFor(get(urlEqualTo("/good1"))
+                                         .withHeader("Range", equalTo("bytes=10-19"))
+                                         .willReturn(aResponse().withStatus(206)
+                                                                .withHeader("Transfer-Encoding", "")
+                                                                .withHeader("Content-Range", "bytes 10-19/10")
+                                                                .withBody(CONTENT_PART_2)));
+        stubFor(get(urlEqualTo("/good2"))
+                                         .withHeader("Range", equalTo("bytes=0-9"))
+                                         .willReturn(aResponse().withStatus(206)
+                                                                .withHeader("Transfer-Encoding", "")
+                                                                .withHeader("Content-Range", "bytes 0-9/10")
+                                                                .withBody(CONTENT_PART_1)));
+        stubFor(get(urlEqualTo("/good1"))
+                                         .withHeader("Range", equalTo("bytes=0-19"))
+                                         .willReturn(aResponse().withStatus(206)
+                                                                .withHeader("Transfer-Encoding", "")
+                                                                .withHeader("Content-Range", "bytes 0-19/20")
+                                                                .withBody(CONTENT)));
+        stubFor(get(urlEqualTo("/good2"))
+                                         .withHeader("Range", equalTo("bytes=0-19"))
+                                         .willReturn(aResponse().withStatus(206)
+                                                                .withHeader("Transfer-Encoding", "")
+                                                                .withHeader("Content-Range", "bytes 0-19/20")
+                                                                .withBody(CONTENT)));
+        stubFor(get(urlEqualTo("/corrupted"))
+                                             .withHeader("Range", equalTo("bytes=0-9"))
+                                             .willReturn(aResponse().withStatus(206)
+                                                                    .withHeader("Transfer-Encoding", "")
+                                                                    .withHeader("Content-Range", "bytes 0-9/10")
+                                                                    .withBody(CONTENT_PART_1)));
         stubFor(get(urlEqualTo("/corrupted"))
                                              .withHeader("Range", equalTo("bytes=10-19"))
                                              .willReturn(aResponse().withStatus(206)
@@ -57,4 +92,52 @@ public class BaseHTTPGetTest extends StreamTest {
                                                                     .withBody(CONTENT_PART_2.substring(0, 9))));
     }
 
+    /**
+     * Options that split the content into two chunks of 10 bytes each, instead of fetching it with a single request.
+     * 
+     * @return
+     */
+    protected ParallelHttpGetOptions twoChunkOptions() {
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setSingleRequestThreshold(0);
+        options.setChunkSize(10);
+        return options;
+    }
+
+    /**
+     * Serve the given content at the given path, answering range requests for every chunk of the given size.
+     * 
+     * @param path
+     * @param content
+     * @param chunkSize
+     */
+    protected void stubChunks(String path, String content, int chunkSize) {
+        stubFor(head(urlEqualTo(path)).willReturn(aResponse().withStatus(200)
+                                                             .withHeader("Content-Length", "" + content.length())));
+        for (int start = 0; start < content.length(); start += chunkSize) {
+            int end = Math.min(start + chunkSize, content.length()) - 1;
+            stubFor(get(urlEqualTo(path))
+                                         .withHeader("Range", equalTo("bytes=" + start + "-" + end))
+                                         .willReturn(aResponse().withStatus(206)
+                                                                .withHeader("Content-Range",
+                                                                            "bytes " + start + "-" + end + "/"
+                                                                                    + content.length())
+                                                                .withBody(content.substring(start, end + 1))));
+        }
+    }
+
+    /**
+     * Options that verify the content against a manifest of pieces of the given size, computed from {@link #CONTENT}.
+     * 
+     * @param pieceSize
+     * @return
+     * @throws Exception
+     */
+    protected ParallelHttpGetOptions pieceManifestOptions(int pieceSize) throws Exception {
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setPieceManifest(PieceManifest.compute(new ByteArrayInputStream(CONTENT.getBytes()),
+                                                       PieceManifest.DEFAULT_ALGORITHM, pieceSize));
+        return options;
+    }
+
 }
@@ -0,0 +1,83 @@
+package org.oxcart.streams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Measures how fast data can be checksummed with SHA-256 and written to a file, with the checksum calculated inline
+ * on the reading thread versus pipelined onto a dedicated digest thread. The source is in memory, so the run is bound
+ * by hashing and writing alone.
+ * </p>
+ *
+ * <p>
+ * Run with <code>gradle checksumBenchmark</code>.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class ChecksumBenchmark {
+    private static final int MB = 1024 * 1024;
+    private static final long BYTES_PER_RUN = 512L * MB;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("ChecksumBenchmark", ".tmp");
+        try {
+            // Warm up
+            run(file, false);
+            run(file, true);
+
+            report("no checksum", runWithoutChecksum(file));
+            report("SHA-256 inline", run(file, false));
+            report("SHA-256 pipelined", run(file, true));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static long[] run(File file, boolean pipelined) throws Exception {
+        // The expected checksum doesn't matter, we only care that the digest is complete
+        ChecksummingInputStream stream = new ChecksummingInputStream(new StreamBenchmark.RepeatingInputStream(BYTES_PER_RUN),
+                                                                     "SHA-256", new byte[0], pipelined);
+        try {
+            long start = System.nanoTime();
+            long total = copy(stream, file);
+            stream.isValid();
+            return new long[] { total, System.nanoTime() - start };
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static long[] runWithoutChecksum(File file) throws Exception {
+        long start = System.nanoTime();
+        long total = copy(new StreamBenchmark.RepeatingInputStream(BYTES_PER_RUN), file);
+        return new long[] { total, System.nanoTime() - start };
+    }
+
+    private static long copy(InputStream in, File file) throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
+            }
+            return total;
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void report(String name, long[] result) {
+        double megabytes = (double) result[0] / MB;
+        double wallSeconds = result[1] / 1e9;
+        System.out.println(String.format("%1$-30s %2$8.1f MB/s", name, megabytes / wallSeconds));
+    }
+}
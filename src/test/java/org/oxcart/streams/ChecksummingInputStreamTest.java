@@ -3,12 +3,18 @@ package org.oxcart.streams;
 import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
 
 import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
 /**
@@ -59,6 +65,102 @@ public class ChecksummingInputStreamTest extends StreamTest {
         }
     }
 
+    @Test
+    public void testSHA256BulkReadAndSkip() throws Exception {
+        MessageDigest digester = MessageDigest.getInstance("SHA-256");
+        byte[] expectedDigest = digester.digest(bunchOfBytes);
+        ChecksummingInputStream stream = new ChecksummingInputStream(new ByteArrayInputStream(bunchOfBytes),
+                                                                     "SHA-256",
+                                                                     expectedDigest);
+        try {
+            assertEquals("Should skip the requested number of bytes", 1000, stream.skip(1000));
+            byte[] buffer = new byte[4096];
+            while (stream.read(buffer, 0, buffer.length) != -1) {
+                // Loop through the stream
+            }
+            assertTrue("Skipped bytes should still be included in the checksum", stream.isValid());
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testPipelinedSHA256() throws Exception {
+        MessageDigest digester = MessageDigest.getInstance("SHA-256");
+        byte[] expectedDigest = digester.digest(bunchOfBytes);
+        ChecksummingInputStream stream = new ChecksummingInputStream(new ByteArrayInputStream(bunchOfBytes),
+                                                                     "SHA-256",
+                                                                     expectedDigest,
+                                                                     true);
+        try {
+            assertEquals("Single byte reads should work too", bunchOfBytes[0] & 0xFF, stream.read());
+            byte[] buffer = new byte[4096];
+            while (stream.read(buffer, 0, buffer.length) != -1) {
+                // Loop through the stream
+            }
+            assertTrue("Stream should be valid once the pipeline has caught up", stream.isValid());
+        } finally {
+            stream.close();
+        }
+
+        expectedDigest[0] += 1;
+        stream = new ChecksummingInputStream(new ByteArrayInputStream(bunchOfBytes), "SHA-256", expectedDigest, true);
+        try {
+            IOUtils.copy(stream, new ByteArrayOutputStream());
+            assertFalse("Stream should not be valid", stream.isValid());
+            String actualDigest = Hex.encodeHexString(digester.digest(bunchOfBytes));
+            assertTrue("Error should contain actual digest as hex-encoded",
+                       stream.getValidationErrors().get(0).contains(actualDigest));
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testSeveralDigestsInOnePass() throws Exception {
+        byte[] expectedSHA256 = MessageDigest.getInstance("SHA-256").digest(bunchOfBytes);
+        Map<String, byte[]> expectedChecksums = new LinkedHashMap<String, byte[]>();
+        expectedChecksums.put("SHA-256", expectedSHA256);
+        // Only calculated, not validated
+        expectedChecksums.put("MD5", null);
+        expectedChecksums.put(Digests.CRC32, null);
+        ChecksummingInputStream stream = new ChecksummingInputStream(new ByteArrayInputStream(bunchOfBytes),
+                                                                     expectedChecksums,
+                                                                     true);
+        try {
+            IOUtils.copy(stream, new ByteArrayOutputStream());
+            assertTrue("Stream should be valid", stream.isValid());
+            Map<String, byte[]> checksums = stream.getChecksums();
+            assertArrayEquals("SHA-256 should have been calculated", expectedSHA256, checksums.get("SHA-256"));
+            assertArrayEquals("MD5 should have been calculated", MessageDigest.getInstance("MD5").digest(bunchOfBytes),
+                              checksums.get("MD5"));
+            CRC32 crc = new CRC32();
+            crc.update(bunchOfBytes);
+            assertEquals("CRC32 should have been calculated", crc.getValue(),
+                         new BigInteger(1, checksums.get(Digests.CRC32)).longValue());
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testCRC32CFailure() throws Exception {
+        MessageDigest digester = Digests.getInstance(Digests.CRC32C);
+        byte[] incorrectDigest = digester.digest(bunchOfBytes);
+        incorrectDigest[0] += 1;
+        ChecksummingInputStream stream = new ChecksummingInputStream(new ByteArrayInputStream(bunchOfBytes),
+                                                                     Digests.CRC32C,
+                                                                     incorrectDigest);
+        try {
+            IOUtils.copy(stream, new ByteArrayOutputStream());
+            assertFalse("Stream should not be valid", stream.isValid());
+            assertTrue("Error should name the algorithm",
+                       stream.getValidationErrors().get(0).startsWith(Digests.CRC32C));
+        } finally {
+            stream.close();
+        }
+    }
+
     @Test
     public void testUnknownAlgorithm() {
         try {
@@ -0,0 +1,131 @@
+package org.oxcart.streams;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author ox.to.a.cart /at/ gmail.com
+ * 
+ */
+public class ChunkTest extends StreamTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testOverlappingWritesFromHedgedFetches() throws Exception {
+        MockChunkSink sink = new MockChunkSink();
+        Chunk chunk = new Chunk(0, 100, 120, sink);
+        MirrorStats mirror = new MirrorStats();
+        assertEquals("First fetch should supply new data", 10, chunk.write(0, mirror, 100, bunchOfBytes, 0, 10));
+        assertEquals("Hedge starting behind should only supply what is new", 5,
+                     chunk.write(0, mirror, 105, bunchOfBytes, 5, 10));
+        assertEquals("Data already received should be dropped", 0, chunk.write(0, mirror, 110, bunchOfBytes, 10, 5));
+        assertEquals("Rest of the data should be taken", 5, chunk.write(0, mirror, 115, bunchOfBytes, 15, 5));
+        assertTrue("Chunk should be complete", chunk.isComplete());
+        chunk.finish();
+        chunk.finish();
+        assertEquals("Sink should be finished exactly once", 1, sink.finishes);
+        byte[] expected = new byte[20];
+        System.arraycopy(bunchOfBytes, 0, expected, 0, 20);
+        assertArrayEquals("Sink should get each byte once and in order", expected, sink.data.toByteArray());
+    }
+
+    @Test
+    public void testWriteBeyondReceivedDataFails() throws Exception {
+        Chunk chunk = new Chunk(0, 0, 20, new MockChunkSink());
+        MirrorStats mirror = new MirrorStats();
+        try {
+            chunk.write(0, mirror, 5, bunchOfBytes, 0, 5);
+            fail("Leaving a gap in the data should fail");
+        } catch (IOException ioe) {
+            assertEquals("Nothing should have been received", 0, chunk.getReceived());
+        }
+    }
+
+    @Test
+    public void testStallDetection() throws Exception {
+        Chunk chunk = new Chunk(0, 0, 50000, new MockChunkSink());
+        MirrorStats mirror = new MirrorStats();
+        chunk.resetLowSpeedWindow(0);
+        chunk.write(0, mirror, 0, bunchOfBytes, 0, 500);
+        assertFalse("Chunk shouldn't stall before a whole window has passed",
+                    chunk.isStalled(SECOND / 2, 1000, SECOND));
+        assertTrue("Chunk should stall if it got less than the limit over a whole window",
+                   chunk.isStalled(SECOND, 1000, SECOND));
+        chunk.write(0, mirror, 500, bunchOfBytes, 500, 1000);
+        assertFalse("Chunk should no longer be stalled once it gets a window's worth of data",
+                    chunk.isStalled(2 * SECOND, 1000, SECOND));
+        assertFalse("Receiving data should start a new window", chunk.isStalled(2 * SECOND + SECOND / 2, 1000, SECOND));
+        assertTrue("Chunk should stall again a whole window later", chunk.isStalled(3 * SECOND, 1000, SECOND));
+    }
+
+    @Test
+    public void testFailedVerificationStartsOver() throws Exception {
+        MockChunkSink sink = new MockChunkSink();
+        Chunk chunk = new Chunk(0, 0, 10, sink);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] expectedHash = MessageDigest.getInstance("SHA-256").digest(Arrays.copyOf(bunchOfBytes, 10));
+        chunk.expectHash(digest, expectedHash);
+        MirrorStats bad = new MirrorStats();
+        MirrorStats good = new MirrorStats();
+
+        byte[] corrupted = Arrays.copyOf(bunchOfBytes, 10);
+        corrupted[7] += 1;
+        chunk.write(0, bad, 0, corrupted, 0, 10);
+        assertEquals("Mirror that supplied bad data should be blamed", Collections.singleton(bad),
+                     chunk.verifyAndFinish());
+        assertFalse("Chunk shouldn't be done", chunk.isDone());
+        assertEquals("Bad data should be thrown away", 0, chunk.getReceived());
+        assertEquals("Sink should have been reset", 0, sink.data.size());
+        assertTrue("Mirror that supplied bad data should be excluded", chunk.isExcluded(bad));
+        assertFalse("Other mirror shouldn't be excluded", chunk.isExcluded(good));
+
+        assertEquals("Data for the earlier attempt should be ignored", 0, chunk.write(0, bad, 0, corrupted, 0, 10));
+        assertEquals("Data for the new attempt should be taken", 10,
+                     chunk.write(chunk.getAttempt(), good, 0, bunchOfBytes, 0, 10));
+        assertTrue("Good data should pass", chunk.verifyAndFinish().isEmpty());
+        assertTrue("Chunk should be done", chunk.isDone());
+        assertEquals("Sink should be finished", 1, sink.finishes);
+    }
+
+    private static class MockChunkSink implements IChunkSink {
+        private ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private int finishes = 0;
+
+        @Override
+        public void write(long position, byte[] b, int off, int len) throws IOException {
+            data.write(b, off, len);
+        }
+
+        @Override
+        public boolean isBackedUp() {
+            return false;
+        }
+
+        @Override
+        public boolean isNeededNow() {
+            return false;
+        }
+
+        @Override
+        public void finish() {
+            finishes += 1;
+        }
+
+        @Override
+        public void reset() {
+            data.reset();
+        }
+
+        @Override
+        public void fail(IOException ioe) {
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.oxcart.streams;
+
+import static org.junit.Assert.*;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class DigestPipelineTest extends StreamTest {
+
+    @Test
+    public void testDigestMatchesInlineDigest() throws Exception {
+        // A small ring, so that it wraps around many times and the producer has to wait for the digest thread
+        DigestPipeline pipeline = new DigestPipeline(Arrays.asList(MessageDigest.getInstance("SHA-256"),
+                                                                  MessageDigest.getInstance("MD5")), 4, 100);
+        int position = 0;
+        while (position < bunchOfBytes.length) {
+            if (position % 1000 < 10) {
+                pipeline.update(bunchOfBytes[position]);
+                position += 1;
+            } else {
+                int length = Math.min(333, bunchOfBytes.length - position);
+                pipeline.update(bunchOfBytes, position, length);
+                position += length;
+            }
+        }
+        byte[] expectedSha256 = MessageDigest.getInstance("SHA-256").digest(bunchOfBytes);
+        byte[] expectedMd5 = MessageDigest.getInstance("MD5").digest(bunchOfBytes);
+        assertArrayEquals("Pipelined digest should match digesting inline", expectedSha256, pipeline.digest().get(0));
+        assertArrayEquals("Every digest should see all the data", expectedMd5, pipeline.digest().get(1));
+    }
+
+    @Test
+    public void testEmptyDigest() throws Exception {
+        DigestPipeline pipeline = new DigestPipeline(Arrays.asList(MessageDigest.getInstance("SHA-256")));
+        assertArrayEquals("Digest of nothing should match", MessageDigest.getInstance("SHA-256").digest(),
+                          pipeline.digest().get(0));
+    }
+
+    @Test
+    public void testCloseStopsDigestThread() throws Exception {
+        DigestPipeline pipeline = new DigestPipeline(Arrays.asList(MessageDigest.getInstance("SHA-256")));
+        pipeline.update(bunchOfBytes, 0, 1000);
+        pipeline.close();
+        assertNull("Closed pipeline should not produce a digest", pipeline.digest());
+    }
+}
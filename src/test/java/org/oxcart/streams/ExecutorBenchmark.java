@@ -0,0 +1,97 @@
+package org.oxcart.streams;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Compares fetching 8, 64 and 512 ranges at once with a {@link ParallelHttpGetInputStream} running on a fixed pool of
+ * platform threads (as pget does by default), on a thread per task limited by a semaphore and, where the JVM has them,
+ * on virtual threads limited by a semaphore. The ranges are served by a local {@link MockMirrorServer} that waits
+ * before sending each response, to stand in for network latency.
+ * </p>
+ *
+ * <p>
+ * Run with <code>gradle executorBenchmark</code>. The peak thread count is for the whole JVM, including the mock
+ * server's thread per connection; virtual threads aren't counted.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class ExecutorBenchmark {
+    private static final int RANGE_SIZE = 64 * 1024;
+    private static final long LATENCY_MILLIS = 100;
+    private static final int[] RANGE_COUNTS = new int[] { 8, 64, 512 };
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        if (!VirtualThreads.isAvailable()) {
+            System.out.println(String.format("Virtual threads are not available on Java %1$s, skipping them",
+                                             System.getProperty("java.version")));
+        }
+        for (int ranges : RANGE_COUNTS) {
+            byte[] content = new byte[ranges * RANGE_SIZE];
+            MockMirrorServer server = new MockMirrorServer(content);
+            server.stallAfter(0, LATENCY_MILLIS);
+            try {
+                // Warm up
+                run(server, Executors.newFixedThreadPool(ranges), ranges);
+
+                report("platform thread pool", ranges, run(server, Executors.newFixedThreadPool(ranges), ranges));
+                report("thread per task + semaphore", ranges,
+                       run(server, new ThreadPerTaskExecutorService(Executors.defaultThreadFactory(), ranges), ranges));
+                if (VirtualThreads.isAvailable()) {
+                    report("virtual threads + semaphore", ranges,
+                           run(server, VirtualThreads.newExecutor(ranges), ranges));
+                }
+            } finally {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Fetch the server's content a few times with the given executor, which is shut down afterwards.
+     *
+     * @return the best time in nanoseconds, followed by the peak number of live threads
+     */
+    private static long[] run(MockMirrorServer server, ExecutorService executorService, int ranges) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setSingleRequestThreshold(0);
+        options.setChunkSize(RANGE_SIZE);
+        options.setConnectionsPerMirror(ranges);
+        options.setHedging(false);
+        long best = Long.MAX_VALUE;
+        try {
+            for (int i = 0; i < RUNS; i++) {
+                long start = System.nanoTime();
+                InputStream stream = new ParallelHttpGetInputStream(executorService, options, server.getUrl());
+                try {
+                    byte[] buffer = new byte[RANGE_SIZE];
+                    while (stream.read(buffer) != -1) {
+                        // Just consume
+                    }
+                } finally {
+                    stream.close();
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+        } finally {
+            executorService.shutdownNow();
+            executorService.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        return new long[] { best, threads.getPeakThreadCount() };
+    }
+
+    private static void report(String name, int ranges, long[] result) {
+        System.out.println(String.format("%1$4s ranges, %2$-30s %3$8.1f ms %4$6s peak threads", ranges, name,
+                                         result[0] / 1e6, result[1]));
+    }
+}
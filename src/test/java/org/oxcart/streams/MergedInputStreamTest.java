@@ -3,7 +3,10 @@ package org.oxcart.streams;
 import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 import org.junit.Test;
@@ -38,6 +41,54 @@ public class MergedInputStreamTest extends StreamTest {
         inputStream.close();
     }
 
+    @Test
+    public void testBulkReadAndSkip() throws Exception {
+        int splitPoint = bunchOfBytes.length / 2;
+        MergedInputStream inputStream = new MergedInputStream(
+                                                              new ByteArrayInputStream(Arrays.copyOfRange(bunchOfBytes,
+                                                                                                          0,
+                                                                                                          splitPoint)),
+                                                              new ByteArrayInputStream(Arrays.copyOfRange(bunchOfBytes,
+                                                                                                          splitPoint,
+                                                                                                          bunchOfBytes.length)));
+        // Skip past the end of the first segment and into the second
+        long skipped = 0;
+        while (skipped < splitPoint + 10) {
+            skipped += inputStream.skip(splitPoint + 10 - skipped);
+        }
+        assertEquals("Should have skipped exactly the requested number of bytes", splitPoint + 10, skipped);
+
+        byte[] actualResult = toByteArray(inputStream);
+        assertArrayEquals("Bulk read after skip should return the rest of the original bytes",
+                          Arrays.copyOfRange(bunchOfBytes, splitPoint + 10, bunchOfBytes.length), actualResult);
+        assertEquals("Reported bytes should include skipped bytes", bunchOfBytes.length, inputStream.getBytesRead());
+        assertEquals("Nothing should be available at the end", 0, inputStream.available());
+        assertEquals("Skipping at the end should skip nothing", 0, inputStream.skip(10));
+        inputStream.close();
+    }
+
+    @Test
+    public void testReadToChannel() throws Exception {
+        int splitPoint = bunchOfBytes.length / 2;
+        ReadAheadInputStream fedStream = new ReadAheadInputStream(new MemoryBudget(bunchOfBytes.length));
+        fedStream.write(bunchOfBytes, 0, splitPoint);
+        fedStream.finishBuffering();
+        MergedInputStream inputStream = new MergedInputStream(fedStream,
+                                                              new ByteArrayInputStream(Arrays.copyOfRange(bunchOfBytes,
+                                                                                                          splitPoint,
+                                                                                                          bunchOfBytes.length)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (inputStream.readTo(channel) != -1) {
+            // Keep going
+        }
+        assertArrayEquals("Streams that can write to channels and ones that can't should both be merged",
+                          bunchOfBytes, out.toByteArray());
+        assertEquals("Reported bytes should include everything written", bunchOfBytes.length,
+                     inputStream.getBytesRead());
+        inputStream.close();
+    }
+
     @Test
     public void testClose() throws Exception {
         MockInputStream[] mockStreams = new MockInputStream[] {
@@ -0,0 +1,79 @@
+package org.oxcart.streams;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class MetricsTest {
+    @Test
+    public void testCounterAddsUpAcrossThreads() throws Exception {
+        final Metrics.Counter counter = new Metrics.Counter();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        counter.add(3);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("No additions should be lost", 8 * 100000 * 3, counter.get());
+    }
+
+    @Test
+    public void testHistogram() throws Exception {
+        Metrics.Histogram histogram = new Metrics.Histogram(new double[] { 0.1, 1 });
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(500));
+        histogram.record(TimeUnit.SECONDS.toNanos(5));
+        assertArrayEquals("Durations should be counted in the first bucket they fit in", new long[] { 2, 1, 1 },
+                          histogram.getCounts());
+        assertEquals(4, histogram.getCount());
+        assertEquals(5.65, histogram.getSumSeconds(), 0.000001);
+        assertEquals(5.65 / 4, histogram.getMeanSeconds(), 0.000001);
+    }
+
+    @Test
+    public void testText() throws Exception {
+        Metrics metrics = new Metrics();
+        MirrorMetrics mirror = metrics.getMirror("http://mirror/\"quoted\"");
+        assertSame("Mirrors with the same url should share metrics", mirror,
+                   metrics.getMirror("http://mirror/\"quoted\""));
+        mirror.bytesFetched(1000);
+        mirror.responseStarted(TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.addMemoryBudget(new MemoryBudget(4096));
+        StringWriter writer = new StringWriter();
+        metrics.writeText(writer);
+        String text = writer.toString();
+        String label = "url=\"http://mirror/\\\"quoted\\\"\"";
+        assertTrue("Counter should be written with its help and type",
+                   text.contains("# HELP pget_mirror_bytes_fetched_total Bytes fetched from the mirror\n"
+                           + "# TYPE pget_mirror_bytes_fetched_total counter\n"
+                           + "pget_mirror_bytes_fetched_total{" + label + "} 1000\n"));
+        assertTrue("Histogram buckets should be cumulative",
+                   text.contains("pget_mirror_time_to_first_byte_seconds_bucket{" + label + ",le=\"0.01\"} 0\n"
+                           + "pget_mirror_time_to_first_byte_seconds_bucket{" + label + ",le=\"0.025\"} 1\n"));
+        assertTrue("Histogram should end with everything",
+                   text.contains("pget_mirror_time_to_first_byte_seconds_bucket{" + label + ",le=\"+Inf\"} 1\n"
+                           + "pget_mirror_time_to_first_byte_seconds_sum{" + label + "} 0.02\n"
+                           + "pget_mirror_time_to_first_byte_seconds_count{" + label + "} 1\n"));
+        assertTrue("Buffer limit should be written", text.contains("pget_buffer_limit_bytes 4096\n"));
+    }
+}
@@ -0,0 +1,330 @@
+package org.oxcart.streams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.oxcart.pget.PGet;
+
+/**
+ * <p>
+ * Serves a piece of content from several {@link MockMirrorServer}s on loopback, each of which can be given its own
+ * bandwidth, latency and faults, and downloads it from all of them with a {@link ParallelHttpGetInputStream} or with
+ * {@link PGet}. Each download is checked against the content and reports how long it took, how much of the data each
+ * mirror sent and how many bytes were sent but not needed, like the rest of a range that failed partway through, the
+ * losing side of a hedged fetch or a whole file sent by a mirror that ignores range requests.
+ * </p>
+ *
+ * <p>
+ * Run with <code>gradle mirrorSimulator</code> to download from a few typical mixes of mirrors. Bytes sent are counted
+ * as the mirrors write them, so data that was in flight when a download gave up on a response still counts as sent.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class MirrorSimulator {
+    private static final int KB = 1024;
+    private static final int MB = 1024 * 1024;
+    private static final int CONTENT_LENGTH = 8 * MB;
+    // How long to wait for mirrors to stop sending after a download finishes
+    private static final long SETTLE_MILLIS = 2000;
+
+    private final byte[] content;
+    private final List<MockMirrorServer> mirrors = new ArrayList<MockMirrorServer>();
+
+    public MirrorSimulator(int contentLength, int numberOfMirrors) throws IOException {
+        this.content = new byte[contentLength];
+        for (int i = 0; i < contentLength; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        try {
+            for (int i = 0; i < numberOfMirrors; i++) {
+                mirrors.add(new MockMirrorServer(content));
+            }
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public MockMirrorServer getMirror(int index) {
+        return mirrors.get(index);
+    }
+
+    public String[] getUrls() {
+        String[] urls = new String[mirrors.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = mirrors.get(i).getUrl();
+        }
+        return urls;
+    }
+
+    /**
+     * Download the content from all mirrors with a {@link ParallelHttpGetInputStream}.
+     *
+     * @param executorService
+     * @param options
+     * @return
+     * @throws IOException
+     *             if the download fails or doesn't match the content
+     */
+    public Result download(ExecutorService executorService, ParallelHttpGetOptions options) throws IOException {
+        long[] bytesSentBefore = getBytesSent();
+        long start = System.nanoTime();
+        InputStream stream = new ParallelHttpGetInputStream(executorService, options, getUrls());
+        byte[] downloaded;
+        try {
+            downloaded = IOUtils.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+        long wallNanos = System.nanoTime() - start;
+        if (!Arrays.equals(content, downloaded)) {
+            throw new IOException("Downloaded data doesn't match the content");
+        }
+        return new Result(wallNanos, bytesSentSince(bytesSentBefore));
+    }
+
+    /**
+     * Download the content from all mirrors with {@link PGet} to a temporary file.
+     *
+     * @param args
+     *            options to give pget besides the outfile and the urls
+     * @return
+     * @throws IOException
+     *             if the download fails or doesn't match the content
+     */
+    public Result fetch(String... args) throws IOException {
+        File outFile = File.createTempFile("MirrorSimulator", ".tmp");
+        try {
+            List<String> pgetArgs = new ArrayList<String>(Arrays.asList(args));
+            pgetArgs.add("-o");
+            pgetArgs.add(outFile.getPath());
+            pgetArgs.addAll(Arrays.asList(getUrls()));
+            long[] bytesSentBefore = getBytesSent();
+            long start = System.nanoTime();
+            int result = new PGet(pgetArgs.toArray(new String[pgetArgs.size()])).fetch();
+            long wallNanos = System.nanoTime() - start;
+            if (result != 0) {
+                throw new IOException(String.format("pget failed with %1$s", result));
+            }
+            if (!Arrays.equals(content, FileUtils.readFileToByteArray(outFile))) {
+                throw new IOException("Downloaded file doesn't match the content");
+            }
+            return new Result(wallNanos, bytesSentSince(bytesSentBefore));
+        } finally {
+            outFile.delete();
+        }
+    }
+
+    public void close() throws IOException {
+        for (MockMirrorServer mirror : mirrors) {
+            mirror.close();
+        }
+    }
+
+    private long[] getBytesSent() {
+        long[] bytesSent = new long[mirrors.size()];
+        for (int i = 0; i < bytesSent.length; i++) {
+            bytesSent[i] = mirrors.get(i).getBytesSent();
+        }
+        return bytesSent;
+    }
+
+    /**
+     * Returns the bytes sent by each mirror since the given counts were taken, once the mirrors have stopped sending
+     * (or given up waiting for that).
+     */
+    private long[] bytesSentSince(long[] before) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+        for (MockMirrorServer mirror : mirrors) {
+            while (mirror.getConcurrentRequests() > 0 && System.nanoTime() < deadline) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        long[] bytesSent = getBytesSent();
+        for (int i = 0; i < bytesSent.length; i++) {
+            bytesSent[i] -= before[i];
+        }
+        return bytesSent;
+    }
+
+    /**
+     * The outcome of a download.
+     */
+    public class Result {
+        private final long wallNanos;
+        private final long[] bytesSent;
+
+        private Result(long wallNanos, long[] bytesSent) {
+            this.wallNanos = wallNanos;
+            this.bytesSent = bytesSent;
+        }
+
+        public long getWallMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(wallNanos);
+        }
+
+        public long getBytesSent(int mirror) {
+            return bytesSent[mirror];
+        }
+
+        /**
+         * Returns the fraction of all bytes sent that were sent by the given mirror.
+         *
+         * @param mirror
+         * @return
+         */
+        public double getShare(int mirror) {
+            long total = getTotalBytesSent();
+            return total == 0 ? 0 : (double) bytesSent[mirror] / total;
+        }
+
+        public long getTotalBytesSent() {
+            long total = 0;
+            for (long sent : bytesSent) {
+                total += sent;
+            }
+            return total;
+        }
+
+        /**
+         * Returns the number of bytes sent beyond the length of the content.
+         *
+         * @return
+         */
+        public long getBytesWasted() {
+            return Math.max(0, getTotalBytesSent() - content.length);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder shares = new StringBuilder();
+            for (int i = 0; i < bytesSent.length; i++) {
+                shares.append(String.format(" %1$5.1f%%", getShare(i) * 100));
+            }
+            return String.format("%1$6s ms, %2$6s KB wasted, shares%3$s", getWallMillis(), getBytesWasted() / KB,
+                                 shares);
+        }
+    }
+
+    /**
+     * A mix of mirrors to download from.
+     */
+    private static abstract class Scenario {
+        private final String name;
+        private final int numberOfMirrors;
+
+        Scenario(String name, int numberOfMirrors) {
+            this.name = name;
+            this.numberOfMirrors = numberOfMirrors;
+        }
+
+        abstract void configure(MirrorSimulator simulator);
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Scenario> scenarios = new ArrayList<Scenario>();
+        scenarios.add(new Scenario("4 equal mirrors", 4) {
+            @Override
+            void configure(MirrorSimulator simulator) {
+                for (int i = 0; i < 4; i++) {
+                    simulator.getMirror(i).setBytesPerSecond(2 * MB);
+                    simulator.getMirror(i).setLatency(20);
+                }
+            }
+        });
+        scenarios.add(new Scenario("bandwidth and latency vary", 4) {
+            @Override
+            void configure(MirrorSimulator simulator) {
+                long[] bytesPerSecond = new long[] { 4 * MB, 2 * MB, 512 * KB, 128 * KB };
+                long[] latencies = new long[] { 5, 20, 80, 200 };
+                for (int i = 0; i < 4; i++) {
+                    simulator.getMirror(i).setBytesPerSecond(bytesPerSecond[i]);
+                    simulator.getMirror(i).setLatency(latencies[i]);
+                }
+            }
+        });
+        scenarios.add(new Scenario("one mirror stalls", 3) {
+            @Override
+            void configure(MirrorSimulator simulator) {
+                for (int i = 0; i < 3; i++) {
+                    simulator.getMirror(i).setBytesPerSecond(2 * MB);
+                }
+                simulator.getMirror(2).stallAfter(64 * KB, 15000);
+            }
+        });
+        scenarios.add(new Scenario("one mirror resets", 3) {
+            @Override
+            void configure(MirrorSimulator simulator) {
+                for (int i = 0; i < 3; i++) {
+                    simulator.getMirror(i).setBytesPerSecond(2 * MB);
+                }
+                simulator.getMirror(2).dropConnectionsAfter(100 * KB, 20);
+            }
+        });
+        scenarios.add(new Scenario("one mirror fails", 3) {
+            @Override
+            void configure(MirrorSimulator simulator) {
+                for (int i = 0; i < 3; i++) {
+                    simulator.getMirror(i).setBytesPerSecond(2 * MB);
+                }
+                simulator.getMirror(2).failRequests(503, 20);
+            }
+        });
+        scenarios.add(new Scenario("one mirror ignores Range", 3) {
+            @Override
+            void configure(MirrorSimulator simulator) {
+                for (int i = 0; i < 3; i++) {
+                    simulator.getMirror(i).setBytesPerSecond(2 * MB);
+                }
+                simulator.getMirror(2).setIgnoresRange(true);
+            }
+        });
+
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            for (Scenario scenario : scenarios) {
+                MirrorSimulator simulator = new MirrorSimulator(CONTENT_LENGTH, scenario.numberOfMirrors);
+                try {
+                    scenario.configure(simulator);
+                    report(scenario, "ParallelHttpGetInputStream",
+                           simulator.download(executorService, new ParallelHttpGetOptions()));
+                } finally {
+                    simulator.close();
+                }
+                simulator = new MirrorSimulator(CONTENT_LENGTH, scenario.numberOfMirrors);
+                try {
+                    scenario.configure(simulator);
+                    report(scenario, "pget", simulator.fetch());
+                } finally {
+                    simulator.close();
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static void report(Scenario scenario, String client, Result result) {
+        System.out.println(String.format("%1$-28s %2$-26s %3$s", scenario.name, client, result));
+    }
+}
@@ -0,0 +1,87 @@
+package org.oxcart.streams;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class MirrorStatsTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testIdleTimeDoesNotCountTowardsThroughput() {
+        MirrorStats stats = new MirrorStats();
+        stats.fetchStarted(SECOND / 10, 0);
+        stats.bytesFetched(1000, SECOND);
+        stats.fetchFinished(SECOND);
+        assertEquals("First sample should be taken as is", 1000, stats.getThroughput(), 0.01);
+        assertEquals("Time to first byte should be in seconds", 0.1, stats.getTimeToFirstByte(), 0.0001);
+
+        // Idle for a long time, then another fetch at the same speed
+        stats.fetchStarted(SECOND / 10, 100 * SECOND);
+        stats.bytesFetched(1000, 101 * SECOND);
+        stats.fetchFinished(101 * SECOND);
+        assertEquals("Idle time should not lower the throughput", 1000, stats.getThroughput(), 0.01);
+        assertFalse("No fetches should be active", stats.isFetching());
+        assertEquals("All bytes should be counted", 2000, stats.getBytesFetched());
+    }
+
+    @Test
+    public void testEstimatesFollowChanges() {
+        MirrorStats stats = new MirrorStats();
+        stats.fetchStarted(0, 0);
+        stats.bytesFetched(1000, SECOND);
+        stats.bytesFetched(3000, 2 * SECOND);
+        double expected = MirrorStats.SMOOTHING * 3000 + (1 - MirrorStats.SMOOTHING) * 1000;
+        assertEquals("New samples should be blended in", expected, stats.getThroughput(), 0.01);
+        assertEquals("Estimate should be time to first byte plus transfer time", 10000 / expected,
+                     stats.estimateSeconds(10000), 0.0001);
+    }
+
+    @Test
+    public void testConnectionsShareThroughput() {
+        MirrorStats stats = new MirrorStats();
+        stats.fetchStarted(0, 0);
+        stats.fetchStarted(0, 0);
+        stats.bytesFetched(2000, SECOND);
+        assertEquals("Throughput should be that of the whole mirror", 2000, stats.getThroughput(), 0.01);
+        assertEquals("Both connections should be counted", 2, stats.getConnections(), 0.01);
+        assertEquals("Each connection should get its share of the throughput", 1000,
+                     stats.getThroughputPerConnection(), 0.01);
+        assertEquals("Estimate should be for a single connection", 1.0, stats.estimateSeconds(1000), 0.0001);
+    }
+
+    @Test
+    public void testSlowMirrorLeavesChunksToFasterOnes() {
+        MirrorStats slow = statsWithThroughput(100);
+        MirrorStats fast = statsWithThroughput(10000);
+        fast.fetchStarted(0, 2 * SECOND);
+
+        assertTrue("Slow mirror should leave the last few chunks to the fast one",
+                   MirrorStats.shouldLeaveToFasterMirrors(slow, Arrays.asList(slow, fast), 1000, 2));
+        assertFalse("Slow mirror should still help when there are lots of chunks",
+                    MirrorStats.shouldLeaveToFasterMirrors(slow, Arrays.asList(slow, fast), 1000, 1000));
+        assertFalse("Fast mirror should never leave chunks to the slow one",
+                    MirrorStats.shouldLeaveToFasterMirrors(fast, Arrays.asList(slow, fast), 1000, 1));
+        assertFalse("Mirror with unknown speed should always take chunks",
+                    MirrorStats.shouldLeaveToFasterMirrors(new MirrorStats(), Arrays.asList(slow, fast), 1000, 1));
+
+        fast.fetchFinished(3 * SECOND);
+        assertFalse("Idle mirrors should not be counted on to fetch chunks",
+                    MirrorStats.shouldLeaveToFasterMirrors(slow, Arrays.asList(slow, fast), 1000, 2));
+    }
+
+    private MirrorStats statsWithThroughput(long bytesPerSecond) {
+        MirrorStats stats = new MirrorStats();
+        stats.fetchStarted(0, 0);
+        stats.bytesFetched(bytesPerSecond, SECOND);
+        stats.fetchFinished(SECOND);
+        return stats;
+    }
+}
@@ -0,0 +1,343 @@
+package org.oxcart.streams;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal HTTP server serving a single piece of content with HEAD and range GET requests, for tests that need faults
+ * WireMock can't produce, like a connection dropping partway through a response body. It can also stand in for a
+ * mirror with limited bandwidth, high latency, failing requests or no support for range requests (see
+ * {@link MirrorSimulator}). Faults can be changed while requests are being served.
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class MockMirrorServer {
+    private static final Pattern RANGE = Pattern.compile("Range: bytes=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE);
+    // Bodies are sent in slices this big, so that bandwidth is shared fairly between connections
+    private static final int SLICE_SIZE = 4 * 1024;
+
+    private final byte[] content;
+    private final ServerSocket serverSocket;
+    private final List<String> requestedRanges = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger remainingFailures = new AtomicInteger(0);
+    private final AtomicInteger concurrentRequests = new AtomicInteger(0);
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger(0);
+    private final AtomicInteger remainingErrors = new AtomicInteger(0);
+    private final AtomicLong bytesSent = new AtomicLong(0);
+    private final AtomicInteger connections = new AtomicInteger(0);
+    private volatile int bytesBeforeFailure;
+    private volatile int bytesBeforeStall = Integer.MAX_VALUE;
+    private volatile long stallMillis;
+    private volatile int errorStatusCode;
+    private volatile long bytesPerSecond;
+    private volatile long latencyMillis;
+    private volatile boolean ignoresRange;
+    private volatile boolean keepAlive;
+    // Guarded by this
+    private long nextSliceNanos;
+
+    public MockMirrorServer(byte[] content) throws IOException {
+        this.content = content;
+        this.serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        Thread handler = new Thread() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        };
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException ioe) {
+                        // Closed
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + serverSocket.getLocalPort() + "/content";
+    }
+
+    /**
+     * Make the next range GETs drop the connection after sending the given number of bytes of the body.
+     *
+     * @param bytes
+     * @param times
+     *            number of requests that should fail this way
+     */
+    public void dropConnectionsAfter(int bytes, int times) {
+        this.bytesBeforeFailure = bytes;
+        this.remainingFailures.set(times);
+    }
+
+    /**
+     * Make all range GETs pause for the given time after sending the given number of bytes of the body.
+     *
+     * @param bytes
+     * @param millis
+     */
+    public void stallAfter(int bytes, long millis) {
+        this.bytesBeforeStall = bytes;
+        this.stallMillis = millis;
+    }
+
+    /**
+     * Make the next GETs fail with the given status code, before sending any of the body.
+     *
+     * @param statusCode
+     * @param times
+     *            number of requests that should fail this way
+     */
+    public void failRequests(int statusCode, int times) {
+        this.errorStatusCode = statusCode;
+        this.remainingErrors.set(times);
+    }
+
+    /**
+     * Limit the rate at which the bodies of all responses together are sent, like the bandwidth of a mirror.
+     *
+     * @param bytesPerSecond
+     *            the limit, or 0 for none
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Wait for the given time before responding to each request, like the round trip to a distant mirror.
+     *
+     * @param millis
+     */
+    public void setLatency(long millis) {
+        this.latencyMillis = millis;
+    }
+
+    /**
+     * Answer GETs with the whole content, as servers that don't support range requests do, without saying so in the
+     * response to HEAD.
+     *
+     * @param ignoresRange
+     */
+    public void setIgnoresRange(boolean ignoresRange) {
+        this.ignoresRange = ignoresRange;
+    }
+
+    /**
+     * Keep connections open for further requests, including ones pipelined behind the request being answered,
+     * instead of closing them after each response. Connections that are dropped partway through a body are still
+     * closed.
+     *
+     * @param keepAlive
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Returns the ranges requested with GET so far, formatted like "0-9".
+     *
+     * @return
+     */
+    public List<String> getRequestedRanges() {
+        synchronized (requestedRanges) {
+            return new ArrayList<String>(requestedRanges);
+        }
+    }
+
+    /**
+     * Returns the largest number of range GETs that were being served at the same time.
+     *
+     * @return
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests.get();
+    }
+
+    /**
+     * Returns the number of GETs being served right now.
+     *
+     * @return
+     */
+    public int getConcurrentRequests() {
+        return concurrentRequests.get();
+    }
+
+    /**
+     * Returns the number of connections accepted so far.
+     *
+     * @return
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Returns the number of bytes of response bodies sent so far, including those of responses that the client didn't
+     * read to the end.
+     *
+     * @return
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Send length bytes of the content from offset, stalling and keeping to the bandwidth limit along the way.
+     */
+    private void send(OutputStream out, int offset, int length) throws IOException {
+        int sent = 0;
+        while (sent < length) {
+            int stallAt = bytesBeforeStall;
+            if (sent == stallAt) {
+                out.flush();
+                sleep(stallMillis);
+            }
+            int slice = Math.min(SLICE_SIZE, length - sent);
+            if (sent < stallAt) {
+                slice = Math.min(slice, stallAt - sent);
+            }
+            pace(slice);
+            out.write(content, offset + sent, slice);
+            bytesSent.addAndGet(slice);
+            sent += slice;
+        }
+    }
+
+    /**
+     * Wait until the given number of bytes can be sent without going over the bandwidth limit.
+     */
+    private void pace(int bytes) {
+        long limit = bytesPerSecond;
+        if (limit <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // Bandwidth left unused isn't saved up for later
+            nextSliceNanos = Math.max(nextSliceNanos, now) + TimeUnit.SECONDS.toNanos(bytes) / limit;
+            waitNanos = nextSliceNanos - now;
+        }
+        sleep(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
+    private void handle(Socket socket) {
+        try {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                OutputStream out = socket.getOutputStream();
+                while (respond(in, out)) {
+                    // Next request
+                }
+            } finally {
+                socket.close();
+            }
+        } catch (IOException ioe) {
+            // Client went away
+        }
+    }
+
+    /**
+     * Read a request and respond to it.
+     *
+     * @return whether the connection can be used for another request
+     */
+    private boolean respond(BufferedReader in, OutputStream out) throws IOException {
+        String requestLine = in.readLine();
+        long start = 0;
+        long end = content.length - 1;
+        boolean ranged = false;
+        String header;
+        while ((header = in.readLine()) != null && header.length() > 0) {
+            Matcher matcher = RANGE.matcher(header);
+            if (matcher.matches()) {
+                start = Long.parseLong(matcher.group(1));
+                end = Long.parseLong(matcher.group(2));
+                ranged = true;
+            }
+        }
+        if (requestLine == null) {
+            return false;
+        }
+        boolean reusable = keepAlive;
+        String connection = reusable ? "keep-alive" : "close";
+        sleep(latencyMillis);
+        if (requestLine.startsWith("HEAD")) {
+            out.write(String.format("HTTP/1.1 200 OK\r\nContent-Length: %1$s\r\nConnection: %2$s\r\n\r\n",
+                                    content.length, connection).getBytes("ISO-8859-1"));
+        } else if (ranged || ignoresRange) {
+            int concurrent = concurrentRequests.incrementAndGet();
+            while (true) {
+                int max = maxConcurrentRequests.get();
+                if (concurrent <= max || maxConcurrentRequests.compareAndSet(max, concurrent)) {
+                    break;
+                }
+            }
+            try {
+                requestedRanges.add(start + "-" + end);
+                if (remainingErrors.getAndDecrement() > 0) {
+                    out.write(String.format("HTTP/1.1 %1$s Error\r\nContent-Length: 0\r\nConnection: %2$s\r\n\r\n",
+                                            errorStatusCode, connection).getBytes("ISO-8859-1"));
+                } else {
+                    if (ignoresRange) {
+                        start = 0;
+                        end = content.length - 1;
+                        out.write(String.format("HTTP/1.1 200 OK\r\nContent-Length: %1$s\r\nConnection: %2$s\r\n\r\n",
+                                                content.length, connection).getBytes("ISO-8859-1"));
+                    } else {
+                        out.write(String.format("HTTP/1.1 206 Partial Content\r\nContent-Length: %1$s\r\nContent-Range: bytes %2$s-%3$s/%4$s\r\nConnection: %5$s\r\n\r\n",
+                                                end - start + 1, start, end, content.length, connection).getBytes("ISO-8859-1"));
+                    }
+                    int length = (int) (end - start + 1);
+                    if (remainingFailures.getAndDecrement() > 0 && bytesBeforeFailure < length) {
+                        length = bytesBeforeFailure;
+                        reusable = false;
+                    }
+                    send(out, (int) start, length);
+                }
+            } finally {
+                concurrentRequests.decrementAndGet();
+            }
+        } else {
+            out.write(String.format("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: %1$s\r\n\r\n",
+                                    connection).getBytes("ISO-8859-1"));
+        }
+        out.flush();
+        return reusable;
+    }
+}
@@ -0,0 +1,97 @@
+package org.oxcart.streams;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class NioHttpEngineTest {
+    @Test
+    public void testCancellingAQueuedRequestDoesNotHoldUpTheOnesBehindIt() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(new byte[1024 * 1024]);
+        server.setKeepAlive(true);
+        server.setLatency(200);
+        // The cancelled response alone would take 4 seconds
+        server.setBytesPerSecond(256 * 1024);
+        NioHttpEngine engine = new NioHttpEngine(1, 3);
+        try {
+            MockResponseHandler first = new MockResponseHandler();
+            MockResponseHandler cancelled = new MockResponseHandler();
+            MockResponseHandler last = new MockResponseHandler();
+            long start = System.nanoTime();
+            engine.get(server.getUrl(), range(0, 999), first);
+            NioHttpEngine.Request request = engine.get(server.getUrl(), range(0, 1024 * 1024 - 1), cancelled);
+            engine.get(server.getUrl(), range(1000, 1999), last);
+            // Runs after the requests have been queued, since there is only one selector thread
+            request.cancel();
+            assertTrue("Request behind the cancelled one should finish", last.finished.await(10, TimeUnit.SECONDS));
+            assertTrue("Request behind the cancelled one shouldn't wait for its response",
+                       System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+            assertNull("Request behind the cancelled one should succeed", last.failure);
+            assertEquals(1000, last.received);
+            assertTrue("Request ahead of the cancelled one should finish", first.finished.await(10, TimeUnit.SECONDS));
+            assertNull("Request ahead of the cancelled one should succeed", first.failure);
+            assertEquals(1000, first.received);
+            assertNotNull("Cancelled request should fail", cancelled.failure);
+            assertEquals("Cancelled request should get none of its response", 0, cancelled.received);
+        } finally {
+            engine.shutdown();
+            server.close();
+        }
+    }
+
+    private static Map<String, String> range(long start, long end) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Range", String.format("bytes=%1$s-%2$s", start, end));
+        return headers;
+    }
+
+    private static class MockResponseHandler implements IResponseHandler {
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile long received = 0;
+        private volatile IOException failure;
+
+        @Override
+        public void responseDue() {
+        }
+
+        @Override
+        public void responseStarted(int statusCode) throws IOException {
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public boolean isNeededNow() {
+            return false;
+        }
+
+        @Override
+        public int getReadLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void bodyReceived(byte[] b, int off, int len) throws IOException {
+            received += len;
+        }
+
+        @Override
+        public void responseFinished(IOException failure) {
+            this.failure = failure;
+            finished.countDown();
+        }
+    }
+}
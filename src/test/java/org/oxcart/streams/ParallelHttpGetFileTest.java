@@ -0,0 +1,183 @@
+package org.oxcart.streams;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelHttpGetFileTest extends BaseHTTPGetTest {
+    private File outFile;
+
+    @Before
+    public void createOutFile() throws Exception {
+        outFile = File.createTempFile("ParallelHttpGetFileTest", ".tmp");
+    }
+
+    @After
+    public void deleteOutFile() {
+        outFile.delete();
+        DownloadJournal.journalFileFor(outFile).delete();
+    }
+
+    @Test
+    public void testSuccess() throws Exception {
+        ParallelHttpGetFile download = new ParallelHttpGetFile(executorService,
+                                                               outFile,
+                                                               twoChunkOptions(),
+                                                               "http://localhost:8089/good1",
+                                                               "http://localhost:8089/good2");
+        download.fetch();
+        assertTrue("Download should be valid", download.isValid());
+        assertEquals("File should contain all the right characters", CONTENT,
+                     FileUtils.readFileToString(outFile));
+        assertEquals("All bytes should have been written", CONTENT.length(), download.getBytesWritten());
+        assertFalse("Journal should be deleted once the download is complete",
+                    DownloadJournal.journalFileFor(outFile).exists());
+    }
+
+    @Test
+    public void testNonBlocking() throws Exception {
+        stubChunks("/nio1", CONTENT, 3);
+        stubChunks("/nio2", CONTENT, 3);
+        ParallelHttpGetOptions options = twoChunkOptions();
+        options.setChunkSize(3);
+        options.setConnectionsPerMirror(3);
+        options.setNonBlocking(true);
+        ParallelHttpGetFile download = new ParallelHttpGetFile(executorService,
+                                                               outFile,
+                                                               options,
+                                                               "http://localhost:8089/nio1",
+                                                               "http://localhost:8089/nio2");
+        download.fetch();
+        assertTrue("Download should be valid", download.isValid());
+        assertEquals("File should contain all the right characters", CONTENT,
+                     FileUtils.readFileToString(outFile));
+    }
+
+    @Test
+    public void testCorrupted() throws Exception {
+        ParallelHttpGetFile download = new ParallelHttpGetFile(executorService,
+                                                               outFile,
+                                                               twoChunkOptions(),
+                                                               "http://localhost:8089/corrupted");
+        download.fetch();
+        assertFalse("Download should not be valid", download.isValid());
+        assertEquals("There should be 1 validation error", 1, download.getValidationErrors().size());
+        String expectedValidationError = String.format("WARNING - Amount of written content did not match expected content length, data may be corrupted.  Expected %1$s, wrote %2$s",
+                                                       20, 19);
+        assertEquals("Validation error message should contain right byte counts",
+                     expectedValidationError,
+                     download.getValidationErrors().get(0));
+        assertEquals("File should still be preallocated to the full content length", 20, outFile.length());
+        assertTrue("Journal should be kept so that the download can be resumed",
+                   DownloadJournal.journalFileFor(outFile).exists());
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        stubVersioned("\"v1\"", CONTENT_PART_2.substring(0, 9));
+        ParallelHttpGetFile download = new ParallelHttpGetFile(executorService,
+                                                               outFile,
+                                                               twoChunkOptions(),
+                                                               "http://localhost:8089/versioned");
+        download.fetch();
+        assertFalse("First download should be incomplete", download.isValid());
+
+        stubVersioned("\"v1\"", CONTENT_PART_2);
+        ParallelHttpGetOptions options = twoChunkOptions();
+        options.setResume(true);
+        download = new ParallelHttpGetFile(executorService, outFile, options, "http://localhost:8089/versioned");
+        download.fetch();
+        assertTrue("Resumed download should be valid", download.isValid());
+        assertEquals("Completed chunk should have been kept", 1, download.getRestoredChunks());
+        assertEquals("File should contain all the right characters", CONTENT,
+                     FileUtils.readFileToString(outFile));
+        verify(1, getRequestedFor(urlEqualTo("/versioned")).withHeader("Range", equalTo("bytes=0-9")));
+        verify(2, getRequestedFor(urlEqualTo("/versioned")).withHeader("Range", equalTo("bytes=10-19"))
+                                                          .withHeader("If-Range", equalTo("\"v1\"")));
+        assertFalse("Journal should be deleted once the download is complete",
+                    DownloadJournal.journalFileFor(outFile).exists());
+    }
+
+    @Test
+    public void testResumeAfterResourceChanged() throws Exception {
+        stubVersioned("\"v1\"", CONTENT_PART_2.substring(0, 9));
+        new ParallelHttpGetFile(executorService, outFile, twoChunkOptions(), "http://localhost:8089/versioned").fetch();
+
+        stubVersioned("\"v2\"", CONTENT_PART_2);
+        ParallelHttpGetOptions options = twoChunkOptions();
+        options.setResume(true);
+        ParallelHttpGetFile download = new ParallelHttpGetFile(executorService, outFile, options,
+                                                               "http://localhost:8089/versioned");
+        download.fetch();
+        assertTrue("Download should be valid", download.isValid());
+        assertEquals("Nothing should be kept from the old version", 0, download.getRestoredChunks());
+        verify(2, getRequestedFor(urlEqualTo("/versioned")).withHeader("Range", equalTo("bytes=0-9")));
+    }
+
+    @Test
+    public void testHedgingCancelsStraggler() throws Exception {
+        MockMirrorServer slow = new MockMirrorServer(CONTENT.getBytes());
+        MockMirrorServer fast = new MockMirrorServer(CONTENT.getBytes());
+        slow.stallAfter(5, 20000);
+        ExecutorService twoThreads = Executors.newFixedThreadPool(2);
+        try {
+            ParallelHttpGetFile download = new ParallelHttpGetFile(twoThreads, outFile, twoChunkOptions(),
+                                                                   slow.getUrl(), fast.getUrl());
+            long start = System.currentTimeMillis();
+            download.fetch();
+            assertTrue("Fast mirror should have finished the straggling chunk and the slow fetch been cancelled",
+                       System.currentTimeMillis() - start < 10000);
+            assertTrue("Download should be valid", download.isValid());
+            assertEquals("File should contain all the right characters", CONTENT,
+                         FileUtils.readFileToString(outFile));
+        } finally {
+            twoThreads.shutdownNow();
+            slow.close();
+            fast.close();
+        }
+    }
+
+    /**
+     * Stub a resource with the given ETag whose second half is served as the given content.
+     */
+    private void stubVersioned(String eTag, String secondHalf) {
+        stubFor(head(urlEqualTo("/versioned")).willReturn(aResponse().withStatus(200)
+                                                                     .withHeader("ETag", eTag)
+                                                                     .withHeader("Content-Length", "20")));
+        stubFor(get(urlEqualTo("/versioned"))
+                                             .withHeader("Range", equalTo("bytes=0-9"))
+                                             .willReturn(aResponse().withStatus(206)
+                                                                    .withHeader("Transfer-Encoding", "")
+                                                                    .withHeader("Content-Range", "bytes 0-9/20")
+                                                                    .withBody(CONTENT_PART_1)));
+        stubFor(get(urlEqualTo("/versioned"))
+                                             .withHeader("Range", equalTo("bytes=10-19"))
+                                             .willReturn(aResponse().withStatus(206)
+                                                                    .withHeader("Transfer-Encoding", "")
+                                                                    .withHeader("Content-Range", "bytes 10-19/20")
+                                                                    .withBody(secondHalf)));
+    }
+
+    @Test
+    public void testBadPieceIsRewritten() throws Exception {
+        stubChunks("/bad-piece", CONTENT.substring(0, 5) + "XXXXX" + CONTENT.substring(10), 5);
+        stubChunks("/good1", CONTENT, 5);
+        ParallelHttpGetFile download = new ParallelHttpGetFile(executorService,
+                                                               outFile,
+                                                               pieceManifestOptions(5),
+                                                               "http://localhost:8089/bad-piece",
+                                                               "http://localhost:8089/good1");
+        download.fetch();
+        assertTrue("Download should be valid", download.isValid());
+        assertEquals("Bad piece should have been overwritten", CONTENT, FileUtils.readFileToString(outFile));
+        verify(1, getRequestedFor(urlEqualTo("/good1")).withHeader("Range", equalTo("bytes=5-9")));
+    }
+}
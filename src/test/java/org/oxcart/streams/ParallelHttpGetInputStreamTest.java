@@ -1,18 +1,38 @@
 package org.oxcart.streams;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.junit.Test;
 
 public class ParallelHttpGetInputStreamTest extends BaseHTTPGetTest {
     @Test
     public void testSuccess() throws Exception {
         ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService,
+                                                                           twoChunkOptions(),
                                                                            "http://localhost:8089/good1",
                                                                            "http://localhost:8089/good2");
         try {
@@ -26,8 +46,9 @@ public class ParallelHttpGetInputStreamTest extends BaseHTTPGetTest {
             assertTrue(recorder.recordedNames.contains("http://localhost:8089/good1"));
             assertTrue(recorder.recordedNames.contains("http://localhost:8089/good2"));
             assertTrue(recorder.recordedCategories.contains("Buffered"));
-            assertTrue(recorder.recordedTotals.contains(10.0d));
-            assertTrue(recorder.recordedProgress.contains(10.0d));
+            assertTrue(recorder.recordedTotals.contains(20.0d));
+            assertEquals("Progress across all mirrors should add up to the content length",
+                         20.0d, recorder.totalProgress, 0.0d);
         } finally {
             stream.close();
         }
@@ -36,7 +57,7 @@ public class ParallelHttpGetInputStreamTest extends BaseHTTPGetTest {
     @Test
     public void testCorrupted() throws Exception {
         ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService,
-                                                                           "http://localhost:8089/good1",
+                                                                           twoChunkOptions(),
                                                                            "http://localhost:8089/corrupted");
         try {
             String result = IOUtils.toString(stream);
@@ -55,26 +76,634 @@ public class ParallelHttpGetInputStreamTest extends BaseHTTPGetTest {
     }
 
     @Test
-    public void testMismatchedLength() throws Exception {
+    public void testSingleRequestForSmallContent() throws Exception {
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService,
+                                                                           "http://localhost:8089/good1",
+                                                                           "http://localhost:8089/good2");
         try {
-            new ParallelHttpGetInputStream(executorService,
-                                           "http://localhost:8089/good1",
-                                           "http://localhost:8089/bad-length");
-            fail("Mismatched Content-Length header should have prevented initialization of the stream");
+            assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+            assertTrue("Stream should be valid", stream.isValid());
+            // Our executor is single-threaded, so the first mirror's worker gets the only chunk
+            verify(1, getRequestedFor(urlEqualTo("/good1")).withHeader("Range", equalTo("bytes=0-19")));
+            verify(0, getRequestedFor(urlEqualTo("/good2")));
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testFasterMirrorTakesMoreChunks() throws Exception {
+        int chunkSize = 2;
+        for (String path : new String[] { "/fast", "/slow" }) {
+            stubFor(head(urlEqualTo(path)).willReturn(aResponse().withStatus(200)
+                                                                 .withHeader("Content-Length", "20")));
+            for (int start = 0; start < CONTENT.length(); start += chunkSize) {
+                int end = start + chunkSize - 1;
+                stubFor(get(urlEqualTo(path))
+                                             .withHeader("Range", equalTo("bytes=" + start + "-" + end))
+                                             .willReturn(aResponse().withStatus(206)
+                                                                    .withFixedDelay("/slow".equals(path) ? 1000 : 0)
+                                                                    .withHeader("Content-Range",
+                                                                                "bytes " + start + "-" + end + "/20")
+                                                                    .withBody(CONTENT.substring(start, end + 1))));
+            }
+        }
+        ParallelHttpGetOptions options = twoChunkOptions();
+        options.setChunkSize(chunkSize);
+        ExecutorService twoThreads = Executors.newFixedThreadPool(2);
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(twoThreads,
+                                                                           options,
+                                                                           "http://localhost:8089/slow",
+                                                                           "http://localhost:8089/fast");
+        try {
+            assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+            assertTrue("Stream should be valid", stream.isValid());
+            MockProgressRecorder recorder = new MockProgressRecorder();
+            stream.reportProgress(recorder);
+            assertTrue("Fast mirror should have fetched most of the chunks",
+                       recorder.progressByName.get("http://localhost:8089/fast") >= 16);
+            assertTrue("Throughput estimates should be reported",
+                       recorder.recordedCategories.contains(IProgressReporter.THROUGHPUT));
+            assertTrue("Time to first byte estimates should be reported",
+                       recorder.recordedCategories.contains(IProgressReporter.TIME_TO_FIRST_BYTE));
+        } finally {
+            stream.close();
+            twoThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRetryResumesFromLastByteReceived() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(CONTENT.getBytes());
+        server.dropConnectionsAfter(7, 1);
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setRetryBackoffMillis(10);
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService, options, server.getUrl());
+        try {
+            assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+            assertTrue("Stream should be valid", stream.isValid());
+            assertEquals("Retry should pick up where the dropped connection stopped", Arrays.asList("0-19", "7-19"),
+                         server.getRequestedRanges());
+            MockProgressRecorder recorder = new MockProgressRecorder();
+            stream.reportProgress(recorder);
+            assertEquals("Failed fetch should be reported", 1.0d,
+                         recorder.progressByCategory.get(IProgressReporter.FAILED_FETCHES), 0.0d);
+            assertEquals("Retry budget should be restored after a successful fetch", 0.0d,
+                         recorder.progressByCategory.get(IProgressReporter.RETRIES), 0.0d);
+        } finally {
+            stream.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(CONTENT.getBytes());
+        server.dropConnectionsAfter(7, 1);
+        Metrics metrics = new Metrics();
+        metrics.register("testMetrics");
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("org.oxcart.pget:type=Metrics,name=\"testMetrics\"");
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setRetryBackoffMillis(10);
+        options.setMetrics(metrics);
+        try {
+            ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService, options,
+                                                                               server.getUrl());
+            try {
+                assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+                assertEquals("Data should no longer be buffered once it's been read", 0, metrics.getBufferedBytes());
+                assertEquals("Stream's memory budget should be counted",
+                             ParallelHttpGetInputStream.DEFAULT_MEMORY_BUDGET, metrics.getBufferLimit());
+            } finally {
+                stream.close();
+            }
+            MirrorMetrics mirror = metrics.getMirror(server.getUrl());
+            assertEquals("Bytes from both requests should be counted", 20, mirror.getBytesFetched());
+            assertEquals("Both requests should be counted", 2, mirror.getRequests());
+            assertEquals("Dropped request should count as failed", 1, mirror.getFailedRequests());
+            assertEquals("Dropped request should have been retried", 1, mirror.getRetries());
+            assertEquals("Both responses should have a time to first byte", 2, mirror.getTimeToFirstByte().getCount());
+            assertEquals("Both responses should have a duration", 2, mirror.getRequestDuration().getCount());
+            assertTrue("Reader should have had to wait for the data", metrics.getReadStalls() > 0);
+            assertEquals("Closed stream's memory budget should no longer be counted", 0, metrics.getBufferLimit());
+
+            assertEquals("Metrics should be available over JMX", 20L,
+                         mBeanServer.getAttribute(objectName, "BytesFetched"));
+            assertEquals("Mirror's metrics should be available over JMX", 1L,
+                         mBeanServer.getAttribute(new ObjectName("org.oxcart.pget:type=Mirror,name=\"testMetrics\",url="
+                                 + ObjectName.quote(server.getUrl())), "Retries"));
+
+            StringWriter text = new StringWriter();
+            metrics.writeText(text);
+            assertTrue("Text should have the mirror's retries",
+                       text.toString().contains("pget_mirror_retries_total{url=\"" + server.getUrl() + "\"} 1\n"));
+            assertTrue("Text should have the mirror's request count",
+                       text.toString().contains("pget_mirror_request_duration_seconds_count{url=\"" + server.getUrl()
+                               + "\"} 2\n"));
+        } finally {
+            metrics.unregister();
+            server.close();
+        }
+        assertFalse("Metrics should be unregistered", mBeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    public void testGiveUpOnceRetriesAreUsedUp() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(CONTENT.getBytes());
+        server.dropConnectionsAfter(0, Integer.MAX_VALUE);
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setRetryBackoffMillis(10);
+        options.setMaxRetries(2);
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService, options, server.getUrl());
+        try {
+            IOUtils.toString(stream);
+            fail("Reading should fail once the only mirror has been given up on");
+        } catch (IOException ioe) {
+            assertTrue("Failure should say that we gave up", ioe.getMessage().startsWith("Giving up"));
+            assertEquals("Mirror should have been tried once plus the number of retries", 3,
+                         server.getRequestedRanges().size());
+        } finally {
+            stream.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testMultipleConnectionsPerMirror() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(CONTENT.getBytes());
+        server.stallAfter(0, 300);
+        ParallelHttpGetOptions options = twoChunkOptions();
+        options.setChunkSize(5);
+        options.setConnectionsPerMirror(4);
+        ExecutorService fourThreads = Executors.newFixedThreadPool(4);
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(fourThreads, options, server.getUrl());
+        try {
+            assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+            assertTrue("Stream should be valid", stream.isValid());
+            assertTrue("Several ranges should have been fetched from the mirror at once",
+                       server.getMaxConcurrentRequests() > 1);
+        } finally {
+            stream.close();
+            fourThreads.shutdownNow();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSharedConnectionPool() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(4, 4, 500);
+        PoolingClientConnectionManager connectionManager = (PoolingClientConnectionManager) pool.getHttpClient()
+                                                                                                .getConnectionManager();
+        try {
+            for (int i = 0; i < 2; i++) {
+                ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService, pool,
+                                                                                   "http://localhost:8089/good1");
+                try {
+                    assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+                } finally {
+                    stream.close();
+                }
+                assertFalse("Closing the stream should leave a shared pool alone", pool.isShutdown());
+                assertEquals("Kept-alive connection should stay in the pool for the next stream", 1,
+                             connectionManager.getTotalStats().getAvailable());
+            }
+            Thread.sleep(1500);
+            assertEquals("Idle connection should have been closed", 0, connectionManager.getTotalStats()
+                                                                                       .getAvailable());
+        } finally {
+            pool.shutdown();
+        }
+        try {
+            new ParallelHttpGetInputStream(executorService, pool, "http://localhost:8089/good1");
+            fail("Stream should not be initialized with a pool that has been shut down");
         } catch (IOException ioe) {
-            // ignore
+            // Expected
+        }
+    }
+
+    @Test
+    public void testBandwidthLimit() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(bunchOfBytes);
+        BandwidthLimiter limiter = new BandwidthLimiter(50 * 1024);
+        ExecutorService twoThreads = Executors.newFixedThreadPool(2);
+        try {
+            for (boolean nonBlocking : new boolean[] { false, true }) {
+                ParallelHttpGetOptions options = twoChunkOptions();
+                options.setChunkSize(bunchOfBytes.length / 4);
+                options.setConnectionsPerMirror(2);
+                options.setHedging(false);
+                options.setNonBlocking(nonBlocking);
+                // So that the non-blocking reads, which are limited to what the share has left, take turns
+                options.setSelectorThreads(1);
+                BandwidthLimiter.Share share = limiter.newShare(1);
+                options.setBandwidthShare(share);
+                long start = System.nanoTime();
+                ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(twoThreads, options,
+                                                                                   server.getUrl());
+                try {
+                    assertArrayEquals("Result should contain all the right bytes", bunchOfBytes,
+                                      IOUtils.toByteArray(stream));
+                } finally {
+                    stream.close();
+                    share.close();
+                }
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                // The limit is a ceiling, so however the reads fall this can't take less than 50000 bytes less the
+                // 0.1 seconds' worth of burst (5120 bytes) at 51200 bytes/s, i.e. 876 ms
+                assertTrue("About 50 KB at 50 KB/s should take about a second, took " + elapsedMillis,
+                           elapsedMillis >= 870);
+            }
+        } finally {
+            twoThreads.shutdownNow();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testNonBlockingFetchesManyRangesWithoutThreads() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(CONTENT.getBytes());
+        server.stallAfter(0, 300);
+        ParallelHttpGetOptions options = twoChunkOptions();
+        options.setChunkSize(2);
+        options.setConnectionsPerMirror(10);
+        options.setNonBlocking(true);
+        options.setSelectorThreads(1);
+        // The single thread of executorService is only needed for probing the mirror
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService, options, server.getUrl());
+        try {
+            assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+            assertTrue("Stream should be valid", stream.isValid());
+            assertEquals("Every range should have been fetched at once", 10, server.getMaxConcurrentRequests());
+        } finally {
+            stream.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testNonBlockingChunksHoldOffAheadOfTheReader() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(bunchOfBytes);
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setSingleRequestThreshold(0);
+        options.setChunkSize(1000);
+        options.setConnectionsPerMirror(4);
+        options.setNonBlocking(true);
+        options.setMemoryBudget(new MemoryBudget(5000));
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService, options, server.getUrl());
+        try {
+            // Give the chunks plenty of time to run ahead of the reader
+            Thread.sleep(500);
+            MockProgressRecorder recorder = new MockProgressRecorder();
+            stream.reportProgress(recorder);
+            assertTrue("Chunks ahead of the reader should have waited for it instead of spilling",
+                       recorder.progressByCategory.get("Buffered") < bunchOfBytes.length / 2);
+            assertArrayEquals("Result should contain all the right bytes", bunchOfBytes, toByteArray(stream));
+            assertTrue("Stream should be valid", stream.isValid());
+        } finally {
+            stream.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testNonBlockingPipelinesRangesOnFewConnections() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(bunchOfBytes);
+        server.setKeepAlive(true);
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setSingleRequestThreshold(0);
+        options.setChunkSize(1000);
+        options.setConnectionsPerMirror(8);
+        options.setHedging(false);
+        options.setNonBlocking(true);
+        options.setSelectorThreads(1);
+        options.setPipelineDepth(4);
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService, options, server.getUrl());
+        try {
+            assertArrayEquals("Result should contain all the right bytes", bunchOfBytes, toByteArray(stream));
+            assertTrue("Stream should be valid", stream.isValid());
+            assertEquals("Every chunk should have been requested once", 50, server.getRequestedRanges().size());
+            assertTrue("8 requests at a time should have needed 2 connections, plus 1 for the probe, not "
+                    + server.getConnections(), server.getConnections() <= 3);
+        } finally {
+            stream.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testNonBlockingPipeliningDoesNotQueueTheReaderBehindPausedChunks() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(bunchOfBytes);
+        server.setKeepAlive(true);
+        // Retries of chunks the reader is waiting for come after chunks that are paused for backpressure
+        server.dropConnectionsAfter(500, 10);
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setSingleRequestThreshold(0);
+        options.setChunkSize(1000);
+        options.setConnectionsPerMirror(4);
+        options.setHedging(false);
+        options.setRetryBackoffMillis(10);
+        options.setNonBlocking(true);
+        options.setSelectorThreads(1);
+        options.setPipelineDepth(4);
+        options.setMemoryBudget(new MemoryBudget(5000));
+        final ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService, options,
+                                                                                 server.getUrl());
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> result = reader.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return toByteArray(stream);
+                }
+            });
+            assertArrayEquals("Result should contain all the right bytes", bunchOfBytes,
+                              result.get(30, TimeUnit.SECONDS));
+            assertTrue("Stream should be valid", stream.isValid());
+        } finally {
+            reader.shutdownNow();
+            stream.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testNonBlockingPipeliningWithoutKeepAlive() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(bunchOfBytes);
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setSingleRequestThreshold(0);
+        options.setChunkSize(1000);
+        options.setConnectionsPerMirror(8);
+        options.setNonBlocking(true);
+        options.setSelectorThreads(1);
+        options.setPipelineDepth(4);
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService, options, server.getUrl());
+        try {
+            // Each connection is closed after one response, so the requests queued on it must be sent again
+            assertArrayEquals("Result should contain all the right bytes", bunchOfBytes, toByteArray(stream));
+            assertTrue("Stream should be valid", stream.isValid());
+        } finally {
+            stream.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testMixedMirrors() throws Exception {
+        MirrorSimulator simulator = new MirrorSimulator(1024 * 1024, 3);
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        try {
+            simulator.getMirror(0).setBytesPerSecond(1024 * 1024);
+            simulator.getMirror(1).setBytesPerSecond(128 * 1024);
+            simulator.getMirror(1).setLatency(100);
+            simulator.getMirror(2).setBytesPerSecond(1024 * 1024);
+            simulator.getMirror(2).setIgnoresRange(true);
+            ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+            options.setSingleRequestThreshold(0);
+            options.setChunkSize(64 * 1024);
+            MirrorSimulator.Result result = simulator.download(threads, options);
+            assertTrue("Fast mirror should send most of the data, got " + result,
+                       result.getShare(0) > result.getShare(1));
+            assertTrue("Mirror that ignores ranges should send next to nothing, got " + result,
+                       result.getShare(2) < 0.05);
+            assertTrue("Little data should be wasted, got " + result, result.getBytesWasted() < 256 * 1024);
+        } finally {
+            threads.shutdownNow();
+            simulator.close();
+        }
+    }
+
+    @Test
+    public void testStreamingOnlyFetchesAheadOfTheReader() throws Exception {
+        MockMirrorServer server = new MockMirrorServer(bunchOfBytes);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setSingleRequestThreshold(0);
+        options.setChunkSize(1000);
+        options.setConnectionsPerMirror(4);
+        options.setHedging(false);
+        options.setStreaming(true);
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(threads, options, server.getUrl());
+        try {
+            assertEquals("First byte should arrive", bunchOfBytes[0], (byte) stream.read());
+            // Give the chunks plenty of time to run ahead of a reader that has stopped
+            Thread.sleep(1000);
+            List<String> requestedRanges = server.getRequestedRanges();
+            assertTrue("Chunk being read should be fetched", requestedRanges.contains("0-999"));
+            Set<String> window = new HashSet<String>(Arrays.asList("0-999", "1000-1999", "2000-2999"));
+            assertTrue("Only the chunks right after a stopped reader should be fetched, got " + requestedRanges,
+                       window.containsAll(requestedRanges));
+            assertArrayEquals("Result should contain all the right bytes",
+                              Arrays.copyOfRange(bunchOfBytes, 1, bunchOfBytes.length), toByteArray(stream));
+            assertTrue("Stream should be valid", stream.isValid());
+        } finally {
+            stream.close();
+            threads.shutdownNow();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testFailedProbeIsDropped() throws Exception {
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService,
+                                                                           "http://localhost:8089/good1",
+                                                                           "http://localhost:8089/bad-length");
+        try {
+            assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+            assertEquals("Failed url should be reported", 1, stream.getMirrorFailures().size());
+            assertTrue("Failure should name the url",
+                       stream.getMirrorFailures().get(0).contains("http://localhost:8089/bad-length"));
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testMismatchedLength() throws Exception {
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService,
+                                                                           "http://localhost:8089/other-length",
+                                                                           "http://localhost:8089/good1",
+                                                                           "http://localhost:8089/good2");
+        try {
+            assertEquals("Content length agreed on by most mirrors should be used", 20, stream.getContentLength());
+            assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+            assertEquals("Mirror with mismatched Content-Length should be dropped",
+                         "Content-Length for resources 'http://localhost:8089/good1' and 'http://localhost:8089/other-length' did not match",
+                         stream.getMirrorFailures().get(0));
+        } finally {
+            stream.close();
         }
     }
 
     @Test
     public void testDisallowedRange() throws Exception {
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService,
+                                                                           "http://localhost:8089/good1",
+                                                                           "http://localhost:8089/bad-range");
+        try {
+            assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+            assertEquals("Mirror that disallows Range requests should be dropped",
+                         "Resource does not allow range requests: http://localhost:8089/bad-range",
+                         stream.getMirrorFailures().get(0));
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testNoUsableMirrors() throws Exception {
         try {
             new ParallelHttpGetInputStream(executorService,
-                                           "http://localhost:8089/good1",
+                                           "http://localhost:8089/bad-length",
                                            "http://localhost:8089/bad-range");
-            fail("Disallowed Range requests header should have prevented initialization of the stream");
+            fail("Stream should not be initialized without any usable urls");
         } catch (IOException ioe) {
-            // ignore
+            assertTrue("Failure should explain why each url was dropped",
+                       ioe.getMessage().contains("bad-length") && ioe.getMessage().contains("bad-range"));
+        }
+    }
+
+    @Test
+    public void testProbeTimeout() throws Exception {
+        stubFor(head(urlEqualTo("/unresponsive")).willReturn(aResponse().withStatus(200)
+                                                                        .withFixedDelay(5000)
+                                                                        .withHeader("Content-Length", "20")));
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setProbeTimeoutMillis(200);
+        ExecutorService twoThreads = Executors.newFixedThreadPool(2);
+        long start = System.currentTimeMillis();
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(twoThreads,
+                                                                           options,
+                                                                           "http://localhost:8089/unresponsive",
+                                                                           "http://localhost:8089/good1");
+        try {
+            assertTrue("Unresponsive url should not hold up startup", System.currentTimeMillis() - start < 2000);
+            assertEquals("Unresponsive url should be dropped", 1, stream.getMirrorFailures().size());
+            assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+        } finally {
+            stream.close();
+            twoThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testProbeDeadline() throws Exception {
+        // Sends a header line every 100 ms, so no single read ever runs into the probe timeout
+        final ServerSocket trickler = new ServerSocket(0);
+        Thread trickle = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = trickler.accept();
+                    try {
+                        OutputStream out = socket.getOutputStream();
+                        out.write("HTTP/1.1 200 OK\r\n".getBytes("US-ASCII"));
+                        for (int i = 0; i < 100; i++) {
+                            out.write(String.format("X-Trickle-%1$s: %1$s\r\n", i).getBytes("US-ASCII"));
+                            out.flush();
+                            Thread.sleep(100);
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                } catch (Exception e) {
+                    // Aborted by the probe
+                }
+            }
+        };
+        trickle.setDaemon(true);
+        trickle.start();
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setProbeTimeoutMillis(200);
+        ExecutorService twoThreads = Executors.newFixedThreadPool(2);
+        long start = System.currentTimeMillis();
+        ParallelHttpGetInputStream stream = null;
+        try {
+            stream = new ParallelHttpGetInputStream(twoThreads,
+                                                    options,
+                                                    "http://localhost:" + trickler.getLocalPort() + "/trickle",
+                                                    "http://localhost:8089/good1");
+            assertTrue("Trickling url should not hold up startup", System.currentTimeMillis() - start < 2000);
+            assertEquals("Trickling url should be dropped", 1, stream.getMirrorFailures().size());
+            assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+            twoThreads.shutdownNow();
+            trickler.close();
+        }
+    }
+
+    @Test
+    public void testProbeDeadlineStartsWhenTheProbeRuns() throws Exception {
+        ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+        options.setProbeTimeoutMillis(200);
+        // Like a pool shared with another download whose worker holds the only thread for a while
+        ExecutorService oneThread = Executors.newFixedThreadPool(1);
+        oneThread.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Thread.sleep(1000);
+                return null;
+            }
+        });
+        try {
+            ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(oneThread,
+                                                                               options,
+                                                                               "http://localhost:8089/good1");
+            try {
+                assertTrue("Waiting for a thread shouldn't count against the probe",
+                           stream.getMirrorFailures().isEmpty());
+                assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+            } finally {
+                stream.close();
+            }
+        } finally {
+            oneThread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBadPieceIsFetchedAgainFromAnotherMirror() throws Exception {
+        stubChunks("/bad-piece", CONTENT.substring(0, 5) + "XXXXX" + CONTENT.substring(10), 5);
+        stubChunks("/good1", CONTENT, 5);
+        ParallelHttpGetOptions options = pieceManifestOptions(5);
+        options.setMaxBadPieces(1);
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService,
+                                                                           options,
+                                                                           "http://localhost:8089/bad-piece",
+                                                                           "http://localhost:8089/good1");
+        try {
+            assertEquals("Result should contain all the right characters", CONTENT, IOUtils.toString(stream));
+            assertTrue("Stream should be valid", stream.isValid());
+            // Our executor is single-threaded, so the bad mirror's worker goes first until it's given up on
+            verify(1, getRequestedFor(urlEqualTo("/bad-piece")).withHeader("Range", equalTo("bytes=0-4")));
+            verify(1, getRequestedFor(urlEqualTo("/bad-piece")).withHeader("Range", equalTo("bytes=5-9")));
+            verify(0, getRequestedFor(urlEqualTo("/bad-piece")).withHeader("Range", equalTo("bytes=10-14")));
+            verify(1, getRequestedFor(urlEqualTo("/good1")).withHeader("Range", equalTo("bytes=5-9")));
+            verify(0, getRequestedFor(urlEqualTo("/good1")).withHeader("Range", equalTo("bytes=0-4")));
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testBadPieceFromEveryMirror() throws Exception {
+        stubChunks("/bad-piece", CONTENT.substring(0, 5) + "XXXXX" + CONTENT.substring(10), 5);
+        ParallelHttpGetInputStream stream = new ParallelHttpGetInputStream(executorService,
+                                                                           pieceManifestOptions(5),
+                                                                           "http://localhost:8089/bad-piece");
+        try {
+            byte[] firstPiece = new byte[5];
+            IOUtils.readFully(stream, firstPiece);
+            assertEquals("Good piece should be read", CONTENT.substring(0, 5), new String(firstPiece));
+            IOUtils.toString(stream);
+            fail("Reading the bad piece should fail");
+        } catch (IOException ioe) {
+            assertTrue("Failure should say that verification failed", ioe.getMessage().contains("verification"));
+        } finally {
+            stream.close();
         }
     }
 
@@ -82,14 +711,20 @@ public class ParallelHttpGetInputStreamTest extends BaseHTTPGetTest {
         private Set<String> recordedNames = new HashSet<String>();
         private Set<String> recordedCategories = new HashSet<String>();
         private Set<Double> recordedTotals = new HashSet<Double>();
-        private Set<Double> recordedProgress = new HashSet<Double>();
+        private Map<String, Double> progressByName = new HashMap<String, Double>();
+        private Map<String, Double> progressByCategory = new HashMap<String, Double>();
+        private double totalProgress = 0;
 
         @Override
         public void record(String name, String category, double total, double progress) {
             recordedNames.add(name);
             recordedCategories.add(category);
             recordedTotals.add(total);
-            recordedProgress.add(progress);
+            progressByCategory.put(category, progress);
+            if ("Buffered".equals(category)) {
+                progressByName.put(name, progress);
+                totalProgress += progress;
+            }
         }
     }
 }
@@ -0,0 +1,74 @@
+package org.oxcart.streams;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class PieceManifestTest extends StreamTest {
+
+    @Test
+    public void testCompute() throws Exception {
+        PieceManifest manifest = PieceManifest.compute(new ByteArrayInputStream(bunchOfBytes), "SHA-256", 20000);
+        assertEquals("Last piece should be short", 3, manifest.getNumberOfPieces());
+        assertEquals(bunchOfBytes.length, manifest.getContentLength());
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        assertArrayEquals("Last piece should only hash what's left",
+                          digest.digest(Arrays.copyOfRange(bunchOfBytes, 40000, 50000)), manifest.getPieceHash(2));
+
+        digest.update(manifest.getPieceHash(0));
+        digest.update(manifest.getPieceHash(1));
+        byte[] pair = digest.digest();
+        digest.update(pair);
+        digest.update(manifest.getPieceHash(2));
+        assertArrayEquals("Root should hash pairs of hashes level by level", digest.digest(), manifest.getRootHash());
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        PieceManifest manifest = PieceManifest.compute(new ByteArrayInputStream(bunchOfBytes), "SHA-256", 1000);
+        File file = File.createTempFile("PieceManifestTest", ".pieces");
+        try {
+            manifest.write(file);
+            PieceManifest read = PieceManifest.read(file);
+            assertEquals(manifest.getAlgorithm(), read.getAlgorithm());
+            assertEquals(manifest.getPieceSize(), read.getPieceSize());
+            assertEquals(manifest.getContentLength(), read.getContentLength());
+            assertArrayEquals("Read manifest should have the same pieces", manifest.getRootHash(), read.getRootHash());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTamperedManifestIsRejected() throws Exception {
+        PieceManifest manifest = PieceManifest.compute(new ByteArrayInputStream(bunchOfBytes), "SHA-256", 1000);
+        File file = File.createTempFile("PieceManifestTest", ".pieces");
+        try {
+            manifest.write(file);
+            String lines = FileUtils.readFileToString(file, "UTF-8");
+            String firstPiece = new String(Hex.encodeHex(manifest.getPieceHash(0)));
+            FileUtils.writeStringToFile(file, lines.replace(firstPiece, new StringBuilder(firstPiece).reverse()),
+                                        "UTF-8");
+            try {
+                PieceManifest.read(file);
+                fail("Manifest with a changed piece hash should not match its root");
+            } catch (IOException ioe) {
+                assertTrue("Failure should mention the root hash", ioe.getMessage().contains("Root hash"));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.oxcart.streams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>
+ * Measures each stage of the stream pipeline on its own - {@link MergedInputStream}, {@link ChecksummingInputStream}
+ * and {@link ReadAheadInputStream} - and the full {@link ParallelHttpGetInputStream} stack, reading with several block
+ * sizes. The stages are fed from in-memory sources and from range GETs to a {@link MockMirrorServer} over loopback,
+ * and the merge and the full stack are measured with several segment counts. The full stack is only measured over
+ * loopback, since it fetches over HTTP.
+ * </p>
+ *
+ * <p>
+ * Run with <code>gradle pipelineBenchmark</code>. Each case reports the best throughput of a few runs, along with the
+ * rate at which the whole JVM allocated memory during that run and the bytes allocated per KB read, which is what
+ * shows up first when something on the hot path starts copying or boxing. Allocations by threads that end during a
+ * run, such as the mock server's threads, aren't counted. Given a file name, the results are also written to it as
+ * CSV, so that runs can be compared.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class PipelineBenchmark {
+    private static final int KB = 1024;
+    private static final int MB = 1024 * 1024;
+    private static final int BYTES_PER_RUN = 32 * MB;
+    private static final int[] BLOCK_SIZES = new int[] { 512, 8 * KB, 64 * KB };
+    private static final int[] SEGMENT_COUNTS = new int[] { 1, 4, 16 };
+    private static final String[] DIGEST_ALGORITHMS = new String[] { Digests.CRC32, "SHA-256" };
+    private static final int RUNS = 3;
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final MockMirrorServer server;
+    private final PrintWriter csv;
+
+    public static void main(String[] args) throws Exception {
+        PrintWriter csv = null;
+        if (args.length > 0) {
+            File file = new File(args[0]);
+            file.getParentFile().mkdirs();
+            csv = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            csv.println("stage,source,segments,block size,MB/s,allocated MB/s,allocated bytes/KB");
+        }
+        PipelineBenchmark benchmark = new PipelineBenchmark(csv);
+        try {
+            benchmark.run();
+        } finally {
+            benchmark.close();
+        }
+    }
+
+    private PipelineBenchmark(PrintWriter csv) throws IOException {
+        byte[] content = new byte[BYTES_PER_RUN];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 255);
+        }
+        this.server = new MockMirrorServer(content);
+        this.csv = csv;
+    }
+
+    private void run() throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Allocations can't be measured on this JVM");
+        }
+        for (final boolean loopback : new boolean[] { false, true }) {
+            for (final int segments : SEGMENT_COUNTS) {
+                measure("merged", loopback, segments, new Pipeline() {
+                    @Override
+                    public InputStream open() throws Exception {
+                        InputStream[] streams = new InputStream[segments];
+                        for (int i = 0; i < segments; i++) {
+                            long start = (long) BYTES_PER_RUN * i / segments;
+                            long end = (long) BYTES_PER_RUN * (i + 1) / segments;
+                            streams[i] = source(loopback, start, end);
+                        }
+                        return new MergedInputStream(streams);
+                    }
+                });
+            }
+            for (final String algorithm : DIGEST_ALGORITHMS) {
+                measure("checksumming " + algorithm, loopback, 1, new Pipeline() {
+                    @Override
+                    public InputStream open() throws Exception {
+                        return new ChecksummingInputStream(source(loopback, 0, BYTES_PER_RUN), algorithm, null);
+                    }
+                });
+            }
+            measure("read-ahead", loopback, 1, new Pipeline() {
+                @Override
+                public InputStream open() throws Exception {
+                    return ReadAheadInputStream.open(new IStreamProvider() {
+                        @Override
+                        public InputStream openStream() throws IOException {
+                            return source(loopback, 0, BYTES_PER_RUN);
+                        }
+                    }, executorService);
+                }
+            });
+        }
+        for (final int segments : SEGMENT_COUNTS) {
+            measure("parallel http get", true, segments, new Pipeline() {
+                @Override
+                public InputStream open() throws Exception {
+                    ParallelHttpGetOptions options = new ParallelHttpGetOptions();
+                    options.setSingleRequestThreshold(0);
+                    options.setChunkSize(BYTES_PER_RUN / segments);
+                    options.setConnectionsPerMirror(segments);
+                    options.setHedging(false);
+                    return new ParallelHttpGetInputStream(executorService, options, server.getUrl());
+                }
+            });
+        }
+    }
+
+    private void close() throws IOException {
+        executorService.shutdownNow();
+        server.close();
+        if (csv != null) {
+            csv.close();
+        }
+    }
+
+    /**
+     * Returns a source of the content from start (inclusive) to end (exclusive), either in memory or over loopback.
+     */
+    private InputStream source(boolean loopback, long start, long end) throws IOException {
+        if (!loopback) {
+            return new StreamBenchmark.RepeatingInputStream(end - start);
+        }
+        HttpURLConnection connection = (HttpURLConnection) new URL(server.getUrl()).openConnection();
+        connection.setRequestProperty("Range", String.format("bytes=%1$s-%2$s", start, end - 1));
+        return connection.getInputStream();
+    }
+
+    private void measure(String stage, boolean loopback, int segments, Pipeline pipeline) throws Exception {
+        String source = loopback ? "loopback" : "in-memory";
+        for (int blockSize : BLOCK_SIZES) {
+            // Warm up
+            read(pipeline, blockSize);
+            long[] best = null;
+            for (int i = 0; i < RUNS; i++) {
+                long[] result = read(pipeline, blockSize);
+                if (best == null || result[1] < best[1]) {
+                    best = result;
+                }
+            }
+            double megabytes = (double) best[0] / MB;
+            double seconds = best[1] / 1e9;
+            double allocatedMegabytesPerSecond = best[2] < 0 ? Double.NaN : best[2] / seconds / MB;
+            double allocatedBytesPerKilobyte = best[2] < 0 ? Double.NaN : best[2] / (best[0] / (double) KB);
+            System.out.println(String.format("%1$-24s %2$-9s %3$3s segments %4$6s byte blocks %5$9.1f MB/s %6$9.1f MB/s allocated %7$9.1f bytes/KB allocated",
+                                             stage, source, segments, blockSize, megabytes / seconds,
+                                             allocatedMegabytesPerSecond, allocatedBytesPerKilobyte));
+            if (csv != null) {
+                csv.println(String.format("%1$s,%2$s,%3$s,%4$s,%5$.1f,%6$.1f,%7$.1f", stage, source, segments,
+                                          blockSize, megabytes / seconds, allocatedMegabytesPerSecond,
+                                          allocatedBytesPerKilobyte));
+                csv.flush();
+            }
+        }
+    }
+
+    /**
+     * Read everything from a stream opened by the given pipeline, blockSize bytes at a time.
+     *
+     * @return the number of bytes read, the time taken in nanoseconds and the number of bytes allocated, or -1 if
+     *         that can't be measured
+     */
+    private static long[] read(Pipeline pipeline, int blockSize) throws Exception {
+        byte[] buffer = new byte[blockSize];
+        long startAllocated = allocatedBytes();
+        long start = System.nanoTime();
+        long total = 0;
+        InputStream stream = pipeline.open();
+        try {
+            int read;
+            while ((read = stream.read(buffer, 0, blockSize)) != -1) {
+                total += read;
+            }
+        } finally {
+            stream.close();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+        return new long[] { total, elapsed, allocated };
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by all live threads, or -1 if that isn't supported on this JVM.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        long total = 0;
+        for (long allocated : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads
+                .getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Opens the stream to be measured.
+     */
+    private interface Pipeline {
+        InputStream open() throws Exception;
+    }
+}
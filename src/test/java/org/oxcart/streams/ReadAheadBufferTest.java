@@ -0,0 +1,183 @@
+package org.oxcart.streams;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class ReadAheadBufferTest extends StreamTest {
+
+    @Test
+    public void testReaderIsSignaledWhenDataArrives() throws Exception {
+        final ReadAheadBuffer buffer = new ReadAheadBuffer(new MemoryBudget(1024));
+        Future<Integer> pendingRead = executorService.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return buffer.read(new byte[10], 0, 10);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse("Reader should be waiting for data", pendingRead.isDone());
+
+        buffer.write(bunchOfBytes, 0, 5);
+        assertEquals("Reader should get the data that was written", 5,
+                     pendingRead.get(1, TimeUnit.SECONDS).intValue());
+        buffer.close();
+    }
+
+    @Test
+    public void testOneWaitCountsAsOneStall() throws Exception {
+        // Held until finished, so each write wakes the reader up without giving it anything to read
+        final ReadAheadBuffer buffer = new ReadAheadBuffer(new MemoryBudget(1024), true);
+        Metrics metrics = new Metrics();
+        buffer.setMetrics(metrics);
+        Future<Integer> pendingRead = executorService.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return buffer.read(new byte[10], 0, 10);
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(50);
+            buffer.write(bunchOfBytes, i, 1);
+        }
+        Thread.sleep(50);
+        assertFalse("Reader should still be waiting for data", pendingRead.isDone());
+
+        buffer.finish();
+        assertEquals("Reader should get the first block that was written", 1,
+                     pendingRead.get(1, TimeUnit.SECONDS).intValue());
+        assertEquals("Waiting once should count as one stall however often the reader woke up", 1,
+                     metrics.getReadStalls());
+        assertTrue("The stall should last the whole wait", metrics.getReadStallSeconds() >= 0.25);
+        buffer.close();
+    }
+
+    @Test
+    public void testMixedMemoryAndSpilledDataStayInOrder() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(3000);
+        ReadAheadBuffer buffer = new ReadAheadBuffer(memoryBudget);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] readBuffer = new byte[700];
+        int written = 0;
+        while (written < bunchOfBytes.length) {
+            int length = Math.min(1000, bunchOfBytes.length - written);
+            buffer.write(bunchOfBytes, written, length);
+            written += length;
+            if (written % 4000 == 0) {
+                // Periodically consume some data so that memory frees up and later writes land in memory again
+                int read = buffer.read(readBuffer, 0, readBuffer.length);
+                result.write(readBuffer, 0, read);
+            }
+        }
+        buffer.finish();
+        int read;
+        while ((read = buffer.read(readBuffer, 0, readBuffer.length)) != -1) {
+            result.write(readBuffer, 0, read);
+        }
+        assertArrayEquals("Data should come out in the order it was written", bunchOfBytes, result.toByteArray());
+        assertNotNull("Some data should have been spilled", buffer.getSpillFile());
+        assertEquals("All memory should be returned to the budget", 0, memoryBudget.getReservedBytes());
+        buffer.close();
+    }
+
+    @Test
+    public void testReadToChannel() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(3000);
+        ReadAheadBuffer buffer = new ReadAheadBuffer(memoryBudget);
+        // The first 3000 bytes fit in memory and the rest is spilled
+        for (int written = 0; written < bunchOfBytes.length; written += 1000) {
+            buffer.write(bunchOfBytes, written, Math.min(1000, bunchOfBytes.length - written));
+        }
+        buffer.finish();
+        File file = File.createTempFile("ReadAheadBufferTest", ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                long total = 0;
+                long written;
+                while ((written = buffer.readTo(out.getChannel())) != -1) {
+                    total += written;
+                }
+                assertEquals("Everything should be written", bunchOfBytes.length, total);
+            } finally {
+                out.close();
+            }
+            assertArrayEquals("Memory and spilled data should come out in order", bunchOfBytes,
+                              FileUtils.readFileToByteArray(file));
+            assertEquals("All memory should be returned to the budget", 0, memoryBudget.getReservedBytes());
+        } finally {
+            buffer.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFailureIsRethrown() throws Exception {
+        ReadAheadBuffer buffer = new ReadAheadBuffer(new MemoryBudget(1024));
+        buffer.write(bunchOfBytes, 0, 10);
+        buffer.fail(new IOException(MockInputStream.READ_FAILURE_MESSAGE));
+        try {
+            buffer.read(new byte[10], 0, 10);
+            fail("Failure should have been rethrown to the reader");
+        } catch (IOException ioe) {
+            assertEquals("Rethrown exception should have the right message",
+                         MockInputStream.READ_FAILURE_MESSAGE,
+                         ioe.getMessage());
+        } finally {
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void testWriteAfterClose() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(1024);
+        ReadAheadBuffer buffer = new ReadAheadBuffer(memoryBudget);
+        buffer.write(bunchOfBytes, 0, 10);
+        buffer.close();
+        assertEquals("Closing should return memory to the budget", 0, memoryBudget.getReservedBytes());
+        try {
+            buffer.write(bunchOfBytes, 0, 10);
+            fail("Writing to a closed buffer should fail so that the writer stops");
+        } catch (IOException ioe) {
+            assertEquals("Closed buffer should not hold on to memory", 0, memoryBudget.getReservedBytes());
+        }
+    }
+
+    @Test
+    public void testHeldDataCanBeDiscarded() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(1000);
+        ReadAheadBuffer buffer = new ReadAheadBuffer(memoryBudget, true);
+        // Partly in memory, partly spilled
+        buffer.write(bunchOfBytes, 100, 3000);
+        assertEquals("Held data should not be available", 0, buffer.available());
+        buffer.discard();
+        assertEquals("Discarding should return memory to the budget", 0, memoryBudget.getReservedBytes());
+
+        buffer.write(bunchOfBytes, 0, 3000);
+        buffer.finish();
+        assertEquals("Data should be available once finished", 3000, buffer.available());
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] readBuffer = new byte[700];
+        int read;
+        while ((read = buffer.read(readBuffer, 0, readBuffer.length)) != -1) {
+            result.write(readBuffer, 0, read);
+        }
+        assertArrayEquals("Only the data written after discarding should be read", Arrays.copyOf(bunchOfBytes, 3000),
+                          result.toByteArray());
+        buffer.close();
+    }
+}
@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -29,20 +30,64 @@ public class ReadAheadInputStreamTest extends StreamTest {
         assertArrayEquals("Result of reading from ReadAheadInputStream should match original data",
                           bunchOfBytes, result);
 
-        // Check the buffer file
-        File bufferFile = getBufferFile(inputStream);
+        assertNull("Data fitting within the memory budget should not be spilled to disk",
+                   getBuffer(inputStream).getSpillFile());
 
-        assertTrue("Buffer file should exist before closing stream",
-                   bufferFile.exists());
+        inputStream.close();
+        assertEquals("By end, all bytes should be buffered", bunchOfBytes.length, inputStream.getBufferedBytes());
+    }
 
-        assertEquals("Length of buffer file should match original data",
-                     bufferFile.length(), bunchOfBytes.length);
+    @Test
+    public void testSpillToDisk() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(1000);
+        ReadAheadInputStream inputStream = ReadAheadInputStream.open(new IStreamProvider() {
+            public InputStream openStream() {
+                return new ByteArrayInputStream(bunchOfBytes);
+            }
+        }, executorService, memoryBudget);
+        // Wait for everything to be buffered
+        while (inputStream.getBufferedBytes() < bunchOfBytes.length) {
+            Thread.sleep(10);
+        }
+
+        File spillFile = getBuffer(inputStream).getSpillFile();
+        assertNotNull("Data exceeding the memory budget should be spilled to disk", spillFile);
+        assertTrue("Spill file should exist before closing stream", spillFile.exists());
+        assertTrue("Memory budget should be respected", memoryBudget.getReservedBytes() <= 1000);
+
+        byte[] result = toByteArray(inputStream);
+        assertArrayEquals("Result of reading spilled data should match original data", bunchOfBytes, result);
 
         inputStream.close();
-        assertFalse("Buffer file should be cleaned up by closing stream",
-                    bufferFile.exists());
+        assertFalse("Spill file should be cleaned up by closing stream", spillFile.exists());
+        assertEquals("All memory should be returned to the budget", 0, memoryBudget.getReservedBytes());
+    }
 
-        assertEquals("By end, all bytes should be buffered", bunchOfBytes.length, inputStream.getBufferedBytes());
+    @Test
+    public void testBulkReadAndSkip() throws Exception {
+        ReadAheadInputStream inputStream = ReadAheadInputStream.open(new IStreamProvider() {
+            public InputStream openStream() {
+                return new ByteArrayInputStream(bunchOfBytes);
+            }
+        }, executorService);
+        try {
+            long skipped = 0;
+            while (skipped < 100) {
+                skipped += inputStream.skip(100 - skipped);
+            }
+            byte[] result = new byte[bunchOfBytes.length - 100];
+            int totalRead = 0;
+            int read;
+            while ((read = inputStream.read(result, totalRead, result.length - totalRead)) > 0) {
+                totalRead += read;
+            }
+            assertEquals("Should have read all bytes after the skipped ones", result.length, totalRead);
+            assertEquals("Stream should be at its end", -1, inputStream.read(new byte[10], 0, 10));
+            assertArrayEquals("Bulk read after skip should match original data",
+                              Arrays.copyOfRange(bunchOfBytes, 100, bunchOfBytes.length), result);
+        } finally {
+            inputStream.close();
+        }
     }
 
     @Test
@@ -88,9 +133,9 @@ public class ReadAheadInputStreamTest extends StreamTest {
         }
     }
 
-    private File getBufferFile(ReadAheadInputStream inputStream) throws Exception {
-        Field fileField = ReadAheadInputStream.class.getDeclaredField("bufferFile");
-        fileField.setAccessible(true);
-        return (File) fileField.get(inputStream);
+    private ReadAheadBuffer getBuffer(ReadAheadInputStream inputStream) throws Exception {
+        Field bufferField = ReadAheadInputStream.class.getDeclaredField("buffer");
+        bufferField.setAccessible(true);
+        return (ReadAheadBuffer) bufferField.get(inputStream);
     }
 }
@@ -0,0 +1,44 @@
+package org.oxcart.streams;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class ReadWindowTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testDepthFollowsReadRate() {
+        // A single connection fetching 1000 bytes/sec
+        MirrorStats stats = new MirrorStats();
+        stats.fetchStarted(0, 0);
+        stats.bytesFetched(1000, SECOND);
+        List<MirrorStats> allStats = Arrays.asList(stats);
+
+        ReadWindow window = new ReadWindow(10, 0);
+        assertTrue("Chunk being read should be allowed", window.allows(0, allStats, 0));
+        assertTrue("Window should start out one chunk deep", window.allows(1, allStats, 0));
+        assertFalse("Window should start out one chunk deep", window.allows(2, allStats, 0));
+
+        assertFalse("Reader is still in the first chunk", window.readerAt(0, 5000));
+        assertEquals("Reading at 5 times the speed of a connection needs 5 chunks in flight, plus one", 6,
+                     window.getDepth(allStats, SECOND));
+
+        assertTrue("Reader has moved on to the next chunk", window.readerAt(1, 6000));
+        assertTrue("Window should move along with the reader", window.allows(7, allStats, SECOND));
+        assertFalse("Window should move along with the reader", window.allows(8, allStats, SECOND));
+
+        assertEquals("Window should shrink back while the reader pauses", 2, window.getDepth(allStats, 11 * SECOND));
+
+        window.readerAt(1, 1000000006000L);
+        assertEquals("Window should never get deeper than the maximum", 10, window.getDepth(allStats, 12 * SECOND));
+    }
+}
@@ -0,0 +1,143 @@
+package org.oxcart.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>
+ * Measures the throughput of the ReadAheadInputStream -> MergedInputStream -> ChecksummingInputStream stack over
+ * in-memory sources, once consuming the stack a byte at a time (the way the stack behaved when only read() was
+ * implemented) and once using bulk reads.
+ * </p>
+ *
+ * <p>
+ * Run with <code>gradle benchmark</code>. Results are reported as wall-clock throughput and as throughput per
+ * CPU-second consumed by the whole process, which approximates bytes/sec per core.
+ * </p>
+ *
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class StreamBenchmark {
+    private static final int MB = 1024 * 1024;
+    private static final int SEGMENTS = 4;
+    private static final long BYTES_PER_RUN = 256L * MB;
+    private static final int BULK_BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(SEGMENTS);
+        try {
+            // Warm up
+            run(executorService, null, false);
+            run(executorService, null, true);
+
+            report("byte-at-a-time, no checksum", run(executorService, null, false));
+            report("bulk, no checksum", run(executorService, null, true));
+            report("byte-at-a-time, SHA-256", run(executorService, "SHA-256", false));
+            report("bulk, SHA-256", run(executorService, "SHA-256", true));
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    private static long[] run(ExecutorService executorService, String digestAlgorithm, boolean bulk)
+            throws Exception {
+        InputStream[] segments = new InputStream[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = ReadAheadInputStream.open(new IStreamProvider() {
+                @Override
+                public InputStream openStream() throws IOException {
+                    return new RepeatingInputStream(BYTES_PER_RUN / SEGMENTS);
+                }
+            }, executorService);
+        }
+        InputStream stream = new MergedInputStream(segments);
+        if (digestAlgorithm != null) {
+            // The expected checksum doesn't matter, we never validate
+            stream = new ChecksummingInputStream(stream, digestAlgorithm, new byte[0]);
+        }
+
+        long startCpu = processCpuTime();
+        long startWall = System.nanoTime();
+        long total = 0;
+        try {
+            if (bulk) {
+                byte[] buffer = new byte[BULK_BUFFER_SIZE];
+                int read;
+                while ((read = stream.read(buffer, 0, buffer.length)) != -1) {
+                    total += read;
+                }
+            } else {
+                while (stream.read() != -1) {
+                    total += 1;
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        return new long[] { total, System.nanoTime() - startWall, processCpuTime() - startCpu };
+    }
+
+    private static void report(String name, long[] result) {
+        double megabytes = (double) result[0] / MB;
+        double wallSeconds = result[1] / 1e9;
+        double cpuSeconds = result[2] / 1e9;
+        System.out.println(String.format("%1$-30s %2$8.1f MB/s wall   %3$8.1f MB/s per core",
+                                         name,
+                                         megabytes / wallSeconds,
+                                         cpuSeconds > 0 ? megabytes / cpuSeconds : Double.NaN));
+    }
+
+    /**
+     * Returns the CPU time consumed by this process in nanoseconds, or 0 if that isn't supported on this JVM.
+     */
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    /**
+     * An InputStream that serves a fixed number of bytes from a repeating pattern without allocating.
+     */
+    static class RepeatingInputStream extends InputStream {
+        private static final byte[] PATTERN = new byte[8192];
+        static {
+            for (int i = 0; i < PATTERN.length; i++) {
+                PATTERN[i] = (byte) (i % 255);
+            }
+        }
+
+        private long remaining;
+
+        RepeatingInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            remaining -= 1;
+            return PATTERN[(int) (remaining % PATTERN.length)] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = (int) Math.min(Math.min(len, remaining), PATTERN.length);
+            System.arraycopy(PATTERN, 0, b, off, read);
+            remaining -= read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.oxcart.streams;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author ox.to.a.cart /at/ gmail.com
+ *
+ */
+public class ThreadPerTaskExecutorServiceTest {
+
+    @Test
+    public void testConcurrencyIsLimitedBySemaphore() throws Exception {
+        ThreadPerTaskExecutorService executor = new ThreadPerTaskExecutorService(Executors.defaultThreadFactory(), 3);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+        final AtomicInteger finished = new AtomicInteger(0);
+        try {
+            for (int i = 0; i < 10; i++) {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        int now = running.incrementAndGet();
+                        synchronized (maxRunning) {
+                            maxRunning.set(Math.max(maxRunning.get(), now));
+                        }
+                        try {
+                            release.await();
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                        running.decrementAndGet();
+                        finished.incrementAndGet();
+                    }
+                });
+            }
+            Thread.sleep(200);
+            assertEquals("Only as many tasks as there are permits should run", 3, maxRunning.get());
+            assertEquals("Every task should have a thread", 10, executor.getActiveTasks());
+            release.countDown();
+            executor.shutdown();
+            assertTrue("Executor should terminate once all tasks are done",
+                       executor.awaitTermination(5, TimeUnit.SECONDS));
+            assertEquals("All tasks should have run", 10, finished.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testShutdownNowStopsWaitingTasks() throws Exception {
+        ThreadPerTaskExecutorService executor = new ThreadPerTaskExecutorService(Executors.defaultThreadFactory(), 1);
+        final AtomicInteger started = new AtomicInteger(0);
+        for (int i = 0; i < 5; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.incrementAndGet();
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException ie) {
+                        // Shut down
+                    }
+                }
+            });
+        }
+        executor.shutdownNow();
+        assertTrue("Executor should terminate", executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue("Tasks waiting for a permit should not have run", started.get() <= 1);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("Tasks should be rejected after shutdown");
+        } catch (RejectedExecutionException ree) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsWhereAvailable() throws Exception {
+        if (!VirtualThreads.isAvailable()) {
+            try {
+                VirtualThreads.newExecutor(1);
+                fail("Creating a virtual thread executor should fail on this JVM");
+            } catch (UnsupportedOperationException uoe) {
+                // Expected
+            }
+            return;
+        }
+        ThreadPerTaskExecutorService executor = VirtualThreads.newExecutor(1);
+        try {
+            Thread thread = executor.submit(new Callable<Thread>() {
+                @Override
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            }).get();
+            assertEquals("Task should have run on a virtual thread", Boolean.TRUE,
+                         Thread.class.getMethod("isVirtual").invoke(thread));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}